@@ -0,0 +1,304 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore.FeatureFileWriter;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Memo of the FIRMS coverage geometries, by geo-code combination
+ *  Rows sharing the same reference layer and geo-column values have the same coverage geometry, which
+ *  is computed once per run: concurrent requests of the same key wait for its computation. The memo can
+ *  be persisted in a feature store file, so that it survives between runs. Each persisted entry keeps the
+ *  time at which it was computed, and expires after a time to live, so that changes of the reference layers
+ *  are eventually taken into account. The simplified coverage geometries are memoized as well, under the key
+ *  of the combination and the simplification tolerance.
+ *
+ *  The time to live of the persisted entries is configured with the figis.coverage.memo.ttl system property,
+ *  in milliseconds (default is 86400000, i.e. one day).
+ *
+ * @author eblondel
+ *
+ */
+class CoverageMemo {
+
+	private static Logger logger = Logger.getLogger(CoverageMemo.class);
+
+	public static final String TTL_PROPERTY = "figis.coverage.memo.ttl";
+
+	static final String KEY_ATT_NAME = "key";
+	static final String TIME_ATT_NAME = "time";
+	static final String GEOM_ATT_NAME = "the_geom";
+
+	File file;
+	long ttl;
+	ConcurrentMap<String, FutureTask<Geometry>> geometries = new ConcurrentHashMap<String, FutureTask<Geometry>>();
+	ConcurrentMap<String, Long> times = new ConcurrentHashMap<String, Long>(); //time at which the geometries were computed
+	AtomicInteger hits = new AtomicInteger();
+	volatile boolean modified = false;
+
+
+	/** Constructor of a memo for a single run
+	 *
+	 */
+	CoverageMemo(){
+	}
+
+
+	/** Constructor of a persistent memo, loaded from its file if it exists
+	 *  Expired entries are not loaded, and are dropped from the file when the memo is saved.
+	 *
+	 * @param file
+	 * @param ttl the time to live of the persisted entries (in milliseconds), 0 for no expiry
+	 */
+	CoverageMemo(File file, long ttl){
+		if(ttl < 0){
+			throw new IllegalArgumentException("The memo time to live should be positive or 0");
+		}
+		this.file = file;
+		this.ttl = ttl;
+		FeatureFileStore store = new FeatureFileStore(file);
+		if(store.exists()){
+			int expired = 0;
+			try{
+				SimpleFeatureIterator it = store.getFeatures().features();
+				try{
+					while(it.hasNext()){
+						SimpleFeature feature = it.next();
+						Object time = feature.getAttribute(TIME_ATT_NAME);
+						if(!(time instanceof Long) || this.isExpired((Long) time)){
+							expired++;
+							continue;
+						}
+						String key = (String) feature.getAttribute(KEY_ATT_NAME);
+						geometries.put(key, getMemoized((Geometry) feature.getAttribute(GEOM_ATT_NAME)));
+						times.put(key, (Long) time);
+					}
+				}finally{
+					it.close();
+				}
+				modified = expired > 0;
+				logger.info("Loaded FIRMS coverage memo "+file+" ("+geometries.size()+" entries, "+expired+" expired)");
+
+			}catch(IOException e){
+				logger.warn("Unable to load the FIRMS coverage memo "+file, e);
+				geometries.clear();
+				times.clear();
+			}
+		}
+	}
+
+
+	/** Get the memo key of a geo-code combination
+	 *  Geo-columns and their values are sorted, so that the key does not depend on their order.
+	 *
+	 * @param layer the reference layer
+	 * @param conditions the geo-column values, by geo-column
+	 * @return
+	 */
+	static String getKey(String layer, Map<String, ? extends Collection<String>> conditions){
+		List<String> attributes = new ArrayList<String>(conditions.keySet());
+		Collections.sort(attributes);
+
+		StringBuilder key = new StringBuilder(layer);
+		for(String attribute : attributes){
+			List<String> values = new ArrayList<String>();
+			for(String value : conditions.get(attribute)){
+				values.add(value.trim());
+			}
+			Collections.sort(values);
+
+			key.append("|").append(attribute).append("=");
+			for(int i = 0; i < values.size(); i++){
+				if(i > 0){
+					key.append(";");
+				}
+				key.append(values.get(i));
+			}
+		}
+		return key.toString();
+	}
+
+
+	/** Get the memo key of the simplified geometry of a geo-code combination
+	 * 
+	 * @param key the memo key of the geo-code combination
+	 * @param tolerance the simplification tolerance
+	 * @return
+	 */
+	static String getSimplifiedKey(String key, double tolerance){
+		return key + "#" + tolerance;
+	}
+
+
+	/** Indicates if the geometry of a key is memoized (or being computed)
+	 *
+	 * @param key
+	 * @return
+	 */
+	boolean contains(String key){
+		return geometries.containsKey(key);
+	}
+
+
+	/** Get the geometry of a key, computing and memoizing it if needed
+	 *  The geometry of a key is computed once: concurrent requests of the key wait for its computation.
+	 *  A failed computation is not memoized. Only the requests served without computation are memo hits.
+	 *
+	 * @param key
+	 * @param computation the computation of the geometry (returning null for an empty geometry)
+	 * @return the geometry, null if empty
+	 */
+	Geometry get(String key, Callable<Geometry> computation){
+		FutureTask<Geometry> task = new FutureTask<Geometry>(computation);
+		FutureTask<Geometry> memoized = geometries.putIfAbsent(key, task);
+		if(memoized != null){
+			hits.incrementAndGet();
+			return getGeometry(memoized);
+		}
+
+		try{
+			task.run();
+			Geometry geometry = getGeometry(task);
+			times.put(key, System.currentTimeMillis());
+			modified = true;
+			return geometry;
+
+		}catch(RuntimeException e){
+			geometries.remove(key, task);
+			throw e;
+		}
+	}
+
+
+	/** Get the number of memo hits
+	 *
+	 * @return
+	 */
+	int getHits(){
+		return hits.get();
+	}
+
+
+	/** Get the number of memoized entries
+	 *
+	 * @return
+	 */
+	int size(){
+		return geometries.size();
+	}
+
+
+	/** Indicates if a memo entry computed at a given time is expired
+	 *
+	 * @param time
+	 * @return
+	 */
+	private boolean isExpired(long time){
+		return ttl > 0 && System.currentTimeMillis() - time > ttl;
+	}
+
+
+	/** Get an already computed memo entry
+	 *
+	 * @param geometry
+	 * @return
+	 */
+	private static FutureTask<Geometry> getMemoized(final Geometry geometry){
+		FutureTask<Geometry> task = new FutureTask<Geometry>(new Callable<Geometry>(){
+			public Geometry call(){
+				return geometry;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+
+	/** Get the geometry of a memo entry, once computed
+	 *
+	 * @param task
+	 * @return the geometry, null if empty
+	 */
+	private static Geometry getGeometry(FutureTask<Geometry> task){
+		try{
+			return task.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing a FIRMS coverage geometry", e);
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			if(e.getCause() instanceof Error){
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException("Unable to compute a FIRMS coverage geometry", e.getCause());
+		}
+	}
+
+
+	/** Save the memo to its file (persistent memo only), if it was modified
+	 *
+	 * @throws IOException
+	 */
+	synchronized void save() throws IOException{
+		if(file == null || !modified){
+			return;
+		}
+
+		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+		tb.setName("FIRMS_COVERAGE_MEMO");
+		tb.add(GEOM_ATT_NAME, Geometry.class);
+		tb.add(KEY_ATT_NAME, String.class);
+		tb.add(TIME_ATT_NAME, Long.class);
+		SimpleFeatureType schema = tb.buildFeatureType();
+		SimpleFeatureBuilder fb = new SimpleFeatureBuilder(schema);
+
+		FeatureFileWriter writer = new FeatureFileStore(file).createWriter(schema);
+		try{
+			int index = 0;
+			for(Entry<String, FutureTask<Geometry>> entry : geometries.entrySet()){
+				Long time = times.get(entry.getKey());
+				if(!entry.getValue().isDone() || time == null){
+					continue; //not computed yet
+				}
+				fb.set(GEOM_ATT_NAME, getGeometry(entry.getValue()));
+				fb.set(KEY_ATT_NAME, entry.getKey());
+				fb.set(TIME_ATT_NAME, time);
+				writer.write(fb.buildFeature(String.valueOf(index++)));
+			}
+			writer.close();
+			modified = false;
+
+		}catch(RuntimeException e){
+			writer.abort();
+			throw e;
+
+		}catch(IOException e){
+			writer.abort();
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngines;
+
+/** Execution options of the Create FIRMS Coverage process
+ *
+ * @author eblondel
+ *
+ */
+class CoverageOptions {
+
+	/** precision grid size to which geometries are snapped before union, null for floating precision */
+	Double precision;
+
+	/** overlay engine name */
+	String engine = OverlayEngines.DEFAULT;
+
+	/** resolve the reference features from the in-memory reference layer cache */
+	boolean referenceCache = false;
+
+	/** read the reference layers from the local GeoServer catalog when available, instead of WFS */
+	boolean localCatalog = false;
+
+	/** maximum number of rows (sharing the reference layer) fetched with a single query, 1 for no batching */
+	int batchSize = 1;
+
+	/** maximum number of reference features fetched for a batch of rows */
+	int batchMaxFeatures = 10000;
+
+	/** compute each distinct geo-code combination once per run */
+	boolean memo = false;
+
+	/** persist the memo of geo-code combinations between runs, in the server store directory */
+	boolean persistentMemo = false;
+
+	/** name of the server store where the coverage is kept for incremental regeneration, null to regenerate the whole coverage */
+	String incrementalStore;
+
+	/** group the rows by reference layer in a single pass, instead of sorting them */
+	boolean grouping = false;
+
+	/** maximum number of rows held in memory by the grouping, above which rows are spilled to disk */
+	int groupingMaxRows = 100000;
+
+	/** tolerances of the simplified (topology-preserving) geometries added to the coverage features */
+	double[] simplifyTolerances = new double[0];
+
+	/** number of threads computing the batches of rows, 1 for sequential computation */
+	int threads = 1;
+
+	/** maximum number of batches computed ahead of the output */
+	int lookAhead = 1;
+
+}
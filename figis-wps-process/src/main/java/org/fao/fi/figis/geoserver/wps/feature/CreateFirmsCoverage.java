@@ -1,11 +1,27 @@
 package org.fao.fi.figis.geoserver.wps.feature;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
+import org.apache.log4j.Logger;
 import org.fao.fi.figis.geoserver.wps.FigisProcess;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngine;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngines;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureCollectionCache;
+import org.fao.fi.figis.geoserver.wps.utils.store.StoreDirectory;
+import org.fao.fi.figis.geoserver.wps.utils.wfs.ReferenceLayerCache;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.factory.CommonFactoryFinder;
@@ -42,6 +58,11 @@ import com.vividsolutions.jts.geom.MultiPolygon;
 				 )
 public class CreateFirmsCoverage implements FigisProcess{
 	
+	private static Logger logger = Logger.getLogger(CreateFirmsCoverage.class);
+	
+	static final String MEMO_AREA = "memo";
+	static final String INCREMENTAL_AREA = "incremental";
+	
 	FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
 
 	
@@ -50,14 +71,90 @@ public class CreateFirmsCoverage implements FigisProcess{
 			 @DescribeParameter(name="data",description="A geometry less collection to transform into a geographic coverage") SimpleFeatureCollection features,
 			 @DescribeParameter(name="geoserverURL",description="the Geoserver URL where to search source GIS layers") String geoserverURL,
 			 @DescribeParameter(name="layerNamespace",description="the GeoServer namespace where source GIS layers are published") String layerPrefix,
-			 @DescribeParameter(name="layerRefAttribute",description="Attribute containing the layer references") String refAttribute
+			 @DescribeParameter(name="layerRefAttribute",description="Attribute containing the layer references") String refAttribute,
+			 @DescribeParameter(name="precision",description="Precision grid size (e.g. 1e-7 for decimal degrees) to which geometries are snapped before union. "
+					 										 +"If not specified, the floating precision is used (or the precision configured for the fixed engine)", min=0) Double precision,
+			 @DescribeParameter(name="engine",description="Overlay engine: default (floating precision), fixed (requires a precision) or snap. If not specified, the fixed engine is used when a precision is given, otherwise the engine configured by the figis.overlay.engine system property (with the figis.overlay.precision system property for the fixed engine), or else the default one", min=0) String engine,
+			 @DescribeParameter(name="referenceCache",description="Resolve the reference features from an in-memory cache of the reference layers (loaded once, indexed by code)", min=0) Boolean referenceCache,
+			 @DescribeParameter(name="localCatalog",description="Read the reference layers from the local GeoServer catalog when available, instead of WFS (default is false). Layers not found in the catalog are read from the geoserverURL", min=0) Boolean localCatalog,
+			 @DescribeParameter(name="batchSize",description="Number of rows sharing a reference layer whose reference features are fetched with a single query (default is 1, i.e. no batching)", min=0) Integer batchSize,
+			 @DescribeParameter(name="batchMaxFeatures",description="Maximum number of reference features fetched for a batch (default is 10000). Larger batches are split in halves, queried in turn", min=0) Integer batchMaxFeatures,
+			 @DescribeParameter(name="memo",description="Compute the coverage of each distinct combination of reference layer and geo-column values once (default is false)", min=0) Boolean memo,
+			 @DescribeParameter(name="persistentMemo",description="Persist the memo of geo-column combinations between runs, in the server store directory (implies memo). "
+					 										 +"Memoized geometries expire after the time to live set by the figis.coverage.memo.ttl system property (in milliseconds, default is one day)", min=0) Boolean persistentMemo,
+			 @DescribeParameter(name="incrementalStore",description="Name of the server store (letters, digits, '_' and '-') where the coverage is kept for incremental regeneration: "
+					 										 +"only the new or changed rows are recomputed, unchanged rows are read from the previous coverage. Stores are located in the server store directory. "
+					 										 +"If not specified, the whole coverage is regenerated", min=0) String incrementalStore,
+			 @DescribeParameter(name="grouping",description="Group the rows by reference layer in a single pass, instead of sorting the data (default is false)", min=0) Boolean grouping,
+			 @DescribeParameter(name="groupingMaxRows",description="Maximum number of rows held in memory by the grouping, above which rows are spilled to disk (default is 100000)", min=0) Integer groupingMaxRows,
+			 @DescribeParameter(name="simplifyTolerances",description="Comma-separated tolerances (in decimal degrees) of topology-preserving simplified geometries added alongside THE_GEOM "
+					 										 +"(as THE_GEOM_1, THE_GEOM_2, ...), e.g. for rendering at smaller scales. If not specified, only THE_GEOM is produced", min=0) String simplifyTolerances,
+			 @DescribeParameter(name="threads",description="Number of threads computing the coverage (default is 1). Batches of upcoming rows are fetched and unioned concurrently, and delivered in the input order", min=0) Integer threads,
+			 @DescribeParameter(name="lookAhead",description="Maximum number of batches computed ahead of the output in concurrent mode (default is twice the number of threads)", min=0) Integer lookAhead
 			){
+		
+		CoverageOptions options = new CoverageOptions();
+		options.precision = OverlayEngines.getPrecision(engine, precision);
+		options.engine = OverlayEngines.getName(engine, precision);
+		OverlayEngines.create(options.engine, options.precision); //check the overlay engine
+		options.referenceCache = (referenceCache != null && referenceCache);
+		options.localCatalog = (localCatalog != null && localCatalog);
+		if(batchSize != null){
+			if(batchSize < 1){
+				throw new IllegalArgumentException("The batch size must be strictly positive");
+			}
+			options.batchSize = batchSize;
+		}
+		if(batchMaxFeatures != null){
+			if(batchMaxFeatures < 1){
+				throw new IllegalArgumentException("The batch maximum number of features must be strictly positive");
+			}
+			options.batchMaxFeatures = batchMaxFeatures;
+		}
+		options.persistentMemo = (persistentMemo != null && persistentMemo);
+		if(incrementalStore != null){
+			options.incrementalStore = StoreDirectory.checkName(incrementalStore);
+		}
+		if(simplifyTolerances != null && simplifyTolerances.trim().length() > 0){
+			String[] values = simplifyTolerances.split(",");
+			options.simplifyTolerances = new double[values.length];
+			for(int i = 0; i < values.length; i++){
+				try{
+					options.simplifyTolerances[i] = Double.parseDouble(values[i].trim());
+				}catch(NumberFormatException e){
+					throw new IllegalArgumentException("Invalid simplification tolerance "+values[i], e);
+				}
+				if(options.simplifyTolerances[i] <= 0){
+					throw new IllegalArgumentException("The simplification tolerances must be strictly positive");
+				}
+			}
+		}
+		options.grouping = (grouping != null && grouping);
+		if(groupingMaxRows != null){
+			if(groupingMaxRows < 1){
+				throw new IllegalArgumentException("The grouping maximum number of rows must be strictly positive");
+			}
+			options.groupingMaxRows = groupingMaxRows;
+		}
+		options.memo = (memo != null && memo) || options.persistentMemo;
+		if(threads != null && threads > 1){
+			options.threads = threads;
+			options.lookAhead = 2 * threads;
+			if(lookAhead != null){
+				if(lookAhead < threads){
+					throw new IllegalArgumentException("The look-ahead must be at least the number of threads");
+				}
+				options.lookAhead = lookAhead;
+			}
+		}
 	
-		//sorting by refAttribute
-		SortBy sort = ff.sort( refAttribute, SortOrder.DESCENDING);
-		features = features.sort(sort);
+		//sorting by refAttribute (otherwise rows are grouped by the iterator)
+		if(!options.grouping){
+			SortBy sort = ff.sort( refAttribute, SortOrder.DESCENDING);
+			features = features.sort(sort);
+		}
 		
-		return new FirmsCoverageFeatureCollection(features, geoserverURL, layerPrefix, refAttribute, features.getSchema());
+		return new FirmsCoverageFeatureCollection(features, geoserverURL, layerPrefix, refAttribute, features.getSchema(), options);
 		
 	}
 	
@@ -76,22 +173,25 @@ public class CreateFirmsCoverage implements FigisProcess{
 		String geoserverURL;
 		String layerPrefix;
 		String refAttribute;
-		
+		CoverageOptions options;
 	
 		
 		/** Constructor
 		 * 
 		 * @param delegate
 		 * @param refAttribute
+		 * @param options
 		 */
-		protected FirmsCoverageFeatureCollection(SimpleFeatureCollection delegate, String geoserverURL, String layerPrefix, String refAttribute, SimpleFeatureType schema) {
+		protected FirmsCoverageFeatureCollection(SimpleFeatureCollection delegate, String geoserverURL, String layerPrefix, String refAttribute, SimpleFeatureType schema,
+												 CoverageOptions options) {
 			super(delegate);
-			this.createSimpleFeatureType(delegate);
-			
 			this.sourceSchema = schema;
 			this.geoserverURL = geoserverURL;
 			this.layerPrefix = layerPrefix;
 			this.refAttribute = refAttribute;
+			this.options = options;
+			
+			this.createSimpleFeatureType(delegate);
 
 		}
 		
@@ -105,9 +205,20 @@ public class CreateFirmsCoverage implements FigisProcess{
 		
 		@Override
 		public SimpleFeatureIterator features() {
+			if(options.grouping){
+				LayerGroupingIterator grouped;
+				try{
+					grouped = new LayerGroupingIterator(delegate.features(), refAttribute, options.groupingMaxRows);
+				}catch(IOException e){
+					throw new ProcessException("Unable to group the rows by reference layer", e);
+				}
+				return new FirmsCoverageFeatureIterator(grouped,
+						targetSchema, geoserverURL, layerPrefix, refAttribute,
+						sourceSchema, grouped.getLayers(), options);
+			}
 			return new FirmsCoverageFeatureIterator(delegate.features(),
 					targetSchema, geoserverURL, layerPrefix, refAttribute,
-					sourceSchema, this.getLayersList());
+					sourceSchema, this.getLayersList(), options);
 		}
 
         public Iterator<SimpleFeature> iterator() {
@@ -133,6 +244,9 @@ public class CreateFirmsCoverage implements FigisProcess{
     		// add geometry property
     		tb.setCRS(DefaultGeographicCRS.WGS84);     
     		tb.add("THE_GEOM", MultiPolygon.class); 
+    		for(int i = 0; i < options.simplifyTolerances.length; i++){
+    			tb.add("THE_GEOM_" + (i + 1), MultiPolygon.class); //simplified geometries
+    		}
     		
     		//add other properties
     		tb.addAll(features.getSchema().getAttributeDescriptors());
@@ -205,7 +319,17 @@ public class CreateFirmsCoverage implements FigisProcess{
 		
 		SimpleFeature next;
 		FirmsCoverageProcessor processor;
+		OverlayEngine overlay;
+		ReferenceLayerCache referenceCache;
+		CoverageOptions options;
 		String layerRef;
+		SimpleFeature pending;
+		List<FirmsCoverageProcessor> processors = new ArrayList<FirmsCoverageProcessor>();
+		LinkedList<SimpleFeature> results = new LinkedList<SimpleFeature>();
+		CoverageMemo memo;
+		IncrementalCoverage incremental;
+		ExecutorService executor;
+		LinkedList<CoverageTask> window = new LinkedList<CoverageTask>();
 	    int iterationIndex = 0;
 	    
 	    
@@ -217,11 +341,13 @@ public class CreateFirmsCoverage implements FigisProcess{
 		 * @param schema
 		 * @param refAttribute
 		 * @param layerList
+		 * @param options
 		 */
 		public FirmsCoverageFeatureIterator(SimpleFeatureIterator delegate,
 				SimpleFeatureType targetSchema, String geoserverURL,
 				String layerPrefix, String refAttribute,
-				SimpleFeatureType sourceSchema, LinkedList<String> layerList) {
+				SimpleFeatureType sourceSchema, LinkedList<String> layerList,
+				CoverageOptions options) {
 			this.delegate = delegate;
 			this.fb = new SimpleFeatureBuilder(targetSchema);
 
@@ -230,35 +356,190 @@ public class CreateFirmsCoverage implements FigisProcess{
 			this.layerPrefix = layerPrefix;
 			this.refAttribute = refAttribute;
 			this.layerList = layerList;
+			this.options = options;
+			this.overlay = OverlayEngines.create(options.engine, options.precision);
+			this.referenceCache = options.referenceCache? ReferenceLayerCache.getInstance() : null;
+			if(options.persistentMemo){
+				String key = FeatureCollectionCache.getKey(geoserverURL, layerPrefix, refAttribute, options.engine, String.valueOf(options.precision));
+				this.memo = new CoverageMemo(new File(StoreDirectory.getDirectory(MEMO_AREA), "firms-coverage-" + key + ".memo"),
+										   Long.getLong(CoverageMemo.TTL_PROPERTY, 86400000L));
+			}else if(options.memo){
+				this.memo = new CoverageMemo();
+			}
+			if(options.incrementalStore != null){
+				String key = FeatureCollectionCache.getKey(geoserverURL, layerPrefix, refAttribute, options.engine, String.valueOf(options.precision),
+														   Arrays.toString(options.simplifyTolerances));
+				try{
+					this.incremental = new IncrementalCoverage(new File(StoreDirectory.getDirectory(INCREMENTAL_AREA, options.incrementalStore), "firms-coverage-" + key + ".store"), targetSchema);
+				}catch(IOException e){
+					throw new ProcessException("Unable to open the incremental FIRMS coverage store", e);
+				}
+			}
 
-			this.layerRef = this.layerList.get(0);
-			this.processor = new FirmsCoverageProcessor(geoserverURL, layerPrefix, layerRef, sourceSchema);
+			if(!this.layerList.isEmpty()){
+				this.layerRef = this.layerList.get(0);
+				this.processor = this.createProcessor(layerRef);
+			}
+			
+			if(options.threads > 1){
+				this.executor = Executors.newFixedThreadPool(options.threads);
+			}
 
 		}
 		
 		public boolean hasNext() {
 			
 
-            while (next == null && delegate.hasNext()) {
-
-            	SimpleFeature sf = delegate.next();
-                
-            	//look if we should still rely on the same processor, if not change to get the appropriate FeatureSource
-            	String layer = (String) sf.getAttribute(refAttribute);
-            	if(!layer.equals(this.layerRef)){
-            		layerRef = layer;
-            		this.processor = new FirmsCoverageProcessor(geoserverURL, layerPrefix, layer, sourceSchema);
+            while (next == null) {
+            	if(!results.isEmpty()){
+            		next = results.removeFirst();
+            		
+            	}else if(!window.isEmpty() || pending != null || delegate.hasNext()){
+            		this.processBatch();
+            		
+            	}else if(incremental != null && !incremental.complete){
+            		next = this.nextUnchanged();
+            		
+            	}else{
+            		break;
             	}
-                
-                next = this.createFirmsCoverageFeature(sf);
-                fb.reset();
-                iterationIndex++;
             }
             
             return next != null;
 		}
+		
+		
+		/** Process the next batch of rows, and queue the resulting coverage features
+		 *  In concurrent mode, the window of upcoming batches is first filled (up to the look-ahead) and
+		 *  submitted to the pool, then the oldest batch is awaited, so that the features are delivered
+		 *  in the input order.
+		 * 
+		 */
+		private void processBatch(){
+			
+			while(window.size() < options.lookAhead && (pending != null || delegate.hasNext())){
+				List<SimpleFeature> rows = this.readBatch();
+				if(incremental != null){
+					rows = this.getChangedRows(rows);
+					if(rows.isEmpty()){
+						continue;
+					}
+				}
+				CoverageTask task = new CoverageTask(processor, rows, options.batchMaxFeatures, options.simplifyTolerances);
+				window.add(task);
+				if(executor != null){
+					executor.execute(task);
+				}else{
+					task.run();
+				}
+			}
+			
+			if(window.isEmpty()){
+				return; //only unchanged rows
+			}
+			CoverageTask task = window.removeFirst();
+			List<Geometry[]> geometries;
+			try{
+				geometries = task.get();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new ProcessException("Interrupted while computing the FIRMS coverage", e);
+			}catch(ExecutionException e){
+				if(e.getCause() instanceof RuntimeException){
+					throw (RuntimeException) e.getCause();
+				}
+				throw new ProcessException("Unable to compute the FIRMS coverage", e.getCause());
+			}
+			
+			for(int i = 0; i < task.rows.size(); i++){
+				SimpleFeature result = this.createFirmsCoverageFeature(task.rows.get(i), geometries.get(i));
+				if(result != null){
+					results.add(result);
+				}
+				if(incremental != null){
+					try{
+						incremental.write(task.rows.get(i), result);
+					}catch(IOException e){
+						throw new ProcessException("Unable to store the FIRMS coverage feature", e);
+					}
+				}
+				fb.reset();
+				iterationIndex++;
+			}
+		}
+		
+		
+		/** Get the new or changed rows of a batch (incremental mode)
+		 * 
+		 * @param rows
+		 * @return
+		 */
+		private List<SimpleFeature> getChangedRows(List<SimpleFeature> rows){
+			List<SimpleFeature> changed = new ArrayList<SimpleFeature>();
+			for(SimpleFeature row : rows){
+				if(!incremental.isUnchanged(row)){
+					changed.add(row);
+				}
+			}
+			return changed;
+		}
+		
+		
+		/** Get the next unchanged coverage feature from the previous coverage (incremental mode)
+		 * 
+		 * @return the next feature, null if there are no more unchanged features
+		 */
+		private SimpleFeature nextUnchanged(){
+			try{
+				return incremental.nextUnchanged();
+			}catch(IOException e){
+				throw new ProcessException("Unable to read the previous FIRMS coverage", e);
+			}
+		}
+		
+		
+		/** Read a batch of rows sharing a reference layer (at most the batch size)
+		 * 
+		 * @return
+		 */
+		private List<SimpleFeature> readBatch(){
+			
+			SimpleFeature sf = (pending != null)? pending : delegate.next();
+			pending = null;
+			
+			//look if we should still rely on the same processor, if not change to get the appropriate FeatureSource
+			String layer = (String) sf.getAttribute(refAttribute);
+			if(!layer.equals(this.layerRef)){
+				layerRef = layer;
+				this.processor = this.createProcessor(layer);
+			}
+			
+			List<SimpleFeature> rows = new ArrayList<SimpleFeature>();
+			rows.add(sf);
+			while(rows.size() < options.batchSize && delegate.hasNext()){
+				SimpleFeature row = delegate.next();
+				if(!layer.equals(row.getAttribute(refAttribute))){
+					pending = row; //first row of the next reference layer
+					break;
+				}
+				rows.add(row);
+			}
+			return rows;
+		}
 
 		
+		/** Create the coverage processor of a reference layer
+		 * 
+		 * @param layer
+		 * @return
+		 */
+		private FirmsCoverageProcessor createProcessor(String layer){
+			FirmsCoverageProcessor processor = new FirmsCoverageProcessor(geoserverURL, layerPrefix, layer, sourceSchema, overlay, referenceCache, options.localCatalog, memo);
+			processors.add(processor);
+			return processor;
+		}
+		
+		
 		public SimpleFeature next() throws NoSuchElementException {
 			  if (!hasNext()) {
 	                throw new NoSuchElementException("hasNext() returned false!");
@@ -272,7 +553,38 @@ public class CreateFirmsCoverage implements FigisProcess{
 		
 		public void close() {
 			delegate.close();
+			for(CoverageTask task : window){
+				task.cancel(true);
+			}
+			window.clear();
+			if(executor != null){
+				executor.shutdownNow();
+			}
+			
+			if(incremental != null){
+				try{
+					incremental.close();
+				}catch(IOException e){
+					logger.warn("Unable to save the incremental FIRMS coverage store", e);
+				}
+			}
+			if(memo != null){
+				try{
+					memo.save();
+				}catch(IOException e){
+					logger.warn("Unable to save the FIRMS coverage memo", e);
+				}
+			}
 			
+			long unions = 0;
+			for(FirmsCoverageProcessor processor : processors){
+				unions += processor.getUnions();
+				processor.release();
+			}
+			logger.info("FIRMS coverage: " + iterationIndex + " rows, " + unions + " union operations"
+						+ (delegate instanceof LayerGroupingIterator? ", " + ((LayerGroupingIterator) delegate).getSpills() + " grouping spills" : "")
+						+ (incremental != null? ", " + incremental.getReused() + " unchanged features reused" : "")
+						+ (memo != null? ", " + memo.getHits() + " memo hits (" + memo.size() + " entries)" : "") + (executor != null? ", " + options.threads + " threads" : "") + ". " + overlay);
 		}
 		
 		
@@ -282,11 +594,38 @@ public class CreateFirmsCoverage implements FigisProcess{
 		 * @return
 		 */
 		public SimpleFeature createFirmsCoverageFeature(SimpleFeature feature){
+			return this.createFirmsCoverageFeature(feature, processor.computeFirmsCoverageGeometry(feature));
+		}
+		
+		
+		/** Create the FIRMS coverage feature from the initial geometry-less data feature,
+		 *  and its coverage geometry
+		 * 
+		 * @param feature
+		 * @param geom
+		 * @return
+		 */
+		public SimpleFeature createFirmsCoverageFeature(SimpleFeature feature, Geometry geom){
+			List<SimpleFeature> features = Collections.singletonList(feature);
+			List<Geometry> geometries = Collections.singletonList(geom);
+			return this.createFirmsCoverageFeature(feature, processor.simplifyFirmsCoverageGeometries(features, geometries, options.simplifyTolerances).get(0));
+		}
+		
+		
+		/** Create the FIRMS coverage feature from the initial geometry-less data feature,
+		 *  its coverage geometry and the simplified geometries
+		 * 
+		 * @param feature
+		 * @param geoms the coverage geometry followed by the simplified geometries, null if there is no coverage
+		 * @return
+		 */
+		SimpleFeature createFirmsCoverageFeature(SimpleFeature feature, Geometry[] geoms){
 			
-			Geometry geom = processor.computeFirmsCoverageGeometry(feature);
 			SimpleFeature result = null;
-			if(geom !=null){
-				fb.add(geom);
+			if(geoms != null){
+				for(Geometry geom : geoms){
+					fb.add(geom);
+				}
 				fb.addAll(feature.getAttributes());
 				computeThematicCoverage(feature);
 				
@@ -358,5 +697,34 @@ public class CreateFirmsCoverage implements FigisProcess{
 	}
 	
 	
+	
+	/** Computation of the coverage geometries (and simplified geometries) of a batch of rows
+	 * 
+	 * @author eblondel
+	 *
+	 */
+	static class CoverageTask extends FutureTask<List<Geometry[]>>{
+		
+		List<SimpleFeature> rows;
+		
+		/** Constructor
+		 * 
+		 * @param processor
+		 * @param rows
+		 * @param maxFeatures
+		 * @param tolerances the simplification tolerances
+		 */
+		CoverageTask(final FirmsCoverageProcessor processor, final List<SimpleFeature> rows, final int maxFeatures, final double[] tolerances){
+			super(new Callable<List<Geometry[]>>(){
+				public List<Geometry[]> call() {
+					List<Geometry> geometries = processor.computeFirmsCoverageGeometries(rows, maxFeatures);
+					return processor.simplifyFirmsCoverageGeometries(rows, geometries, tolerances);
+				}
+			});
+			this.rows = rows;
+		}
+	}
+	
+	
 }
 		
\ No newline at end of file
@@ -1,19 +1,31 @@
 package org.fao.fi.figis.geoserver.wps.feature;
 
-import java.io.Serializable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
-import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
+import org.apache.log4j.Logger;
+import org.fao.fi.figis.geoserver.wps.utils.catalog.LocalCatalog;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.CascadedUnion;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngine;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.PrecisionOverlay;
+import org.fao.fi.figis.geoserver.wps.utils.wfs.ReferenceLayerCache;
+import org.fao.fi.figis.geoserver.wps.utils.wfs.ReferenceLayerCache.ReferenceLayer;
+import org.fao.fi.figis.geoserver.wps.utils.wfs.WFSDataStoreRegistry;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.data.wfs.WFSDataStoreFactory;
 import org.geotools.factory.CommonFactoryFinder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -21,17 +33,20 @@ import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.precision.EnhancedPrecisionOp;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
 
 
 /** Firms Geographic Coverage Processor
  *  Queries the reference layers, and computes the FIRMS geographic coverage.
+ *  A processor can be shared by several threads computing the coverage of different features.
  * 
  * @author eblondel
  *
  */
 public class FirmsCoverageProcessor {
 
+	private static Logger logger = Logger.getLogger(FirmsCoverageProcessor.class);
+	
 	private static String VALUES_SEPARATOR = ";"; //split by ";" ("," is reserved to comma-separated files)
 	
 	String geoserverUrl;
@@ -39,44 +54,142 @@ public class FirmsCoverageProcessor {
 	SimpleFeatureType sourceSchema;
 	String refLayer;
 	SimpleFeatureSource featureSource;
-	SimpleFeatureCollection collection;
+	OverlayEngine overlay;
+	ReferenceLayerCache referenceCache;
+	boolean localCatalog;
+	CoverageMemo memo;
+	Set<String> refGeoAttributes;
+	boolean leased = false;
+	long unions = 0;
 	
 	FilterFactory ff = CommonFactoryFinder.getFilterFactory();
+	WFSDataStoreRegistry registry = WFSDataStoreRegistry.getInstance();
 	
 	
 	public FirmsCoverageProcessor(String gsURL, String layerPrefix, String layerRef, SimpleFeatureType sourceSchema){
+		this(gsURL, layerPrefix, layerRef, sourceSchema, new PrecisionOverlay());
+	}
+	
+	
+	public FirmsCoverageProcessor(String gsURL, String layerPrefix, String layerRef, SimpleFeatureType sourceSchema, OverlayEngine overlay){
+		this(gsURL, layerPrefix, layerRef, sourceSchema, overlay, null);
+	}
+	
+	
+	/** Constructor
+	 * 
+	 * @param gsURL
+	 * @param layerPrefix
+	 * @param layerRef
+	 * @param sourceSchema
+	 * @param overlay
+	 * @param referenceCache the reference layer cache, null to query the reference layer for each feature
+	 */
+	public FirmsCoverageProcessor(String gsURL, String layerPrefix, String layerRef, SimpleFeatureType sourceSchema, OverlayEngine overlay,
+								  ReferenceLayerCache referenceCache){
+		this(gsURL, layerPrefix, layerRef, sourceSchema, overlay, referenceCache, false);
+	}
+	
+	
+	/** Constructor
+	 * 
+	 * @param gsURL
+	 * @param layerPrefix
+	 * @param layerRef
+	 * @param sourceSchema
+	 * @param overlay
+	 * @param referenceCache the reference layer cache, null to query the reference layer for each feature
+	 * @param localCatalog true to read the reference layer from the local GeoServer catalog when available
+	 */
+	public FirmsCoverageProcessor(String gsURL, String layerPrefix, String layerRef, SimpleFeatureType sourceSchema, OverlayEngine overlay,
+								  ReferenceLayerCache referenceCache, boolean localCatalog){
+		this(gsURL, layerPrefix, layerRef, sourceSchema, overlay, referenceCache, localCatalog, null);
+	}
+	
+	
+	/** Constructor
+	 * 
+	 * @param gsURL
+	 * @param layerPrefix
+	 * @param layerRef
+	 * @param sourceSchema
+	 * @param overlay
+	 * @param referenceCache the reference layer cache, null to query the reference layer for each feature
+	 * @param localCatalog true to read the reference layer from the local GeoServer catalog when available
+	 * @param memo the memo of coverage geometries by geo-code combination, null to compute each feature
+	 */
+	FirmsCoverageProcessor(String gsURL, String layerPrefix, String layerRef, SimpleFeatureType sourceSchema, OverlayEngine overlay,
+						   ReferenceLayerCache referenceCache, boolean localCatalog, CoverageMemo memo){
 		this.geoserverUrl = gsURL;
+		this.memo = memo;
+		this.localCatalog = localCatalog;
+		this.referenceCache = referenceCache;
 		this.layerPrefix = layerPrefix;
 		this.sourceSchema = sourceSchema;
 		this.refLayer = layerRef;
+		this.overlay = overlay;
 		initFeatureSource();
 	}
 	
 	
 	/** Init the FeatureSource to query reference layers
+	 *  In local catalog mode, the feature source is resolved from the local GeoServer catalog, if the
+	 *  layer is found there. Otherwise the WFS DataStore (and the feature source) is shared by all the
+	 *  processors, through the process-wide DataStore registry: the processor holds a lease on the DataStore
+	 *  until it is released.
 	 * 
 	 */
 	public void initFeatureSource(){
 		
 		String layerReference = this.getLayerReference();
 		try{
-			String wfsGetCap = this.geoserverUrl +"/ows?service=WFS&version=1.0.0&request=GetCapabilities";
-		
-			// use the WFS Datastore
-			Map<String, Serializable> params = new HashMap<String, Serializable>();
-			params.put(WFSDataStoreFactory.URL.key, wfsGetCap);
-			params.put(WFSDataStoreFactory.TIMEOUT.key, new Integer(60000));
-			params.put(WFSDataStoreFactory.FILTER_COMPLIANCE.key, new Integer(0));
-		
-			DataStore datastore = DataStoreFinder.getDataStore(params);
-			this.featureSource = datastore.getFeatureSource(layerReference);
+			if(localCatalog){
+				this.featureSource = LocalCatalog.getFeatureSource(layerPrefix, refLayer);
+				if(this.featureSource == null){
+					logger.info("Reference layer "+layerReference+" not found in the local catalog, using WFS");
+					this.localCatalog = false;
+				}
+			}
+			if(!localCatalog){
+				if(!leased){
+					registry.acquire(this.geoserverUrl);
+					leased = true;
+				}
+				this.featureSource = registry.getFeatureSource(this.geoserverUrl, layerReference);
+			}
 		
 		}catch(Exception e){
-			new RuntimeException("Unable to reach the feature source "+layerReference, e);
+			throw new RuntimeException("Unable to reach the feature source "+layerReference, e);
+		}
+	}
+	
+	
+	/** Release the WFS DataStore used by the processor
+	 *  (once released, the DataStore can be disposed by the registry when idle)
+	 * 
+	 */
+	public void release(){
+		if(leased){
+			registry.release(this.geoserverUrl);
+			leased = false;
 		}
 	}
 	
 	
+	/** Get the feature source of the reference layer
+	 *  (the WFS feature source is obtained from the registry each time, to keep the DataStore in use)
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private SimpleFeatureSource getFeatureSource() throws IOException{
+		if(!localCatalog){
+			return registry.getFeatureSource(this.geoserverUrl, this.getLayerReference());
+		}
+		return featureSource;
+	}
+	
+	
 	/** Get the layer reference
 	 *  Here the prefix is appended in the method, while it could be part of the layer name
 	 *  as specified in the coverage input data.
@@ -98,22 +211,25 @@ public class FirmsCoverageProcessor {
 	 *  
 	 *  For now, the methods compares the reference layer featuretype to the initial feature type
 	 *  Each attributedescriptor contained in the source feature type is added to the result
+	 *  The geo-columns are computed once per processor.
 	 * 
 	 * @return
 	 */
-	public Set<String> getRefGeoAttributes(){
-		Set<String> set = new HashSet<String>();
-		
-		List <AttributeDescriptor> refAttributes = this.sourceSchema.getAttributeDescriptors();
-		
-		SimpleFeatureType target = this.getTargetFeatureType();
-		for(AttributeDescriptor att : target.getAttributeDescriptors()){
-			if(refAttributes.contains(att)){
-				set.add(att.getLocalName());
+	public synchronized Set<String> getRefGeoAttributes(){
+		if(refGeoAttributes == null){
+			Set<String> set = new HashSet<String>();
+			
+			List <AttributeDescriptor> refAttributes = this.sourceSchema.getAttributeDescriptors();
+			
+			SimpleFeatureType target = this.getTargetFeatureType();
+			for(AttributeDescriptor att : target.getAttributeDescriptors()){
+				if(refAttributes.contains(att)){
+					set.add(att.getLocalName());
+				}
 			}
+			refGeoAttributes = Collections.unmodifiableSet(set);
 		}
-		
-		return set;
+		return refGeoAttributes;
 	}
 	
 	
@@ -132,47 +248,57 @@ public class FirmsCoverageProcessor {
 		//Generate a CQL filter
 		List<Filter> unitFilterList = new ArrayList<Filter>();
 		
-		for (String refGeoAtt : this.getRefGeoAttributes()){
+		for (Entry<String, List<String>> condition : this.getConditions(f).entrySet()){
 			
 			Filter unitFilter = null;
-			
-			//compute unit filter
-			String value = (String) f.getAttribute(refGeoAtt);
-			
-			if(value!=null){//check if a (list of) values is found for the refGeoAtt
-				
-				value = value.replaceAll(" ", ""); //remove spaces
-				String[] values = value.split(VALUES_SEPARATOR); 
+			String refGeoAtt = condition.getKey();
+			List<String> values = condition.getValue();
 				
-				if(values.length == 1){
-					//build filter a unique value
-					unitFilter = ff.equal(ff.property(refGeoAtt), ff.literal(value), true);
-				
-				}else{
-					//build filter for a list of values
-					List<Filter> list = new ArrayList<Filter>();
-					for(String val : values){
-						unitFilter = ff.equal(ff.property(refGeoAtt), ff.literal(val), true);
-						list.add(unitFilter);
-						
-					}
-					unitFilter = ff.or(list);
+			if(values.size() == 1){
+				//build filter a unique value
+				unitFilter = ff.equal(ff.property(refGeoAtt), ff.literal(values.get(0)), true);
+			
+			}else{
+				//build filter for a list of values
+				List<Filter> list = new ArrayList<Filter>();
+				for(String val : values){
+					unitFilter = ff.equal(ff.property(refGeoAtt), ff.literal(val), true);
+					list.add(unitFilter);
+					
 				}
+				unitFilter = ff.or(list);
 			}
 			
-			
 			//add to the list of filters
-			if(unitFilter != null){
-				unitFilterList.add(unitFilter);
-			}
-			
-		
+			unitFilterList.add(unitFilter);
 		}
 		
 		Filter filter = ff.and(unitFilterList);
 		return filter;
 	}
 	
+	
+	/** Get the code conditions of a coverage feature
+	 *  i.e. for each geo-column with a (list of) values, the accepted values
+	 * 
+	 * @param f
+	 * @return the accepted values, by geo-column
+	 */
+	Map<String, List<String>> getConditions(SimpleFeature f){
+		
+		Map<String, List<String>> conditions = new LinkedHashMap<String, List<String>>();
+		for (String refGeoAtt : this.getRefGeoAttributes()){
+			
+			String value = (String) f.getAttribute(refGeoAtt);
+			if(value!=null){//check if a (list of) values is found for the refGeoAtt
+				
+				value = value.replaceAll(" ", ""); //remove spaces
+				conditions.put(refGeoAtt, Arrays.asList(value.split(VALUES_SEPARATOR)));
+			}
+		}
+		return conditions;
+	}
+	
 	/** Get the reference layer feature type
 	 * 
 	 * @return
@@ -181,10 +307,10 @@ public class FirmsCoverageProcessor {
 		
 		SimpleFeatureType result = null;
 		try{		
-			result = featureSource.getSchema();
+			result = localCatalog? featureSource.getSchema() : registry.getSchema(this.geoserverUrl, this.getLayerReference());
 			
 		}catch(Exception e){
-			new RuntimeException("Unable to get the reference layer feature type", e);
+			throw new RuntimeException("Unable to get the reference layer feature type", e);
 		}
 	
 		return result;
@@ -206,12 +332,22 @@ public class FirmsCoverageProcessor {
 		
 		SimpleFeatureCollection result = null;
 		try{
-			Filter filter = this.createFilter(f);			
-			result = featureSource.getFeatures(filter);			
+			//resolve from the reference layer cache
+			if(referenceCache != null){
+				ReferenceLayer layer = localCatalog?
+						referenceCache.getLayer("local|" + this.getLayerReference(), featureSource, this.getRefGeoAttributes()) :
+						referenceCache.getLayer(this.geoserverUrl, this.getLayerReference(), this.getRefGeoAttributes());
+				if(layer != null){
+					return new ListFeatureCollection(layer.getSchema(), layer.getFeatures(this.getConditions(f)));
+				}
+			}
+			
+			Filter filter = this.createFilter(f);
+			result = this.getFeatureSource().getFeatures(filter);			
 			
 			
 		}catch(Exception e){
-			new RuntimeException("Unable to get the target collection", e);
+			throw new RuntimeException("Unable to get the target collection", e);
 		}
 	
 		return result;
@@ -226,38 +362,250 @@ public class FirmsCoverageProcessor {
 	 */
 	public Geometry computeFirmsCoverageGeometry(SimpleFeature feature){
 		
-		Geometry unionGeom = null;
+		SimpleFeatureCollection collection = this.getTargetFeatureCollection(feature);
+		return this.union(collection);
+	}
+	
+	
+	/** Compute the FIRMS coverage geometries of a batch of features (sharing the reference layer)
+	 *  Each distinct geo-code combination of the batch is computed once, unless already memoized.
+	 *  The reference features of the combinations to compute are fetched with a single query (OR of the
+	 *  feature filters), and then assigned locally to each combination. A batch query returning more
+	 *  reference features than the maximum is split in two halves, queried in turn.
+	 * 
+	 * @param features
+	 * @param maxFeatures the maximum number of reference features fetched for the batch
+	 * @return the geometries, in the order of the features
+	 */
+	public List<Geometry> computeFirmsCoverageGeometries(List<SimpleFeature> features, int maxFeatures){
 		
-		collection = this.getTargetFeatureCollection(feature);
+		//distinct geo-code combinations
+		List<String> keys = new ArrayList<String>();
+		Map<String, Geometry> geometries = new HashMap<String, Geometry>();
+		Map<String, SimpleFeature> missing = new LinkedHashMap<String, SimpleFeature>();
+		for(SimpleFeature feature : features){
+			String key = CoverageMemo.getKey(this.getLayerReference(), this.getConditions(feature));
+			keys.add(key);
+			if(geometries.containsKey(key) || missing.containsKey(key)){
+				continue;
+			}
+			if(memo != null && memo.contains(key)){
+				geometries.put(key, this.getFirmsCoverageGeometry(key, feature, null));
+			}else{
+				missing.put(key, feature);
+			}
+		}
+		
+		ReferenceLayer batch = null;
+		if(missing.size() > 1 && referenceCache == null){
+			batch = this.getBatchFeatures(new ArrayList<SimpleFeature>(missing.values()), maxFeatures);
+		}
+		
+		for(Entry<String, SimpleFeature> entry : missing.entrySet()){
+			geometries.put(entry.getKey(), this.getFirmsCoverageGeometry(entry.getKey(), entry.getValue(), batch));
+		}
+		
+		List<Geometry> result = new ArrayList<Geometry>();
+		for(String key : keys){
+			result.add(geometries.get(key));
+		}
+		return result;
+	}
+	
+	
+	/** Get the FIRMS coverage geometry of a feature, from the memo if any
+	 * 
+	 * @param key the memo key of the feature geo-code combination
+	 * @param feature
+	 * @param batch the reference features fetched for the batch of the feature, null to query them
+	 * @return a geometry
+	 */
+	private Geometry getFirmsCoverageGeometry(String key, final SimpleFeature feature, final ReferenceLayer batch){
+		if(memo == null){
+			return this.computeFirmsCoverageGeometry(feature, batch);
+		}
+		return memo.get(key, new Callable<Geometry>(){
+			public Geometry call(){
+				return computeFirmsCoverageGeometry(feature, batch);
+			}
+		});
+	}
+	
+	
+	/** Compute the FIRMS coverage geometry of a feature
+	 * 
+	 * @param feature
+	 * @param batch the reference features fetched for the batch of the feature, null to query them
+	 * @return a geometry
+	 */
+	private Geometry computeFirmsCoverageGeometry(SimpleFeature feature, ReferenceLayer batch){
+		if(batch == null){
+			return this.computeFirmsCoverageGeometry(feature);
+		}
+		SimpleFeatureCollection collection = new ListFeatureCollection(batch.getSchema(), batch.getFeatures(this.getConditions(feature)));
+		return this.union(collection);
+	}
+	
+	
+	/** Simplify the FIRMS coverage geometries of a batch of features (topology-preserving simplification)
+	 *  Each distinct geo-code combination of the batch is simplified once for each tolerance. The simplified
+	 *  geometries are memoized together with the coverage geometry (one memo entry by tolerance).
+	 * 
+	 * @param features
+	 * @param geometries the coverage geometries, in the order of the features
+	 * @param tolerances the simplification tolerances
+	 * @return for each feature, the coverage geometry followed by its simplified geometries
+	 * 		   (null if the feature has no coverage)
+	 */
+	public List<Geometry[]> simplifyFirmsCoverageGeometries(List<SimpleFeature> features, List<Geometry> geometries, double[] tolerances){
 		
-		if(collection.size() > 0){
+		List<Geometry[]> result = new ArrayList<Geometry[]>(features.size());
+		Map<String, Geometry[]> simplified = new HashMap<String, Geometry[]>();
+		for(int i = 0; i < features.size(); i++){
+			final Geometry geometry = geometries.get(i);
+			if(geometry == null){
+				result.add(null);
+				continue;
+			}
+			if(tolerances.length == 0){
+				result.add(new Geometry[]{ geometry });
+				continue;
+			}
 			
-			SimpleFeatureIterator it = collection.features();
-			try{
-				
-				//instantiate the unionGeom geometry
-				if(it.hasNext()){
-					unionGeom = (Geometry) it.next().getDefaultGeometryProperty().getValue();
-				}
-				
-				//union process
-				while(it.hasNext()){
-					
-					Geometry geom = (Geometry) it.next().getDefaultGeometryProperty().getValue();
-					
-					if(unionGeom !=null & geom !=null){//control in case of null unexpected geometries
-						unionGeom = EnhancedPrecisionOp.union(unionGeom, geom);
+			String key = CoverageMemo.getKey(this.getLayerReference(), this.getConditions(features.get(i)));
+			Geometry[] geoms = simplified.get(key);
+			if(geoms == null){
+				geoms = new Geometry[tolerances.length + 1];
+				geoms[0] = geometry;
+				for(int j = 0; j < tolerances.length; j++){
+					if(memo == null){
+						geoms[j + 1] = TopologyPreservingSimplifier.simplify(geometry, tolerances[j]);
+						continue;
 					}
+					final double tolerance = tolerances[j];
+					geoms[j + 1] = memo.get(CoverageMemo.getSimplifiedKey(key, tolerance), new Callable<Geometry>(){
+						public Geometry call(){
+							return TopologyPreservingSimplifier.simplify(geometry, tolerance);
+						}
+					});
 				}
-				
-			}finally{
-				if(it != null){
-					it.close();
+				simplified.put(key, geoms);
+			}
+			result.add(geoms);
+		}
+		return result;
+	}
+	
+	
+	/** Fetch the reference features of a batch of features
+	 * 
+	 * @param features
+	 * @param maxFeatures the maximum number of reference features fetched by query
+	 * @return the reference features indexed by code
+	 */
+	private ReferenceLayer getBatchFeatures(List<SimpleFeature> features, int maxFeatures){
+		try{
+			SimpleFeatureSource featureSource = this.getFeatureSource();
+			ReferenceLayer batch = new ReferenceLayer(featureSource.getSchema(), this.getRefGeoAttributes());
+			this.addBatchFeatures(batch, new HashSet<String>(), featureSource, features, maxFeatures);
+			return batch;
+			
+		}catch(IOException e){
+			throw new RuntimeException("Unable to get the batch target collection", e);
+		}
+	}
+	
+	
+	/** Fetch the reference features of a batch of features with a single query (OR of the feature filters)
+	 *  If the query returns more reference features than the maximum, the batch is split in two halves,
+	 *  fetched in turn. The reference features of a single feature are fetched whatever their number.
+	 * 
+	 * @param batch the batch layer to which the reference features are added
+	 * @param ids the IDs of the reference features already added
+	 * @param featureSource
+	 * @param features
+	 * @param maxFeatures the maximum number of reference features fetched by query
+	 * @throws IOException
+	 */
+	private void addBatchFeatures(ReferenceLayer batch, Set<String> ids, SimpleFeatureSource featureSource,
+								  List<SimpleFeature> features, int maxFeatures) throws IOException{
+		
+		List<Filter> filters = new ArrayList<Filter>();
+		for(SimpleFeature feature : features){
+			filters.add(this.createFilter(feature));
+		}
+		boolean limited = features.size() > 1;
+		Query query = new Query(featureSource.getSchema().getTypeName(), limited? ff.or(filters) : filters.get(0));
+		if(limited){
+			query.setMaxFeatures(maxFeatures + 1);
+		}
+		
+		List<SimpleFeature> fetched = new ArrayList<SimpleFeature>();
+		SimpleFeatureIterator it = featureSource.getFeatures(query).features();
+		try{
+			while(it.hasNext()){
+				if(limited && fetched.size() == maxFeatures){
+					fetched = null;
+					break;
+				}
+				fetched.add(it.next());
+			}
+		}finally{
+			it.close();
+		}
+		
+		if(fetched == null){
+			int half = features.size() / 2;
+			logger.info("Batch of "+features.size()+" rows exceeds "+maxFeatures+" reference features, it is split in batches of "+half+" and "+(features.size() - half)+" rows");
+			this.addBatchFeatures(batch, ids, featureSource, features.subList(0, half), maxFeatures);
+			this.addBatchFeatures(batch, ids, featureSource, features.subList(half, features.size()), maxFeatures);
+			return;
+		}
+		for(SimpleFeature feature : fetched){
+			if(ids.add(feature.getID())){
+				batch.add(feature);
+			}
+		}
+	}
+	
+	
+	/** Union the geometries of a reference collection
+	 *  The union is cascaded: geometries are grouped by proximity in an envelope tree, and unioned
+	 *  bottom-up, instead of being merged one by one into a growing geometry.
+	 * 
+	 * @param collection
+	 * @return the union geometry, null if the collection is empty
+	 */
+	private Geometry union(SimpleFeatureCollection collection){
+		
+		List<Geometry> geometries = new ArrayList<Geometry>();
+		SimpleFeatureIterator it = collection.features();
+		try{
+			while(it.hasNext()){
+				Geometry geom = (Geometry) it.next().getDefaultGeometry();
+				if(geom != null){ //control in case of null unexpected geometries
+					geometries.add(overlay.prepare(geom));
 				}
 			}
+		}finally{
+			it.close();
 		}
 		
+		CascadedUnion cascadedUnion = new CascadedUnion(overlay);
+		Geometry unionGeom = cascadedUnion.union(geometries);
+		synchronized(this){
+			unions += cascadedUnion.getUnions();
+		}
 		return unionGeom;
 	}
 	
+	
+	/** Get the number of union operations performed by the processor
+	 * 
+	 * @return
+	 */
+	public synchronized long getUnions(){
+		return this.unions;
+	}
+	
 }
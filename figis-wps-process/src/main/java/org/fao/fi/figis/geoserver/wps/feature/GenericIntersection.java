@@ -1,18 +1,49 @@
 package org.fao.fi.figis.geoserver.wps.feature;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.fao.fi.figis.geoserver.wps.FigisProcess;
+import org.fao.fi.figis.geoserver.wps.utils.catalog.LocalCatalog;
+import org.fao.fi.figis.geoserver.wps.utils.csquare.CsquareGrid;
+import org.fao.fi.figis.geoserver.wps.utils.csquare.CsquareUtils;
+import org.fao.fi.figis.geoserver.wps.utils.csquare.SpaceFillingCurve;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.CascadedUnion;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.DecomposedGeometry;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngine;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngines;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureCollectionCache;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore;
+import org.fao.fi.figis.geoserver.wps.utils.store.StoreDirectory;
+import org.geotools.data.Query;
+import org.geotools.data.QueryCapabilities;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.store.ContentFeatureCollection;
 import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
 import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.feature.collection.SortedSimpleFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.feature.visitor.MaxVisitor;
+import org.geotools.geometry.jts.GeometryClipper;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.process.ProcessException;
 import org.geotools.process.factory.DescribeParameter;
@@ -27,16 +58,20 @@ import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.sort.SortBy;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.operation.MathTransform;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.MultiLineString;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
-import com.vividsolutions.jts.precision.EnhancedPrecisionOp;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 /** A generic intersection process 
  * 
@@ -53,21 +88,137 @@ public class GenericIntersection implements FigisProcess{
 	
 	static final String ECKERT_IV_WKT = "PROJCS[\"World_Eckert_IV\",GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137.0,298.257223563]],PRIMEM[\"Greenwich\",0.0],UNIT[\"Degree\",0.0174532925199433]],PROJECTION[\"Eckert_IV\"],PARAMETER[\"Central_Meridian\",0.0],UNIT[\"Meter\",1.0]]";
 
-	private static String INT_OP = "_x_";
-	private static String INT_PREFIX = "L";
-	private static String AREA_ATT_NAME = "INT_AREA";
+	static final String INT_OP = "_x_";
+	static final String INT_PREFIX = "L";
+	static final String AREA_ATT_NAME = "INT_AREA";
+	static final String TILE_ATT_NAME = "INT_TILE";
+	static final String KEY_ATT_SUFFIX = "_KEY";
+	static final String PCT_ATT_SUFFIX = "_PCT";
+	static final String PAGE_EXTENSION = ".page";
+	static final String CACHE_AREA = "cache";
+	static final String PAGE_AREA = "pages";
+	static final int SWEEP_MIN_SIZE = 1000;
+	static final int SWEEP_MAX_SIZE = 50000;
+	static final double DEGREE_LENGTH = 111320; //approximate length of a degree (in meters) at the equator
+	
+	
+	/** JoinStrategy
+	 *  Defines how the candidate pairs of features are found
+	 *  - INDEX: each feature of the first collection queries the intersecting features of the second collection
+	 *  - SWEEP: both collections are loaded, sorted by minX, and joined with a single plane sweep
+	 *  - AUTO: plane sweep when both collections are large enough for the per-feature queries to be costly,
+	 *    and small enough to be held in memory (50000 features in total), index queries otherwise
+	 *  AUTO is the default. SWEEP forces the plane sweep whatever the collection sizes.
+	 *
+	 */
+	public enum JoinStrategy{
+		
+		AUTO, INDEX, SWEEP;
+		
+		/** Get the join strategy from a parameter value
+		 * 
+		 * @param value
+		 * @return
+		 */
+		public static JoinStrategy fromValue(String value){
+			try{
+				return JoinStrategy.valueOf(value.trim().toUpperCase());
+			}catch(IllegalArgumentException e){
+				throw new IllegalArgumentException("Unknown join strategy "+value);
+			}
+		}
+	}
+	
+	
+	/** ValidationPolicy
+	 *  Defines how the intersection geometries are validated (and repaired with a zero-width buffer)
+	 *  - ALWAYS: each intersection geometry is checked once, as a whole (all its components are kept)
+	 *  - FAST: same as ALWAYS, except for intersections known to be valid (contained pass-throughs, rectangle clips)
+	 *  - NEVER: intersections are neither checked nor repaired
+	 *  - REPAIR_ON_WRITE: only the output geometry is checked, once, when the output feature is written
+	 *    (tile fragments are not checked before being merged)
+	 *
+	 */
+	public enum ValidationPolicy{
+		
+		ALWAYS, FAST, NEVER, REPAIR_ON_WRITE;
+		
+		/** Get the validation policy from a parameter value (e.g. "fast", "repair-on-write")
+		 * 
+		 * @param value
+		 * @return
+		 */
+		public static ValidationPolicy fromValue(String value){
+			try{
+				return ValidationPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+			}catch(IllegalArgumentException e){
+				throw new IllegalArgumentException("Unknown validation policy "+value);
+			}
+		}
+	}
 
 	
 	@DescribeResult(name="result", description="output result")
 	 public SimpleFeatureCollection execute(
 			 @DescribeParameter(name="data 1",description="A first geometry feature collection") SimpleFeatureCollection features1,
-			 @DescribeParameter(name="data 2",description="A second geometry feature collection") SimpleFeatureCollection features2
+			 @DescribeParameter(name="data 2",description="A second geometry feature collection") SimpleFeatureCollection features2,
+			 @DescribeParameter(name="tileSize",description="Tile size (c-square resolution in decimal degrees, e.g. 10) used to partition the intersections in tiles. "
+			 										 +"If not specified, the intersections are not tiled", min=0) Double tileSize,
+			 @DescribeParameter(name="mergeTiles",description="Merge the tile fragments of each intersection (default), or keep one feature per tile", min=0) Boolean mergeTiles,
+			 @DescribeParameter(name="tileThreads",description="Number of threads used to intersect the tiles (default is 1)", min=0) Integer tileThreads,
+			 @DescribeParameter(name="precision",description="Precision grid size (e.g. 1e-7 for decimal degrees) to which geometries are snapped before overlay. "
+			 										 +"If not specified, the floating precision is used (or the precision configured for the fixed engine)", min=0) Double precision,
+			 @DescribeParameter(name="cacheName",description="Name of the server cache (letters, digits, '_' and '-') where intersection results are cached. "
+			 										 +"Caches are located in the server store directory. If not specified, results are not cached", min=0) String cacheName,
+			 @DescribeParameter(name="cacheVersionAttribute",description="Version or last-modified attribute of the inputs, used to identify the cached results", min=0) String cacheVersionAttribute,
+			 @DescribeParameter(name="cacheMaxEntries",description="Maximum number of cached results (default is 10)", min=0) Integer cacheMaxEntries,
+			 @DescribeParameter(name="areaMatrix",description="Return only the area matrix (L1_KEY, L2_KEY, INT_AREA, L1_PCT, L2_PCT), without the intersection geometries", min=0) Boolean areaMatrix,
+			 @DescribeParameter(name="key1",description="Key attribute of the first collection in the area matrix (default is the feature ID)", min=0) String key1,
+			 @DescribeParameter(name="key2",description="Key attribute of the second collection in the area matrix (default is the feature ID)", min=0) String key2,
+			 @DescribeParameter(name="validation",description="Validation policy of the intersection geometries: always (default), fast, never, repair-on-write", min=0) String validation,
+			 @DescribeParameter(name="filter1",description="CQL filter applied to the first collection", min=0) String filter1,
+			 @DescribeParameter(name="filter2",description="CQL filter applied to the second collection", min=0) String filter2,
+			 @DescribeParameter(name="startIndex",description="Paged mode: index of the first feature of the first collection to process (features are processed by ID order, unless an order is specified)", min=0) Integer startIndex,
+			 @DescribeParameter(name="maxFeatures",description="Paged mode: maximum number of features of the first collection to process", min=0) Integer maxFeatures,
+			 @DescribeParameter(name="pageStore",description="Paged mode: name of the server page store (letters, digits, '_' and '-') where the completed pages are stored, "
+			 										 +"so that a job can be resumed. Page stores are located in the server store directory", min=0) String pageStore,
+			 @DescribeParameter(name="order",description="Order in which the features of the first collection are processed: hilbert or zorder key of their envelope centre. "
+			 										 +"If not specified, the source order is used", min=0) String order,
+			 @DescribeParameter(name="join",description="Join strategy: auto (default, sweep for collections of 1000 to 50000 features in total), index (per-feature queries) or sweep (plane sweep of both collections, loaded in memory)", min=0) String join,
+			 @DescribeParameter(name="minArea",description="Minimum area (approximate, in square meters) of the polygon intersections. Smaller intersections (slivers) are dropped", min=0) Double minArea,
+			 @DescribeParameter(name="minFraction",description="Minimum fraction (between 0 and 1) of the smaller source feature area covered by the polygon intersections. Smaller intersections (slivers) are dropped", min=0) Double minFraction,
+			 @DescribeParameter(name="percentages",description="Add the percentages of the source feature areas covered by the intersection (L1_PCT, L2_PCT)", min=0) Boolean percentages,
+			 @DescribeParameter(name="maxVertices",description="Maximum number of vertices of a geometry in an overlay operation. More complex geometries are decomposed "
+			 										 +"in pieces (quadtree), and the piece results are reassembled. If not specified, geometries are not decomposed", min=0) Integer maxVertices,
+			 @DescribeParameter(name="engine",description="Overlay engine: default (floating precision), fixed (requires a precision) or snap. If not specified, the fixed engine is used when a precision is given, otherwise the engine configured by the figis.overlay.engine system property (with the figis.overlay.precision system property for the fixed engine), or else the default one", min=0) String engine
 			){
+		
+		//identify the inputs (before any reprojection)
+		String[] fingerprint = null;
+		File cacheDirectory = (cacheName != null)? StoreDirectory.getDirectory(CACHE_AREA, cacheName) : null;
+		File pageDirectory = (pageStore != null)? StoreDirectory.getDirectory(PAGE_AREA, pageStore) : null;
+		if(cacheDirectory != null || pageDirectory != null){
+			try{
+				fingerprint = new String[]{ getFingerprint(features1, cacheVersionAttribute), getFingerprint(features2, cacheVersionAttribute) };
+			}catch(IOException e){
+				throw new ProcessException("Unable to identify the intersection inputs", e);
+			}
+		}
+		
+		//attribute filters
+		Filter attributeFilter1 = parseFilter(filter1);
+		Filter attributeFilter2 = parseFilter(filter2);
+		if(attributeFilter1 != null){
+			features1 = features1.subCollection(attributeFilter1);
+		}
 		   
         //check input CRS
 		CoordinateReferenceSystem inputCRS1 = features1.getSchema().getCoordinateReferenceSystem();
 		CoordinateReferenceSystem inputCRS2 = features2.getSchema().getCoordinateReferenceSystem();
         if(!CRS.equalsIgnoreMetadata(inputCRS1, inputCRS2)){
+        	if(attributeFilter2 != null){
+        		features2 = features2.subCollection(attributeFilter2); //reproject only the relevant features
+        	}
         	try{
         		ReprojectProcess reproject = new ReprojectProcess();
         		features2 = reproject.execute(features2, inputCRS2, inputCRS1);
@@ -77,10 +228,382 @@ public class GenericIntersection implements FigisProcess{
             }
         }
         
-        return new GenericIntersectionFeatureCollection(features1, features2);
+        //options
+        IntersectionOptions options = new IntersectionOptions();
+        options.precision = OverlayEngines.getPrecision(engine, precision);
+        options.engine = OverlayEngines.getName(engine, precision);
+        OverlayEngines.create(options.engine, options.precision); //check the overlay engine
+        if(maxVertices != null){
+        	if(maxVertices < 4){
+        		throw new IllegalArgumentException("The maximum number of vertices must be at least 4");
+        	}
+        	options.maxVertices = maxVertices;
+        }
+        if(percentages != null && percentages){
+        	if(!isPolygonal(features1) || !isPolygonal(features2)){
+        		throw new IllegalArgumentException("The area percentages require Polygon feature collections");
+        	}
+        	options.percentages = true;
+        }
+        if(minArea != null || minFraction != null){
+        	if((minArea != null && minArea < 0) || (minFraction != null && (minFraction < 0 || minFraction > 1))){
+        		throw new IllegalArgumentException("The minimum area must be positive, and the minimum fraction between 0 and 1");
+        	}
+        	options.minArea = minArea;
+        	options.minFraction = minFraction;
+        	options.geographic = inputCRS1 instanceof GeographicCRS;
+        }
+        options.filter1 = attributeFilter1;
+        options.filter2 = attributeFilter2;
+        if(order != null){
+        	options.order = SpaceFillingCurve.Type.fromValue(order);
+        	SpaceFillingCurve curve = (inputCRS1 instanceof GeographicCRS)? SpaceFillingCurve.geographic(options.order)
+        								: new SpaceFillingCurve(options.order, features1.getBounds(), SpaceFillingCurve.DEFAULT_ORDER);
+        	features1 = new SpatiallyOrderedFeatureCollection(features1, curve);
+        }
+        if(startIndex != null || maxFeatures != null){
+        	if((startIndex != null && startIndex < 0) || (maxFeatures != null && maxFeatures < 1)){
+        		throw new IllegalArgumentException("Invalid page: the start index must be positive, and the max features strictly positive");
+        	}
+        	options.startIndex = (startIndex != null)? startIndex : 0;
+        	options.maxFeatures = maxFeatures;
+        	
+        	//stable order of the first collection, so that the pages are disjoint
+        	if(options.order == null){
+        		SimpleFeatureCollection page = getStorePage(features1, attributeFilter1, options.startIndex, options.maxFeatures);
+        		if(page != null){
+        			features1 = page;
+        			options.storePaged = true;
+        		}else{
+        			features1 = new SortedSimpleFeatureCollection(features1, new SortBy[]{ SortBy.NATURAL_ORDER });
+        		}
+        	}
+        }else if(pageDirectory != null){
+        	throw new IllegalArgumentException("The page store requires a page (startIndex and/or maxFeatures)");
+        }
+        if(validation != null){
+        	options.validation = ValidationPolicy.fromValue(validation);
+        }
+        if(areaMatrix != null && areaMatrix){
+        	if(!isPolygonal(features1) || !isPolygonal(features2)){
+        		throw new IllegalArgumentException("The area matrix requires Polygon feature collections");
+        	}
+        	if(key1 != null && features1.getSchema().getDescriptor(key1) == null){
+        		throw new IllegalArgumentException("Unknown key attribute "+key1+" in the first collection");
+        	}
+        	if(key2 != null && features2.getSchema().getDescriptor(key2) == null){
+        		throw new IllegalArgumentException("Unknown key attribute "+key2+" in the second collection");
+        	}
+        	options.areaMatrix = true;
+        	options.key1 = key1;
+        	options.key2 = key2;
+        }
+        if(tileSize != null){
+        	if(!(inputCRS1 instanceof GeographicCRS)){
+        		throw new IllegalArgumentException("The tiled mode requires geographic input data");
+        	}
+        	if(!CsquareUtils.isValidResolution(tileSize)){
+        		throw new IllegalArgumentException("The input tile size is not a valid c-square resolution");
+        	}
+        	options.tileSize = tileSize;
+        	if(mergeTiles != null){
+        		options.mergeTiles = mergeTiles;
+        	}
+        	if(tileThreads != null && tileThreads > 1){
+        		options.tileThreads = tileThreads;
+        	}
+        }
+        
+        JoinStrategy joinStrategy = (join != null)? JoinStrategy.fromValue(join) : JoinStrategy.AUTO;
+        if(joinStrategy == JoinStrategy.SWEEP && (options.isPaged() || options.order != null)){
+        	throw new IllegalArgumentException("The sweep join cannot be used with the paged mode or an order");
+        }
+        options.sweepJoin = (joinStrategy == JoinStrategy.SWEEP)
+        				|| (joinStrategy == JoinStrategy.AUTO && !options.isPaged() && options.order == null && isSweepPreferred(features1, features2));
+        
+        SimpleFeatureCollection result = new GenericIntersectionFeatureCollection(features1, features2, options);
+        
+        //stored page
+        if(pageDirectory != null){
+        	try{
+        		String key = FeatureCollectionCache.getKey(fingerprint[0], fingerprint[1], options.getSignature());
+        		FeatureFileStore page = new FeatureFileStore(new File(pageDirectory, key + PAGE_EXTENSION));
+        		if(page.exists()){
+        			logger.info("Resuming from stored page "+page.getFile().getName());
+        		}else{
+        			page.write(result);
+        			logger.info("Stored page "+page.getFile().getName());
+        		}
+        		return page.getFeatures();
+        		
+        	}catch(IOException e){
+        		throw new ProcessException("Unable to store the intersection page", e);
+        	}
+        }
+        
+        //cached result
+        if(cacheDirectory != null){
+        	try{
+        		FeatureCollectionCache cache = new FeatureCollectionCache(cacheDirectory, cacheMaxEntries != null? cacheMaxEntries : 10, 0);
+        		String key = FeatureCollectionCache.getKey(fingerprint[0], fingerprint[1], options.getSignature());
+        		SimpleFeatureCollection cached = cache.get(key);
+        		if(cached == null){
+        			cached = cache.put(key, result);
+        		}
+        		result = cached;
+        		
+        	}catch(IOException e){
+        		throw new ProcessException("Unable to get the cached intersection result", e);
+        	}
+        }
+        
+        return result;
 	};
 	
 	
+	/** Indicates if the plane sweep join is preferred to index queries, given the input sizes
+	 *  i.e. when both collections are large enough for per-feature queries to be costly,
+	 *  and small enough to be loaded in memory
+	 * 
+	 * @param features1
+	 * @param features2
+	 * @return
+	 */
+	static boolean isSweepPreferred(SimpleFeatureCollection features1, SimpleFeatureCollection features2){
+		int size1 = features1.size();
+		int size2 = features2.size();
+		return size1 >= SWEEP_MIN_SIZE && size2 >= SWEEP_MIN_SIZE && (long) size1 + size2 <= SWEEP_MAX_SIZE;
+	}
+	
+	
+	/** Get a page of the first collection, queried from its source store
+	 *  The sort (natural order), start index and max features are pushed down to the store of the local catalog
+	 *  layer of the collection, so that a page does not require to sort and skip the whole collection. This is done
+	 *  only when the collection is known to be read from this layer (possibly restricted by the attribute filter),
+	 *  i.e. when it is a data store collection with the schema and the feature count of the filtered layer, and when
+	 *  the store supports offsets and sorting. Other collections (in memory, reprojected, retyped...) are paged as given.
+	 * 
+	 * @param features
+	 * @param filter the attribute filter applied to the collection, null for no filter
+	 * @param startIndex
+	 * @param maxFeatures
+	 * @return the page, null if it cannot be queried from the source store
+	 */
+	static SimpleFeatureCollection getStorePage(SimpleFeatureCollection features, Filter filter, int startIndex, Integer maxFeatures){
+		if(!(features instanceof ContentFeatureCollection)){
+			return null; //not read from a data store
+		}
+		try{
+			SimpleFeatureSource source = LocalCatalog.getFeatureSource(features.getSchema().getName());
+			if(source == null || !source.getSchema().equals(features.getSchema())){
+				return null; //not a layer of the local catalog
+			}
+			SortBy[] sort = new SortBy[]{ SortBy.NATURAL_ORDER };
+			QueryCapabilities capabilities = source.getQueryCapabilities();
+			if(!capabilities.isOffsetSupported() || !capabilities.supportsSorting(sort)){
+				return null;
+			}
+			
+			Query query = new Query(source.getSchema().getTypeName(), (filter != null)? filter : Filter.INCLUDE);
+			int count = source.getCount(query);
+			if(count < 0 || count != features.size()){
+				return null; //not the (filtered) layer
+			}
+			query.setSortBy(sort);
+			query.setStartIndex(startIndex);
+			if(maxFeatures != null){
+				query.setMaxFeatures(maxFeatures);
+			}
+			return source.getFeatures(query);
+			
+		}catch(IOException e){
+			logger.warn("Unable to query the page from the source store, the page is read from the collection", e);
+			return null;
+		}
+	}
+	
+	
+	/** Get a cheap planar estimate of a geometry area
+	 *  For geographic data, the area in square degrees is converted to square meters at the latitude of the geometry centre.
+	 *  For projected data, the planar area is returned as it is.
+	 * 
+	 * @param geometry
+	 * @param geographic
+	 * @return
+	 */
+	static double getPlanarAreaEstimate(Geometry geometry, boolean geographic){
+		double area = geometry.getArea();
+		if(geographic){
+			double lat = geometry.getEnvelopeInternal().centre().y;
+			area = area * DEGREE_LENGTH * DEGREE_LENGTH * Math.cos(Math.toRadians(lat));
+		}
+		return area;
+	}
+	
+	
+	/** Parse a CQL filter parameter
+	 * 
+	 * @param cql
+	 * @return the filter, null if no filter is specified
+	 */
+	static Filter parseFilter(String cql){
+		if(cql == null || cql.trim().length() == 0){
+			return null;
+		}
+		try{
+			return ECQL.toFilter(cql);
+		}catch(CQLException e){
+			throw new IllegalArgumentException("Invalid CQL filter "+cql, e);
+		}
+	}
+	
+	
+	/** Indicates if a collection is a Polygon feature collection
+	 * 
+	 * @param collection
+	 * @return
+	 */
+	static boolean isPolygonal(SimpleFeatureCollection collection){
+		Class<?> binding = collection.getSchema().getGeometryDescriptor().getType().getBinding();
+		return binding.equals(Polygon.class) || binding.equals(MultiPolygon.class);
+	}
+	
+	
+	/** Get the fingerprint of an input collection, made of its type name, feature count, bounds,
+	 *  and the maximum value of its version attribute (if any)
+	 * 
+	 * @param collection
+	 * @param versionAttribute
+	 * @return
+	 * @throws IOException
+	 */
+	static String getFingerprint(SimpleFeatureCollection collection, String versionAttribute) throws IOException{
+		
+		StringBuilder fingerprint = new StringBuilder(collection.getSchema().getTypeName());
+		fingerprint.append("|").append(collection.size());
+		fingerprint.append("|").append(collection.getBounds());
+		
+		if(versionAttribute != null && collection.getSchema().getDescriptor(versionAttribute) != null){
+			MaxVisitor visitor = new MaxVisitor(versionAttribute);
+			collection.accepts(visitor, null);
+			fingerprint.append("|").append(visitor.getResult().getValue());
+		}
+		return fingerprint.toString();
+	}
+	
+	
+	/** Add the attribute descriptors of an input layer to an intersection feature type builder.
+	 *  Attributes of a raw layer are prefixed by L{dim}_, while attributes of a layer produced by
+	 *  an intersection process are kept as they are.
+	 * 
+	 * @param tb
+	 * @param layerSchema
+	 * @param dim the dimension of the layer
+	 * @return the dimension reached once the layer attributes are added
+	 */
+	static int addLayerAttributes(SimpleFeatureTypeBuilder tb, SimpleFeatureType layerSchema, int dim){
+		
+		boolean intersection = isIntersection(layerSchema);
+		if(!intersection){
+			tb.add(INT_PREFIX + dim + "_REF", String.class);
+		}	
+		
+		for (AttributeDescriptor att : layerSchema.getAttributeDescriptors()) {
+			if (isLayerAttribute(att)){
+				tb.minOccurs(att.getMinOccurs());
+				tb.maxOccurs(att.getMaxOccurs());
+				tb.restrictions(att.getType().getRestrictions());
+				
+				String attName = att.getLocalName();
+				if(!isIntersectionMeasure(attName)){ // handle intersection area & percentage attributes
+					if(intersection){ //the input is an intersection
+						if(attName.startsWith(INT_PREFIX)){
+							tb.add(attName, att.getType().getBinding());			
+							int index = Integer.parseInt(attName.substring(INT_PREFIX.length(), INT_PREFIX.length()+1));
+							if(dim < index){
+								dim = dim+1;
+							}
+						}
+					}else{
+						tb.add(INT_PREFIX + dim + "_"+ attName, att.getType().getBinding());
+					}
+				}
+			}
+		}
+		
+		return dim;
+	}
+	
+	
+	/** Add the attribute values of an input feature to an intersection feature builder
+	 * 
+	 * @param fb
+	 * @param feature
+	 */
+	static void addAttributeValues(SimpleFeatureBuilder fb, SimpleFeature feature) {
+		
+		boolean intersection = isIntersection(feature.getFeatureType());
+		if(!intersection){
+			fb.add(feature.getFeatureType().getName().getLocalPart());
+		}
+		
+		for (AttributeDescriptor ad : feature.getFeatureType().getAttributeDescriptors()) {
+			if(isLayerAttribute(ad)){
+				if(intersection){
+					if(!isIntersectionMeasure(ad.getLocalName())){
+						fb.add(feature.getAttribute(ad.getLocalName()));
+					}
+				}else{
+					fb.add(feature.getAttribute(ad.getLocalName()));
+				}	
+			}
+		}
+	}
+	
+	
+	/** Identifies if a feature type is a product of an intersection process or not
+	 * 
+	 * @param schema
+	 * @return
+	 */
+	static boolean isIntersection(SimpleFeatureType schema){
+		
+		boolean result = false;
+		for (AttributeDescriptor att : schema.getAttributeDescriptors()) {
+			if(!(att instanceof GeometryDescriptor)){
+				if(att.getLocalName().startsWith(INT_PREFIX)){
+					result = true;
+				} 
+			}
+		}
+		return result;
+	}
+	
+	
+	/** Identifies if an attribute is a measure computed by an intersection (area, percentages),
+	 *  which is not carried to a further intersection
+	 * 
+	 * @param attName
+	 * @return
+	 */
+	static boolean isIntersectionMeasure(String attName){
+		return attName.equalsIgnoreCase(AREA_ATT_NAME) || attName.matches(INT_PREFIX + "\\d+" + PCT_ATT_SUFFIX);
+	}
+	
+	
+	/** Identifies if an attribute of an input layer has to be carried to the intersection
+	 * 
+	 * @param att
+	 * @return
+	 */
+	static boolean isLayerAttribute(AttributeDescriptor att){
+		return !(att instanceof GeometryDescriptor) &&
+				!att.getLocalName().equals("description") &&
+				!att.getLocalName().equals("name") &&
+				!att.getLocalName().equals("boundedBy");
+	}
+	
+	
 	
 	
 	
@@ -94,6 +617,7 @@ public class GenericIntersection implements FigisProcess{
 
 		
 		SimpleFeatureCollection features;
+		IntersectionOptions options;
 
 		Class<?> geomBinding;
 		SimpleFeatureType schema;
@@ -104,10 +628,12 @@ public class GenericIntersection implements FigisProcess{
 		 * 
 		 * @param delegate
 		 * @param features
+		 * @param options
 		 */
-		protected GenericIntersectionFeatureCollection(SimpleFeatureCollection delegate, SimpleFeatureCollection features) {
+		protected GenericIntersectionFeatureCollection(SimpleFeatureCollection delegate, SimpleFeatureCollection features, IntersectionOptions options) {
 			super(delegate);
 			this.features = features;
+			this.options = options;
 			this.geomBinding = this.getExpectedGeometryBinding();
 			this.dataGeomName = features.getSchema().getGeometryDescriptor().getLocalName();
 			
@@ -115,82 +641,35 @@ public class GenericIntersection implements FigisProcess{
 			// SimpleFeatureType & SimpleFeatureBuilder
     		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();   	 		
     		
-    		//add geometry attribute
-    		tb.setCRS(delegate.getSchema().getCoordinateReferenceSystem());
-    		tb.add(dataGeomName, geomBinding);	
-            
-    		//add attribute descriptors from layer 1
-    		int dim = 1;
-    		boolean intersection1 = isIntersection(delegate);
-    		if(!intersection1){
-    			tb.add(INT_PREFIX + dim + "_REF", String.class);
-    		}	
-    		
-    		for (AttributeDescriptor att : delegate.getSchema().getAttributeDescriptors()) {        		
+    		if(options.areaMatrix){
+    			//area matrix (without geometry)
+    			tb.add(INT_PREFIX + 1 + KEY_ATT_SUFFIX, String.class);
+    			tb.add(INT_PREFIX + 2 + KEY_ATT_SUFFIX, String.class);
+    			tb.add(AREA_ATT_NAME, Double.class);
+    			tb.add(INT_PREFIX + 1 + PCT_ATT_SUFFIX, Double.class);
+    			tb.add(INT_PREFIX + 2 + PCT_ATT_SUFFIX, Double.class);
     			
-    			if (!(att instanceof GeometryDescriptor)
-    				&&
-                    !att.getLocalName().equals("description") &&
-                    !att.getLocalName().equals("name") &&
-                    !att.getLocalName().equals("boundedBy")){
-    				tb.minOccurs(att.getMinOccurs());
-    				tb.maxOccurs(att.getMaxOccurs());
-    				tb.restrictions(att.getType().getRestrictions());
-    				
-					String attName = att.getLocalName();
-					if(!attName.equalsIgnoreCase(AREA_ATT_NAME)){ // handle intersection area attribute 
-						if(intersection1){ //the input 1 is an intersection
-							if(attName.startsWith(INT_PREFIX)){
-								tb.add(attName, att.getType().getBinding());			
-								int index = Integer.parseInt(attName.substring(INT_PREFIX.length(), INT_PREFIX.length()+1));
-								if(dim < index){
-									dim = dim+1;
-								}
-							}
-						}else{
-							tb.add(INT_PREFIX + dim + "_"+ att.getLocalName(), att.getType().getBinding());
-						}
-					}
-                }
+    		}else{
+	    		//add geometry attribute
+	    		tb.setCRS(delegate.getSchema().getCoordinateReferenceSystem());
+	    		tb.add(dataGeomName, geomBinding);	
+	            
+	    		//add attribute descriptors from layer 1
+	    		int dim = addLayerAttributes(tb, delegate.getSchema(), 1);
+	    		
+	    		//add attribute descriptors from layer 2
+	    		addLayerAttributes(tb, features.getSchema(), dim + 1);
+	    		
+	    		tb.add(AREA_ATT_NAME, Double.class); // add attribute to handle the intersection area
+	    		if(options.percentages){
+	    			tb.add(INT_PREFIX + 1 + PCT_ATT_SUFFIX, Double.class);
+	    			tb.add(INT_PREFIX + 2 + PCT_ATT_SUFFIX, Double.class);
+	    		}
     		}
-    		
-    		//add attribute descriptors from layer 2
-    		dim = dim + 1;
-    		boolean intersection2 = isIntersection(features);
-    		if(!intersection2){
-    			tb.add(INT_PREFIX + dim + "_REF", String.class);
-    		}	
-    		
-    		for (AttributeDescriptor att : features.getSchema().getAttributeDescriptors()) {
-                if (!(att instanceof GeometryDescriptor)
-                	&&
-                	!att.getLocalName().equals("description") &&
-                    !att.getLocalName().equals("name") &&
-                    !att.getLocalName().equals("boundedBy")){
-                	tb.minOccurs(att.getMinOccurs());
-					tb.maxOccurs(att.getMaxOccurs());
-					tb.restrictions(att.getType().getRestrictions());
-					
-					String attName = att.getLocalName();
-					if(!attName.equalsIgnoreCase(AREA_ATT_NAME)){ // handle intersection area attribute 
-						if(intersection2){ //the input 1 is an intersection
-							if(attName.startsWith(INT_PREFIX)){
-								tb.add(attName, att.getType().getBinding());			
-								int index = Integer.parseInt(attName.substring(INT_PREFIX.length(), INT_PREFIX.length()+1));
-								if(dim < index){
-									dim = dim+1;
-								}
-							}
-						}else{
-							tb.add(INT_PREFIX + dim + "_"+ att.getLocalName(), att.getType().getBinding());
-						}
-					}
-                }
-    			
+    		if(options.isKeepingTiles()){
+    			tb.add(TILE_ATT_NAME, String.class); // add attribute to handle the tile c-square code
     		}
     		
-    		tb.add(AREA_ATT_NAME, Double.class); // add attribute to handle the intersection area
-    		
     		//name
     		String ftName = delegate.getSchema().getTypeName()+ INT_OP + features.getSchema().getTypeName();
     		tb.setName(ftName);
@@ -204,7 +683,11 @@ public class GenericIntersection implements FigisProcess{
 
         @Override
         public SimpleFeatureIterator features() {
-            return new GenericIntersectionFeatureIterator(delegate.features(), delegate, features, schema, dataGeomName);
+        	if(options.sweepJoin){
+        		SimpleFeatureCollection second = (options.filter2 != null)? features.subCollection(options.filter2) : features;
+        		return new GenericIntersectionFeatureIterator(new SweepJoin(delegate, second), delegate, features, schema, dataGeomName, options);
+        	}
+            return new GenericIntersectionFeatureIterator(delegate.features(), delegate, features, schema, dataGeomName, options);
         }
 
         public Iterator<SimpleFeature> iterator() {
@@ -262,17 +745,7 @@ public class GenericIntersection implements FigisProcess{
          * @return
          */
         public boolean isIntersection(SimpleFeatureCollection collection){
-        	
-        	boolean result = false;
-        	for (AttributeDescriptor att : collection.getSchema().getAttributeDescriptors()) {
-        		if(!(att instanceof GeometryDescriptor)){
-        			if(att.getLocalName().startsWith(INT_PREFIX)){
-            			result = true;
-            		} 
-        		}
-        	}
-    		       
-    		return result;
+        	return GenericIntersection.isIntersection(collection.getSchema());
         }
         
         
@@ -281,6 +754,8 @@ public class GenericIntersection implements FigisProcess{
 	
 	
 	/** Intersection FeatureIterator - to compute the intersections in streaming fashion
+	 *  The intersections of each feature of the first collection are computed in one go,
+	 *  queued and then streamed.
 	 * 
 	 * @author eblondel
 	 * <emmanuel.blondel@fao.org><emmanuel.blondel1gmail.com>
@@ -294,8 +769,6 @@ public class GenericIntersection implements FigisProcess{
 		SimpleFeatureCollection firstFeatures;
 		
 	    SimpleFeatureCollection secondFeatures;
-	    
-	    SimpleFeatureCollection intersectedFeatures;
 
 	    SimpleFeatureType targetSchema;
 	    
@@ -305,21 +778,39 @@ public class GenericIntersection implements FigisProcess{
 	    
 	    String dataGeomName;
 	    
-	    SimpleFeatureIterator iterator;
+	    IntersectionOptions options;
 	    
-	    boolean complete = true;
+	    MathTransform areaTransform;
 	    
-	    boolean added = false;
+	    CsquareGrid grid;
 	    
-	    SimpleFeature next;
+	    ExecutorService executor;
+	    
+	    OverlayEngine overlay;
+	    
+	    SourceAreaCache sourceAreas;
 	    
-	    SimpleFeature first;
+	    SourceGeometryCache sourceGeometries;
 	    
-	    List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+	    SimpleFeature next;
+	    
+	    LinkedList<SimpleFeature> features = new LinkedList<SimpleFeature>();
 	    
 	    Integer iterationIndex = 0;
 	    
-	    int dim = 0;
+	    int delegateIndex = 0;
+	    
+	    int validityChecks = 0;
+	    
+	    int repairs = 0;
+	    
+	    int rectangleClips = 0;
+	    
+	    int slivers = 0;
+	    
+	    int decompositions = 0;
+	    
+	    DecomposedGeometry pieces1;
 	     
 	    /** Constructor
 	     * 
@@ -328,28 +819,54 @@ public class GenericIntersection implements FigisProcess{
 	     * @param secondFeatures
 	     * @param schema
 	     * @param dataGeomName
+	     * @param options
 	     */
 		public GenericIntersectionFeatureIterator(
 					SimpleFeatureIterator delegate,
 					SimpleFeatureCollection firstFeatures,
 					SimpleFeatureCollection secondFeatures,
 					SimpleFeatureType schema,
-					String dataGeomName
+					String dataGeomName,
+					IntersectionOptions options
 					){
 			
 			this.delegate = delegate;
+			this.firstFeatures = firstFeatures;
 			this.secondFeatures = secondFeatures;
 			this.targetSchema = schema;
-			this.geomBinding = targetSchema.getGeometryDescriptor().getType().getBinding();
+			this.geomBinding = options.areaMatrix? null : targetSchema.getGeometryDescriptor().getType().getBinding();
 			this.fb = new SimpleFeatureBuilder(targetSchema);
-			this.dataGeomName = dataGeomName;		
+			this.dataGeomName = dataGeomName;
+			this.options = options;
+			this.overlay = OverlayEngines.create(options.engine, options.precision);
+			
+			try{
+				this.areaTransform = CRS.findMathTransform(this.targetSchema.getCoordinateReferenceSystem(), CRS.parseWKT(ECKERT_IV_WKT));
+			}catch(Exception e){
+				throw new ProcessException("Unable to get the area computation transform", e);
+			}
+			this.sourceAreas = new SourceAreaCache(areaTransform);
+			this.sourceGeometries = new SourceGeometryCache(overlay, SourceGeometryCache.DEFAULT_MAX_ENTRIES, SourceGeometryCache.DEFAULT_MAX_DECOMPOSITIONS);
+			
+			if(options.isTiled()){
+				this.grid = new CsquareGrid(options.tileSize);
+				if(options.tileThreads > 1){
+					this.executor = Executors.newFixedThreadPool(options.tileThreads);
+				}
+			}
 
 		}
 		
 		
 		public void close() {
 			delegate.close();
-			
+			if(executor != null){
+				executor.shutdownNow();
+			}
+			String join = (delegate instanceof SweepJoin)? "sweep join (" + ((SweepJoin) delegate).getPairs() + " candidate pairs)" : "index join";
+			logger.info("Generic intersection: " + iterationIndex + " features, " + join + ", " + rectangleClips + " rectangle clips, "
+						+ (decompositions + sourceGeometries.getDecompositions()) + " decompositions, " + slivers + " slivers dropped, " + validityChecks + " validity checks, " + repairs + " repairs, "
+						+ sourceGeometries.getHits() + " source geometry cache hits. " + overlay);
 		}
 
 		 public SimpleFeature next() throws NoSuchElementException {
@@ -365,109 +882,353 @@ public class GenericIntersection implements FigisProcess{
 		
 		
 		public boolean hasNext(){
-			 while ((next == null && delegate.hasNext()) || (next == null && added)) {
-				//business logic
-				if (complete) {
-					first = delegate.next();
-					intersectedFeatures = null;
-				} 
-				
-				try{
-
-                	Geometry geom1 = (Geometry) first.getDefaultGeometryProperty().getValue();
-                	if (intersectedFeatures == null && !added) {
-                		intersectedFeatures = this.filteredCollection(geom1);
-                        if(intersectedFeatures != null){
-                			iterator = intersectedFeatures.features();
-                        }else{
-                        	iterator = null;
-                        }
-                		
-                    }
-
-                	if(iterator != null){
-                		try{
-                			while (iterator.hasNext()) {
-                				added = false;
-                				SimpleFeature second = iterator.next();
-                				Geometry geom2 = (Geometry) second.getDefaultGeometryProperty().getValue();
-                            
-                				if (geom1.getEnvelope().intersects(geom2)) {
-                            	
-                					// compute geometry
-                					//-----------------
-                					Geometry geometry = EnhancedPrecisionOp.intersection(geom1, geom2);
-                                
-                					if(geometry instanceof GeometryCollection){
-                						for(int i=0; i < geometry.getNumGeometries();i++){
-                							Geometry extractedGeom = geometry.getGeometryN(i);
-                        				
-                							//if contains the expected Base Geom type - the geometry is the right one
-                							if (this.geomBinding.isAssignableFrom(extractedGeom.getClass())){
-                								geometry = validateGeometry(geometry);
-                							}
-                						}
-                					}else{
-                						geometry = validateGeometry(geometry);
-                					}    
-                                
-                					//add Attributes
-                					//--------------
-                					
-                					if (geometry != null) {
-                						//add intersection geometry
-                						fb.add(geometry);
-                						
-                						// add the non geometric attributes                             	
-                						addAttributeValues(first);
-                                    	addAttributeValues(second);
-                                    
-                                    	// calculate and add intersection area
-                                    	Geometry targetGeometry = JTS.transform(geometry,
-                                    							CRS.findMathTransform(this.targetSchema.getCoordinateReferenceSystem(),
-                                    							CRS.parseWKT(ECKERT_IV_WKT)));
-                                    	double area = targetGeometry.getArea();
-                                    	fb.add(area);
-                                    	
-                                    	// build the feature
-                                    	next = fb.buildFeature(iterationIndex.toString());
-                                    	fb.reset();
-                                    	
-                                    	// update iterator status
-                                    	if (iterator.hasNext()) {
-                                    		complete = false;
-                                    		added = true;
-                                    		iterationIndex++;
-                                    		return next != null;
-                                    	}
-                                    	iterationIndex++;
-                					}
-
-                				}
-                				complete = false;
-                			}
-                			complete= true;
-                		}finally{
-                			if (!added) {
-                				iterator.close();
-                			}	
-                		}
-                	}else{
-                		
-                	}
-                		
-                }catch (Exception e){
-                	throw new ProcessException("Failed to get intersections for" + first, e);
-                }
-                
-				
+			while (next == null) {
+				if(!features.isEmpty()){
+					next = features.removeFirst();
+					
+				}else if(this.hasNextInPage()){
+					SimpleFeature first = delegate.next();
+					delegateIndex++;
+					try{
+						this.intersect(first);
+					}catch (Exception e){
+						throw new ProcessException("Failed to get intersections for" + first, e);
+					}
+					
+				}else{
+					break;
+				}
 			}
 			return next != null;  
-            
+		}
+		
+		
+		/** Indicates if there is a next feature of the first collection in the page
+		 *  (features before the start index are skipped)
+		 * 
+		 * @return
+		 */
+		private boolean hasNextInPage(){
+			if(!options.isPaged() || options.storePaged){
+				return delegate.hasNext();
+			}
+			while(delegateIndex < options.startIndex && delegate.hasNext()){
+				delegate.next();
+				delegateIndex++;
+			}
+			if(options.maxFeatures != null && delegateIndex >= options.startIndex + options.maxFeatures){
+				return false;
+			}
+			return delegate.hasNext();
+		}
+		
+		
+		/** Get the ID of the next output feature
+		 *  In paged mode, the ID is prefixed with the start index so that IDs are unique across pages
+		 * 
+		 * @return
+		 */
+		private String getFeatureId(){
+			return options.isPaged()? options.startIndex + "." + iterationIndex : iterationIndex.toString();
+		}
+		
+		
+		/** Compute the intersections between a feature of the first collection
+		 *  and the second collection. The resulting features are queued.
+		 * 
+		 * @param first
+		 * @throws Exception
+		 */
+		private void intersect(SimpleFeature first) throws Exception{
+			
+			Geometry geom1 = overlay.prepare((Geometry) first.getDefaultGeometryProperty().getValue());
+			PreparedGeometry prepared1 = null;
+			pieces1 = null;
+			SimpleFeatureCollection intersectedFeatures = (delegate instanceof SweepJoin)? ((SweepJoin) delegate).getCandidates()
+														: this.filteredCollection(geom1);
+			if(intersectedFeatures == null){
+				return;
+			}
+			
+			SimpleFeatureIterator iterator = intersectedFeatures.features();
+			try{
+				while (iterator.hasNext()) {
+					SimpleFeature second = iterator.next();
+					Geometry geom2 = sourceGeometries.getGeometry(second);
+					
+					if (geom1.getEnvelope().intersects(geom2)) {
+						
+						if(options.isTiled()){
+							Map<String, Geometry> fragments = this.intersectByTile(geom1, geom2);
+							if(options.mergeTiles){
+								if(!fragments.isEmpty()){
+									this.addFeature(first, second, this.merge(fragments.values()), null);
+								}
+							}else{
+								for(Entry<String, Geometry> fragment : fragments.entrySet()){
+									this.addFeature(first, second, fragment.getValue(), fragment.getKey());
+								}
+							}
+							
+						}else{
+							if(prepared1 == null){
+								prepared1 = PreparedGeometryFactory.prepare(geom1);
+							}
+							this.addFeature(first, second, this.check(this.intersectPair(first, prepared1, geom1, second, geom2)), null);
+						}
+					}
+				}
+			}finally{
+				iterator.close();
+			}
+		}
+		
+		
+		/** Compute the intersection of two geometries
+		 *  When one geometry is covered by the other one, it is passed through without overlay operation.
+		 *  When one geometry is a rectangle (e.g. a c-square or grid cell), the other one is clipped to it.
+		 *  When one geometry has more vertices than the maximum, it is decomposed in pieces.
+		 * 
+		 * @param first
+		 * @param prepared1 the prepared first geometry
+		 * @param geom1
+		 * @param second
+		 * @param geom2
+		 * @return the intersection fragment
+		 */
+		private IntersectionFragment intersectPair(SimpleFeature first, PreparedGeometry prepared1, Geometry geom1,
+												   SimpleFeature second, Geometry geom2){
+			
+			//contained pass-through
+			if(geom1.getEnvelopeInternal().covers(geom2.getEnvelopeInternal()) && prepared1.covers(geom2)){
+				return new IntersectionFragment(geom2, true);
+			}
+			
+			//rectangle clips
+			if(geom2.isRectangle()){
+				rectangleClips++;
+				return clipToRectangle(geom1, geom2.getEnvelopeInternal());
+			}
+			if(geom1.isRectangle()){
+				rectangleClips++;
+				return clipToRectangle(geom2, geom1.getEnvelopeInternal());
+			}
+			
+			//decomposition of complex geometries
+			if(options.maxVertices != null){
+				if(geom1.getNumPoints() > options.maxVertices){
+					if(pieces1 == null){
+						pieces1 = new DecomposedGeometry(first.getID(), geom1, options.maxVertices); //once for all the pairs
+						decompositions++;
+					}
+					return new IntersectionFragment(pieces1.intersection(geom2, overlay), false);
+				}
+				if(geom2.getNumPoints() > options.maxVertices){
+					DecomposedGeometry pieces2 = sourceGeometries.getDecomposition(second, geom2, options.maxVertices); //once for all the intersected features
+					return new IntersectionFragment(pieces2.intersection(geom1, overlay), false);
+				}
+			}
+			
+			return new IntersectionFragment(overlay.intersection(geom1, geom2), false);
+		}
+		
+		
+		/** Merge intersection fragments
+		 * 
+		 * @param fragments
+		 * @return
+		 */
+		private Geometry merge(Collection<Geometry> fragments){
+			if(fragments.size() == 1){
+				return fragments.iterator().next();
+			}
+			return new CascadedUnion(overlay).union(fragments);
+		}
+		
+		
+		/** Compute the intersection of two geometries tile by tile
+		 *  Both geometries are clipped to each c-square of the grid that covers their common extent,
+		 *  and then intersected on their own (in parallel if a tile executor is set).
+		 * 
+		 * @param geom1
+		 * @param geom2
+		 * @return an ordered map of intersection fragments, by tile c-square code
+		 * @throws Exception
+		 */
+		private Map<String, Geometry> intersectByTile(Geometry geom1, Geometry geom2) throws Exception{
+			
+			Map<String, Geometry> fragments = new LinkedHashMap<String, Geometry>();
+			
+			Envelope bounds = geom1.getEnvelopeInternal().intersection(geom2.getEnvelopeInternal());
+			Map<String, Envelope> tiles = grid.getSquares(bounds);
+			
+			if(executor != null && tiles.size() > 1){
+				Map<String, Future<IntersectionFragment>> futures = new LinkedHashMap<String, Future<IntersectionFragment>>();
+				for(Entry<String, Envelope> tile : tiles.entrySet()){
+					futures.put(tile.getKey(), executor.submit(new TileIntersection(geom1, geom2, tile.getValue(), overlay)));
+				}
+				for(Entry<String, Future<IntersectionFragment>> future : futures.entrySet()){
+					Geometry fragment = this.check(future.getValue().get());
+					if(fragment != null){
+						fragments.put(future.getKey(), fragment);
+					}
+				}
+				
+			}else{
+				for(Entry<String, Envelope> tile : tiles.entrySet()){
+					Geometry fragment = this.check(new TileIntersection(geom1, geom2, tile.getValue(), overlay).call());
+					if(fragment != null){
+						fragments.put(tile.getKey(), fragment);
+					}
+				}
+			}
+			
+			return fragments;
+		}
+		
+		
+		/** Add an intersection feature to the queue
+		 * 
+		 * @param first
+		 * @param second
+		 * @param geometry
+		 * @param tile the tile c-square code (null if tiles are not kept)
+		 * @throws Exception
+		 */
+		private void addFeature(SimpleFeature first, SimpleFeature second, Geometry geometry, String tile) throws Exception{
+			
+			if(options.hasAreaThreshold() && this.isSliver(first, second, geometry)){
+				slivers++;
+				return;
+			}
+			
+			if(options.areaMatrix){
+				this.addAreaRow(first, second, geometry, tile);
+				return;
+			}
+			
+			// validate geometry (on write)
+			//------------------
+			if(geometry != null && options.validation == ValidationPolicy.REPAIR_ON_WRITE){
+				geometry = validateGeometry(geometry);
+			}
+			
+			if(geometry == null){
+				return;
+			}
+			
+			//add intersection geometry
+			fb.add(geometry);
+			
+			// add the non geometric attributes
+			addAttributeValues(first);
+			addAttributeValues(second);
+			
+			// calculate and add intersection area
+			Geometry targetGeometry = JTS.transform(geometry, areaTransform);
+			double area = targetGeometry.getArea();
+			fb.add(area);
+			if(options.percentages){
+				fb.add(getPercentage(area, sourceAreas.getArea(first)));
+				fb.add(getPercentage(area, sourceAreas.getArea(second)));
+			}
+			
+			if(tile != null){
+				fb.add(tile);
+			}
 			
+			// build the feature
+			features.add(fb.buildFeature(this.getFeatureId()));
+			fb.reset();
+			iterationIndex++;
 		}
 		
+		
+		/** Indicates if a polygon intersection is a sliver, i.e. smaller than the area thresholds
+		 *  (cheap planar area estimate, before any attribute copy and reprojection)
+		 * 
+		 * @param first
+		 * @param second
+		 * @param geometry
+		 * @return
+		 */
+		private boolean isSliver(SimpleFeature first, SimpleFeature second, Geometry geometry){
+			if(geometry == null || geometry.getDimension() < 2){
+				return false; //only polygon intersections are concerned
+			}
+			
+			if(options.minArea != null && getPlanarAreaEstimate(geometry, options.geographic) < options.minArea){
+				return true;
+			}
+			if(options.minFraction != null){
+				double sourceArea = Math.min(((Geometry) first.getDefaultGeometry()).getArea(), ((Geometry) second.getDefaultGeometry()).getArea());
+				if(sourceArea > 0 && geometry.getArea() < options.minFraction * sourceArea){
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		
+		/** Add an area matrix row to the queue
+		 *  The intersection geometry is neither validated nor returned, and the source feature
+		 *  areas are cached for the whole run.
+		 * 
+		 * @param first
+		 * @param second
+		 * @param geometry
+		 * @param tile the tile c-square code (null if tiles are not kept)
+		 * @throws Exception
+		 */
+		private void addAreaRow(SimpleFeature first, SimpleFeature second, Geometry geometry, String tile) throws Exception{
+			
+			if(geometry == null || geometry.isEmpty()){
+				return;
+			}
+			double area = JTS.transform(geometry, areaTransform).getArea();
+			if(area <= 0){
+				return;
+			}
+			
+			fb.add(getKey(first, options.key1));
+			fb.add(getKey(second, options.key2));
+			fb.add(area);
+			fb.add(getPercentage(area, sourceAreas.getArea(first)));
+			fb.add(getPercentage(area, sourceAreas.getArea(second)));
+			if(tile != null){
+				fb.add(tile);
+			}
+			
+			features.add(fb.buildFeature(this.getFeatureId()));
+			fb.reset();
+			iterationIndex++;
+		}
+		
+		
+		/** Get the key of a source feature
+		 * 
+		 * @param feature
+		 * @param keyAttribute the key attribute, null to use the feature ID
+		 * @return
+		 */
+		private String getKey(SimpleFeature feature, String keyAttribute){
+			return keyAttribute != null? String.valueOf(feature.getAttribute(keyAttribute)) : feature.getID();
+		}
+		
+		
+		/** Get the percentage of a source feature area covered by an intersection
+		 * 
+		 * @param area the intersection area
+		 * @param sourceArea the source feature area
+		 * @return
+		 */
+		private Double getPercentage(double area, double sourceArea){
+			return sourceArea > 0? 100 * area / sourceArea : null;
+		}
+		
+		
 		/** Get the sub feature collection (second input) that intersects with a geometry
+		 *  (and matches the attribute filter of the second input, if any)
 		 * 
 		 * @param currentGeom
 		 * @return
@@ -475,11 +1236,43 @@ public class GenericIntersection implements FigisProcess{
 		private SimpleFeatureCollection filteredCollection(Geometry currentGeom) {
 			FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2(null);
 	        Filter intersectFilter = ff.intersects(ff.property(dataGeomName), ff.literal(currentGeom));
+	        if(options.filter2 != null){
+	        	intersectFilter = ff.and(intersectFilter, options.filter2);
+	        }
 	        SimpleFeatureCollection subFeatureCollectionIntersection = this.secondFeatures.subCollection(intersectFilter);
 	        return subFeatureCollectionIntersection;
 		}
 	
 	
+		/** Check an intersection fragment, according to the validation policy
+		 * 
+		 * @param fragment
+		 * @return the fragment geometry, validated if required by the policy
+		 */
+		private Geometry check(IntersectionFragment fragment){
+			if(fragment == null || fragment.geometry == null){
+				return null;
+			}
+			
+			Geometry geometry = fragment.geometry;
+			if(options.areaMatrix){
+				return geometry; //area matrix geometries are not validated
+			}
+			
+			switch(options.validation){
+				case FAST:
+					if(fragment.trusted){
+						return geometry;
+					}
+					return validateGeometry(geometry);
+				case ALWAYS:
+					return validateGeometry(geometry);
+				default:
+					return geometry;
+			}
+		}
+		
+		
 		/** validate a geometry
 		 * 
 		 * @param geometry
@@ -487,10 +1280,12 @@ public class GenericIntersection implements FigisProcess{
 		 */
     	private Geometry validateGeometry(Geometry geometry){
     		Geometry validGeometry = null;
+    		validityChecks++;
     		if(geometry.isValid()){
     			validGeometry = geometry;
     		}else{
-    			validGeometry = EnhancedPrecisionOp.buffer(geometry, 0);
+    			repairs++;
+    			validGeometry = overlay.buffer(geometry, 0);
     		}	
     		return validGeometry;
     	}
@@ -501,51 +1296,114 @@ public class GenericIntersection implements FigisProcess{
     	 * @param feature
     	 */
     	private void addAttributeValues(SimpleFeature feature) {
-    		
-    		boolean intersection = isIntersectionFeature(feature);
-    		if(!intersection){
-    			fb.add(feature.getFeatureType().getName().getLocalPart());
-    		}
-    		
-    		for (AttributeDescriptor ad : feature.getFeatureType().getAttributeDescriptors()) {
-                if(!(ad instanceof GeometryDescriptor)
-                   &&
-                   !ad.getLocalName().equals("description") &&
-                   !ad.getLocalName().equals("name") &&
-                   !ad.getLocalName().equals("boundedBy")){
-                	
-                	if(intersection){
-            			if(!ad.getLocalName().equals(AREA_ATT_NAME)){
-            				fb.add(feature.getAttribute(ad.getLocalName()));
-            			}
-            		}else{
-            			fb.add(feature.getAttribute(ad.getLocalName()));
-            		}	
-                }
-            }
+    		GenericIntersection.addAttributeValues(fb, feature);
         }
     
     	
-    	/** 
+    	/** Identifies if a feature is a product of the Intersection process or not
          * 
          * @return
          */
         public boolean isIntersectionFeature(SimpleFeature feature){
-        	
-        	boolean result = false;
-        	for (AttributeDescriptor att : feature.getFeatureType().getAttributeDescriptors()) {
-        		if(!(att instanceof GeometryDescriptor)){
-        			if(att.getLocalName().startsWith(INT_PREFIX)){
-            			result = true;
-            		} 
-        		}
-        	}
-    		       
-    		return result;
+        	return GenericIntersection.isIntersection(feature.getFeatureType());
         }
     	
-   
-    	
+	}
+	
+	
+	/** Clip a geometry to a rectangle
+	 *  The rectangle clipping is much cheaper than a general overlay operation, and its result is trusted
+	 * 
+	 * @param geometry
+	 * @param rectangle
+	 * @return the clipped fragment (with a null geometry if the geometry is outside of the rectangle)
+	 */
+	static IntersectionFragment clipToRectangle(Geometry geometry, Envelope rectangle){
+		if(rectangle.covers(geometry.getEnvelopeInternal())){
+			return new IntersectionFragment(geometry, true);
+		}
+		return new IntersectionFragment(new GeometryClipper(rectangle).clip(geometry, true), true);
+	}
+	
+	
+	/** An intersection fragment
+	 *  i.e. the intersection geometry of a pair of features (or of a tile of a pair of features),
+	 *  flagged as trusted when it is known to be valid (it does not result from a general overlay operation)
+	 * 
+	 * @author eblondel
+	 *
+	 */
+	static class IntersectionFragment{
+		
+		Geometry geometry;
+		boolean trusted;
+		
+		/** Constructor
+		 * 
+		 * @param geometry
+		 * @param trusted
+		 */
+		IntersectionFragment(Geometry geometry, boolean trusted){
+			this.geometry = geometry;
+			this.trusted = trusted;
+		}
+	}
+	
+	
+	/** Intersection of two geometries within a tile
+	 *  Both geometries are first clipped to the tile rectangle. When one of the clips is a rectangle
+	 *  (e.g. it covers the whole tile), the other clip is clipped to it (no overlay operation is needed).
+	 * 
+	 * @author eblondel
+	 *
+	 */
+	static class TileIntersection implements Callable<IntersectionFragment>{
+		
+		Geometry geom1;
+		Geometry geom2;
+		Envelope tile;
+		OverlayEngine overlay;
+		
+		/** Constructor
+		 * 
+		 * @param geom1
+		 * @param geom2
+		 * @param tile
+		 * @param overlay
+		 */
+		TileIntersection(Geometry geom1, Geometry geom2, Envelope tile, OverlayEngine overlay){
+			this.geom1 = geom1;
+			this.geom2 = geom2;
+			this.tile = tile;
+			this.overlay = overlay;
+		}
+		
+		/** Compute the tile intersection
+		 * 
+		 * @return the intersection fragment, null if empty
+		 */
+		public IntersectionFragment call() throws Exception {
+			GeometryClipper clipper = new GeometryClipper(tile);
+			
+			Geometry clip1 = clipper.clip(geom1, true);
+			if(clip1 == null || clip1.isEmpty()){
+				return null;
+			}
+			Geometry clip2 = clipper.clip(geom2, true);
+			if(clip2 == null || clip2.isEmpty()){
+				return null;
+			}
+			
+			//rectangle clips (including clips covering the whole tile)
+			IntersectionFragment fragment = null;
+			if(clip2.isRectangle()){
+				fragment = clipToRectangle(clip1, clip2.getEnvelopeInternal());
+			}else if(clip1.isRectangle()){
+				fragment = clipToRectangle(clip2, clip1.getEnvelopeInternal());
+			}else{
+				fragment = new IntersectionFragment(overlay.intersection(clip1, clip2), false);
+			}
+			return (fragment.geometry == null || fragment.geometry.isEmpty())? null : fragment;
+		}
 	}
 }
-
@@ -0,0 +1,229 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureCollectionCache;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore.FeatureFileWriter;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/** Incremental regeneration of the FIRMS coverage
+ *  The coverage features produced by a run are kept in a local feature store, together with a content
+ *  hash of the input row they were computed from (rows without coverage are kept with a null geometry).
+ *  On the next run, only the new or changed rows are recomputed: the rows whose hash is unchanged are
+ *  streamed from the previous store once the input is exhausted. Rows removed from the input are dropped.
+ *
+ *  The new store replaces the previous one only when the coverage has been fully iterated.
+ *
+ * @author eblondel
+ *
+ */
+class IncrementalCoverage {
+
+	private static Logger logger = Logger.getLogger(IncrementalCoverage.class);
+
+	static final String ROW_ID_ATT_NAME = "cd_rowid";
+	static final String HASH_ATT_NAME = "ROW_HASH";
+
+	SimpleFeatureType targetSchema;
+	SimpleFeatureType storeSchema;
+	FeatureFileStore store;
+	Map<String, String> hashes = new HashMap<String, String>();
+	Set<String> unchanged = new HashSet<String>();
+
+	FeatureFileWriter writer;
+	SimpleFeatureIterator previous;
+	SimpleFeatureBuilder storeBuilder;
+	SimpleFeatureBuilder targetBuilder;
+	boolean complete = false;
+	int reused = 0;
+
+
+	/** Constructor
+	 *  Loads the row hashes of the previous store, if it exists and has the same schema.
+	 *
+	 * @param file the store file
+	 * @param targetSchema the coverage schema
+	 * @throws IOException
+	 */
+	IncrementalCoverage(File file, SimpleFeatureType targetSchema) throws IOException{
+		this.targetSchema = targetSchema;
+
+		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+		tb.init(targetSchema);
+		tb.add(HASH_ATT_NAME, String.class);
+		this.storeSchema = tb.buildFeatureType();
+		this.storeBuilder = new SimpleFeatureBuilder(storeSchema);
+		this.targetBuilder = new SimpleFeatureBuilder(targetSchema);
+
+		this.store = new FeatureFileStore(file);
+		if(store.exists()){
+			if(this.isCompatible(store.getSchema())){
+				SimpleFeatureIterator it = store.getFeatures().features();
+				try{
+					while(it.hasNext()){
+						SimpleFeature feature = it.next();
+						hashes.put(feature.getID(), (String) feature.getAttribute(HASH_ATT_NAME));
+					}
+				}finally{
+					it.close();
+				}
+			}else{
+				logger.info("The FIRMS coverage store "+file+" has a different schema, the coverage is fully regenerated");
+			}
+		}
+		this.writer = store.createWriter(storeSchema);
+	}
+
+
+	/** Indicates if a store schema is compatible with the current one (same attribute names and bindings)
+	 *
+	 * @param schema
+	 * @return
+	 */
+	private boolean isCompatible(SimpleFeatureType schema){
+		List<AttributeDescriptor> descriptors = storeSchema.getAttributeDescriptors();
+		if(schema.getAttributeCount() != descriptors.size()){
+			return false;
+		}
+		for(int i = 0; i < descriptors.size(); i++){
+			AttributeDescriptor descriptor = schema.getDescriptor(i);
+			if(!descriptor.getLocalName().equals(descriptors.get(i).getLocalName())
+			   || !descriptor.getType().getBinding().equals(descriptors.get(i).getType().getBinding())){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/** Compute the content hash of an input row (all its attribute values)
+	 *
+	 * @param row
+	 * @return
+	 */
+	static String getHash(SimpleFeature row){
+		List<Object> values = row.getAttributes();
+		String[] parts = new String[values.size()];
+		for(int i = 0; i < parts.length; i++){
+			parts[i] = String.valueOf(values.get(i));
+		}
+		return FeatureCollectionCache.getKey(parts);
+	}
+
+
+	/** Indicates if an input row is unchanged since the previous run
+	 *  (an unchanged row is then streamed from the previous store)
+	 *
+	 * @param row
+	 * @return
+	 */
+	boolean isUnchanged(SimpleFeature row){
+		String id = row.getAttribute(ROW_ID_ATT_NAME).toString();
+		String hash = hashes.get(id);
+		if(hash != null && hash.equals(getHash(row))){
+			unchanged.add(id);
+			return true;
+		}
+		return false;
+	}
+
+
+	/** Store the coverage computed from an input row
+	 *
+	 * @param row the input row
+	 * @param result the coverage feature, null if the row has no coverage
+	 * @throws IOException
+	 */
+	void write(SimpleFeature row, SimpleFeature result) throws IOException{
+		if(result != null){
+			for(AttributeDescriptor descriptor : targetSchema.getAttributeDescriptors()){
+				storeBuilder.set(descriptor.getLocalName(), result.getAttribute(descriptor.getLocalName()));
+			}
+		}
+		storeBuilder.set(HASH_ATT_NAME, getHash(row));
+		writer.write(storeBuilder.buildFeature(row.getAttribute(ROW_ID_ATT_NAME).toString()));
+	}
+
+
+	/** Get the next unchanged coverage feature from the previous store
+	 *  Unchanged rows are copied to the new store.
+	 *
+	 * @return the next feature, null when the unchanged rows are exhausted
+	 * @throws IOException
+	 */
+	SimpleFeature nextUnchanged() throws IOException{
+		if(complete){
+			return null;
+		}
+		if(previous == null){
+			if(unchanged.isEmpty()){
+				complete = true;
+				return null;
+			}
+			previous = store.getFeatures().features();
+		}
+
+		while(previous.hasNext()){
+			SimpleFeature feature = previous.next();
+			if(!unchanged.contains(feature.getID())){
+				continue;
+			}
+			writer.write(feature);
+			if(feature.getDefaultGeometry() == null){
+				continue; //row without coverage
+			}
+
+			for(AttributeDescriptor descriptor : targetSchema.getAttributeDescriptors()){
+				targetBuilder.set(descriptor.getLocalName(), feature.getAttribute(descriptor.getLocalName()));
+			}
+			reused++;
+			return targetBuilder.buildFeature(feature.getID());
+		}
+
+		previous.close();
+		previous = null;
+		complete = true;
+		return null;
+	}
+
+
+	/** Get the number of coverage features streamed from the previous store
+	 *
+	 * @return
+	 */
+	int getReused(){
+		return reused;
+	}
+
+
+	/** Close the incremental coverage
+	 *  The new store replaces the previous one if the coverage has been fully iterated, otherwise it is discarded.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException{
+		if(previous != null){
+			previous.close();
+			previous = null;
+		}
+		if(complete){
+			writer.close();
+		}else{
+			writer.abort();
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import org.fao.fi.figis.geoserver.wps.feature.GenericIntersection.ValidationPolicy;
+import org.fao.fi.figis.geoserver.wps.utils.csquare.SpaceFillingCurve;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngines;
+import org.geotools.filter.text.ecql.ECQL;
+import org.opengis.filter.Filter;
+
+/** Execution options of the Generic Intersection process
+ *
+ * @author eblondel
+ *
+ */
+class IntersectionOptions {
+
+	/** tile size (c-square resolution in decimal degrees), null when the tiled mode is disabled */
+	Double tileSize;
+
+	/** merge the tile fragments of each intersection (true), or keep one feature per tile (false) */
+	boolean mergeTiles = true;
+
+	/** number of threads used to intersect the tiles */
+	int tileThreads = 1;
+
+	/** precision grid size to which geometries are snapped before overlay, null for floating precision */
+	Double precision;
+
+	/** overlay engine name */
+	String engine = OverlayEngines.DEFAULT;
+
+	/** return only the area matrix, without intersection geometries */
+	boolean areaMatrix = false;
+
+	/** key attributes of the first and second collections in the area matrix, null for the feature IDs */
+	String key1;
+	String key2;
+
+	/** validation policy of the intersection geometries */
+	ValidationPolicy validation = ValidationPolicy.ALWAYS;
+
+	/** attribute filters of the first and second collections, null for no filter */
+	Filter filter1;
+	Filter filter2;
+
+	/** paged mode: index of the first feature of the first collection, null when the paged mode is disabled */
+	Integer startIndex;
+
+	/** paged mode: maximum number of features of the first collection, null for no limit */
+	Integer maxFeatures;
+
+	/** paged mode: the first collection is already the page, queried from its source store */
+	boolean storePaged = false;
+
+	/** order of the first collection features (space filling curve), null for the source order */
+	SpaceFillingCurve.Type order;
+
+	/** join the collections with a plane sweep (true), or with per-feature index queries (false) */
+	boolean sweepJoin = false;
+
+	/** minimum area (approximate, in square meters) of the polygon intersections, null for no threshold */
+	Double minArea;
+
+	/** minimum fraction of the smaller source feature area covered by the polygon intersections, null for no threshold */
+	Double minFraction;
+
+	/** the inputs are geographic (area thresholds are estimated from square degrees) */
+	boolean geographic = false;
+
+	/** add the percentages of the source feature areas covered by the intersection */
+	boolean percentages = false;
+
+	/** maximum number of vertices of a geometry in an overlay operation, null for no decomposition */
+	Integer maxVertices;
+
+
+	/** Get the signature of the options affecting the intersection result
+	 *
+	 * @return
+	 */
+	String getSignature(){
+		return "tileSize=" + tileSize + ";mergeTiles=" + mergeTiles + ";precision=" + precision + ";engine=" + engine
+				+ ";areaMatrix=" + areaMatrix + ";key1=" + key1 + ";key2=" + key2 + ";validation=" + validation
+				+ ";filter1=" + (filter1 != null? ECQL.toCQL(filter1) : null)
+				+ ";filter2=" + (filter2 != null? ECQL.toCQL(filter2) : null)
+				+ ";startIndex=" + startIndex + ";maxFeatures=" + maxFeatures + ";order=" + order + ";sweepJoin=" + sweepJoin
+				+ ";minArea=" + minArea + ";minFraction=" + minFraction + ";percentages=" + percentages + ";maxVertices=" + maxVertices;
+	}
+
+	/** Indicates if the tiled mode is enabled
+	 *
+	 * @return
+	 */
+	boolean isTiled(){
+		return tileSize != null;
+	}
+
+	/** Indicates if an area threshold is set
+	 *
+	 * @return
+	 */
+	boolean hasAreaThreshold(){
+		return minArea != null || minFraction != null;
+	}
+
+	/** Indicates if the paged mode is enabled
+	 *
+	 * @return
+	 */
+	boolean isPaged(){
+		return startIndex != null;
+	}
+
+	/** Indicates if the tile fragments are kept as separate features
+	 *
+	 * @return
+	 */
+	boolean isKeepingTiles(){
+		return isTiled() && !mergeTiles;
+	}
+
+}
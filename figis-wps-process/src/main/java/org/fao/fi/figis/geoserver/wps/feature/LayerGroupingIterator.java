@@ -0,0 +1,190 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore.FeatureFileWriter;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+/** Iterator over features grouped by reference layer
+ *  The features are read in a single pass and bucketed by the value of the reference layer attribute,
+ *  then returned layer by layer (in the order of first appearance, and in the input order within a layer).
+ *  When the number of features held in memory exceeds the budget, the buckets are spilled to temporary
+ *  feature store files.
+ *
+ *  Used instead of sorting the features by reference layer, which may force the source store to
+ *  materialize the whole collection.
+ *
+ * @author eblondel
+ *
+ */
+class LayerGroupingIterator implements SimpleFeatureIterator {
+
+	Map<String, List<SimpleFeature>> buckets = new LinkedHashMap<String, List<SimpleFeature>>();
+	Map<String, FeatureFileStore> stores = new LinkedHashMap<String, FeatureFileStore>();
+	int maxFeatures;
+	int size = 0;
+	int spills = 0;
+
+	Iterator<String> layers;
+	SimpleFeatureIterator spilled;
+	Iterator<SimpleFeature> buffered;
+
+
+	/** Constructor
+	 *  Reads and groups all the features (the delegate is closed once read).
+	 *
+	 * @param delegate
+	 * @param refAttribute the reference layer attribute
+	 * @param maxFeatures the maximum number of features held in memory
+	 * @throws IOException
+	 */
+	LayerGroupingIterator(SimpleFeatureIterator delegate, String refAttribute, int maxFeatures) throws IOException{
+		this.maxFeatures = maxFeatures;
+
+		Map<String, FeatureFileWriter> writers = new LinkedHashMap<String, FeatureFileWriter>();
+		boolean grouped = false;
+		try{
+			while(delegate.hasNext()){
+				SimpleFeature feature = delegate.next();
+				String layer = String.valueOf(feature.getAttribute(refAttribute));
+				List<SimpleFeature> bucket = buckets.get(layer);
+				if(bucket == null){
+					bucket = new ArrayList<SimpleFeature>();
+					buckets.put(layer, bucket);
+				}
+				bucket.add(feature);
+
+				if(++size > maxFeatures){
+					this.spill(writers);
+				}
+			}
+			for(FeatureFileWriter writer : writers.values()){
+				writer.close();
+			}
+			grouped = true;
+
+		}finally{
+			if(!grouped){
+				//I/O or runtime failure: the spill files are discarded
+				for(FeatureFileWriter writer : writers.values()){
+					writer.abort();
+				}
+				this.close();
+			}
+			delegate.close();
+		}
+
+		this.layers = buckets.keySet().iterator();
+	}
+
+
+	/** Spill the buckets to the layer store files
+	 *
+	 * @param writers the layer store writers
+	 * @throws IOException
+	 */
+	private void spill(Map<String, FeatureFileWriter> writers) throws IOException{
+		for(Entry<String, List<SimpleFeature>> bucket : buckets.entrySet()){
+			if(bucket.getValue().isEmpty()){
+				continue;
+			}
+			FeatureFileWriter writer = writers.get(bucket.getKey());
+			if(writer == null){
+				FeatureFileStore store = new FeatureFileStore(File.createTempFile("firms-group-", ".store"));
+				stores.put(bucket.getKey(), store);
+				writer = store.createWriter(bucket.getValue().get(0).getFeatureType());
+				writers.put(bucket.getKey(), writer);
+			}
+			for(SimpleFeature feature : bucket.getValue()){
+				writer.write(feature);
+			}
+			bucket.getValue().clear();
+		}
+		size = 0;
+		spills++;
+	}
+
+
+	/** Get the reference layers, in the iteration order
+	 *
+	 * @return
+	 */
+	LinkedList<String> getLayers(){
+		return new LinkedList<String>(buckets.keySet());
+	}
+
+
+	/** Get the number of spills to disk
+	 *
+	 * @return
+	 */
+	int getSpills(){
+		return spills;
+	}
+
+
+	public boolean hasNext() {
+		while(true){
+			if(spilled != null){
+				if(spilled.hasNext()){
+					return true;
+				}
+				spilled.close();
+				spilled = null;
+			}
+			if(buffered != null && buffered.hasNext()){
+				return true;
+			}
+			if(layers == null || !layers.hasNext()){
+				return false;
+			}
+
+			//next layer: spilled features first, then the ones held in memory
+			String layer = layers.next();
+			FeatureFileStore store = stores.get(layer);
+			if(store != null){
+				try{
+					spilled = store.getFeatures().features();
+				}catch(IOException e){
+					throw new RuntimeException("Unable to read the spilled features of layer "+layer, e);
+				}
+			}
+			buffered = buckets.get(layer).iterator();
+		}
+	}
+
+
+	public SimpleFeature next() throws NoSuchElementException {
+		if(!hasNext()){
+			throw new NoSuchElementException("hasNext() returned false!");
+		}
+		return (spilled != null)? spilled.next() : buffered.next();
+	}
+
+
+	public void close() {
+		if(spilled != null){
+			spilled.close();
+			spilled = null;
+		}
+		for(FeatureFileStore store : stores.values()){
+			store.delete();
+		}
+		stores.clear();
+		buckets.clear();
+		layers = null;
+		buffered = null;
+	}
+
+}
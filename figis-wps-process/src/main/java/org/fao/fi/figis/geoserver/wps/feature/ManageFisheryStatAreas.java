@@ -8,7 +8,10 @@ import java.util.List;
 import java.util.Set;
 
 
+import org.apache.log4j.Logger;
 import org.fao.fi.figis.geoserver.wps.FigisProcess;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngine;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngines;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
@@ -26,7 +29,6 @@ import org.opengis.filter.FilterFactory2;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.MultiPolygon;
-import com.vividsolutions.jts.precision.EnhancedPrecisionOp;
 
 
 
@@ -50,6 +52,8 @@ import com.vividsolutions.jts.precision.EnhancedPrecisionOp;
 				 )
 public class ManageFisheryStatAreas implements FigisProcess{
 
+	private static Logger logger = Logger.getLogger(ManageFisheryStatAreas.class);
+	
 	List<SimpleFeature> result;
 
 	Set<FisheryStatArea> areas;	
@@ -60,6 +64,8 @@ public class ManageFisheryStatAreas implements FigisProcess{
 	SimpleFeatureCollection filteredCollection;
 	SimpleFeatureCollection dissolvedCollection;
 	
+	OverlayEngine overlay;
+	
 	
 	/** FisheryStatArea
 	 *  Defines the fishery stat area levels & property name that handles the fishery area code
@@ -94,14 +100,20 @@ public class ManageFisheryStatAreas implements FigisProcess{
 	/** Execute the WPS process
 	 * 
 	 * @param features
+	 * @param precision
+	 * @param engine
 	 * @return
 	 */
 	@DescribeResult(name="result", description="output result")
 	 public SimpleFeatureCollection execute(
-			 @DescribeParameter(name="data",description="FAO raw fishery statistical area layer (master layer)") SimpleFeatureCollection features
+			 @DescribeParameter(name="data",description="FAO raw fishery statistical area layer (master layer)") SimpleFeatureCollection features,
+			 @DescribeParameter(name="precision",description="Precision grid size (e.g. 1e-7 for decimal degrees) to which geometries are snapped before union. "
+					 										 +"If not specified, the floating precision is used (or the precision configured for the fixed engine)", min=0) Double precision,
+			 @DescribeParameter(name="engine",description="Overlay engine: default (floating precision), fixed (requires a precision) or snap. If not specified, the fixed engine is used when a precision is given, otherwise the engine configured by the figis.overlay.engine system property (with the figis.overlay.precision system property for the fixed engine), or else the default one", min=0) String engine
 			 ){
 	
 		this.masterCollection = features;
+		this.overlay = OverlayEngines.create(engine, precision);
 		this.areas = this.getFisheryStatAreas();
 		createSimpleFeatureBuilder();
 		
@@ -111,6 +123,7 @@ public class ManageFisheryStatAreas implements FigisProcess{
 		while(areaIt.hasNext()){
 			result.addAll(this.dissolveByFisheryArea(areaIt.next()));
 		}
+		logger.info("Fishery statistical areas: " + result.size() + " features. " + overlay);
 		
 		return new ListFeatureCollection(schema, result);
 		
@@ -237,7 +250,7 @@ public class ManageFisheryStatAreas implements FigisProcess{
 	
 			if(it.hasNext()){
 				SimpleFeature f = it.next();
-				unionGeom = (Geometry) f.getDefaultGeometryProperty().getValue(); //instantiate unionGeom
+				unionGeom = overlay.prepare((Geometry) f.getDefaultGeometryProperty().getValue()); //instantiate unionGeom
 				
 				//handle area status (endorsed or not)
 				areaCode = (String) f.getAttribute(area.propertyName());
@@ -307,7 +320,7 @@ public class ManageFisheryStatAreas implements FigisProcess{
 				Geometry geom = (Geometry) it.next().getDefaultGeometryProperty().getValue();
 					
 				if(unionGeom !=null & geom !=null){//control in case of null unexpected geometries
-					unionGeom = EnhancedPrecisionOp.union(unionGeom, geom);
+					unionGeom = overlay.union(unionGeom, overlay.prepare(geom));
 				}
 			}
 				
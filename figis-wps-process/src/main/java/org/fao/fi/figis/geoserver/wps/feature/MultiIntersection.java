@@ -0,0 +1,402 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.fao.fi.figis.geoserver.wps.FigisProcess;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngine;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngines;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.process.ProcessException;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.geotools.process.gs.WrappingIterator;
+import org.geotools.process.vector.ReprojectProcess;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/** A multi-way intersection process
+ *  Intersects N feature collections in a single pass, without building the intermediate
+ *  intersection layers that would be produced by chaining the Generic Intersection process.
+ *  The output follows the Generic Intersection attribute naming (L1..Ln) and includes the
+ *  intersection area (INT_AREA).
+ *
+ * @author Emmanuel Blondel (FAO)
+ * <emmanuel.blondel@fao.org><emmanuel.blondel1gmail.com>
+ *
+ */
+@DescribeProcess(title="Multi Intersection",
+				 description="Performs an N-way intersection of polygon feature collections in a single pass, associated with an area computation"
+				 )
+public class MultiIntersection implements FigisProcess{
+
+	private static Logger logger = Logger.getLogger(MultiIntersection.class);
+
+
+	@DescribeResult(name="result", description="output result")
+	 public SimpleFeatureCollection execute(
+			 @DescribeParameter(name="data",description="The polygon feature collections to intersect (at least 2), in the order of the output L1..Ln attributes",
+			 					min=2, collectionType=SimpleFeatureCollection.class) List<SimpleFeatureCollection> layers,
+			 @DescribeParameter(name="precision",description="Precision grid size (e.g. 1e-7 for decimal degrees) to which geometries are snapped before overlay. "
+			 										 +"If not specified, the floating precision is used (or the precision configured for the fixed engine)", min=0) Double precision,
+			 @DescribeParameter(name="engine",description="Overlay engine: default (floating precision), fixed (requires a precision) or snap. If not specified, the fixed engine is used when a precision is given, otherwise the engine configured by the figis.overlay.engine system property (with the figis.overlay.precision system property for the fixed engine), or else the default one", min=0) String engine
+			){
+
+		if(layers == null || layers.size() < 2){
+			throw new IllegalArgumentException("At least 2 feature collections are required");
+		}
+
+		//check input geometry types
+		for(SimpleFeatureCollection layer : layers){
+			Class<?> binding = layer.getSchema().getGeometryDescriptor().getType().getBinding();
+			if(!(binding.equals(Polygon.class) || binding.equals(MultiPolygon.class))){
+				throw new IllegalArgumentException("Input data must be Polygon feature collections ("+layer.getSchema().getTypeName()+")");
+			}
+		}
+
+		//check input CRS
+		List<SimpleFeatureCollection> inputs = new ArrayList<SimpleFeatureCollection>();
+		CoordinateReferenceSystem inputCRS1 = layers.get(0).getSchema().getCoordinateReferenceSystem();
+		inputs.add(layers.get(0));
+		for(int i=1; i<layers.size(); i++){
+			SimpleFeatureCollection layer = layers.get(i);
+			CoordinateReferenceSystem inputCRS = layer.getSchema().getCoordinateReferenceSystem();
+			if(!CRS.equalsIgnoreMetadata(inputCRS1, inputCRS)){
+				try{
+					ReprojectProcess reproject = new ReprojectProcess();
+					layer = reproject.execute(layer, inputCRS, inputCRS1);
+
+				}catch (Exception e){
+					throw new ProcessException("Input CRS of feature collection "+(i+1)+" is different. Reprojection intent failed: ", e);
+				}
+			}
+			inputs.add(layer);
+		}
+
+		String engineName = OverlayEngines.getName(engine, precision);
+		precision = OverlayEngines.getPrecision(engine, precision);
+		OverlayEngines.create(engineName, precision); //check the overlay engine
+		return new MultiIntersectionFeatureCollection(inputs, engineName, precision);
+	}
+
+
+
+	/** MultiIntersectionFeatureCollection
+	 *
+	 * @author eblondel
+	 *
+	 */
+	static class MultiIntersectionFeatureCollection extends DecoratingSimpleFeatureCollection{
+
+		List<SimpleFeatureCollection> layers;
+		SimpleFeatureType schema;
+		String engine;
+		Double precision;
+
+
+		/** Constructor
+		 *
+		 * @param layers
+		 * @param engine the overlay engine name
+		 * @param precision the precision grid size, null for floating precision
+		 */
+		protected MultiIntersectionFeatureCollection(List<SimpleFeatureCollection> layers, String engine, Double precision) {
+			super(layers.get(0));
+			this.layers = layers;
+			this.engine = engine;
+			this.precision = precision;
+
+			SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+			tb.setCRS(delegate.getSchema().getCoordinateReferenceSystem());
+			tb.add(delegate.getSchema().getGeometryDescriptor().getLocalName(), MultiPolygon.class);
+
+			//add attribute descriptors from each layer
+			int dim = 0;
+			StringBuilder ftName = new StringBuilder();
+			for(SimpleFeatureCollection layer : layers){
+				dim = GenericIntersection.addLayerAttributes(tb, layer.getSchema(), dim + 1);
+				if(ftName.length() > 0){
+					ftName.append(GenericIntersection.INT_OP);
+				}
+				ftName.append(layer.getSchema().getTypeName());
+			}
+
+			tb.add(GenericIntersection.AREA_ATT_NAME, Double.class); // add attribute to handle the intersection area
+			tb.setName(ftName.toString());
+			this.schema = tb.buildFeatureType();
+		}
+
+		@Override
+		public SimpleFeatureType getSchema() {
+			return schema;
+		}
+
+		@Override
+		public SimpleFeatureIterator features() {
+			return new MultiIntersectionFeatureIterator(delegate.features(), layers, schema, OverlayEngines.create(engine, precision));
+		}
+
+		public Iterator<SimpleFeature> iterator() {
+			return new WrappingIterator(features());
+		}
+
+		public void close(Iterator<SimpleFeature> close) {
+			if (close instanceof WrappingIterator) {
+				((WrappingIterator) close).close();
+			}
+		}
+
+	}
+
+
+
+	/** MultiIntersection FeatureIterator
+	 *  For each feature of the first layer, the iterator descends through the other layers using
+	 *  their spatial index, and prunes a branch as soon as the current intersection gets empty.
+	 *  The intersections of a first layer feature are computed in one go, and then streamed.
+	 *
+	 * @author eblondel
+	 *
+	 */
+	static class MultiIntersectionFeatureIterator implements SimpleFeatureIterator{
+
+		SimpleFeatureIterator delegate;
+		List<SimpleFeatureCollection> layers;
+		SimpleFeatureType targetSchema;
+		SimpleFeatureBuilder fb;
+		GeometryFactory gf;
+		MathTransform areaTransform;
+		OverlayEngine overlay;
+
+		List<STRtree> indexes;
+		LinkedList<SimpleFeature> buffer = new LinkedList<SimpleFeature>();
+		SimpleFeature next;
+		int iterationIndex = 0;
+		int prunedBranches = 0;
+
+
+		/** Constructor
+		 *
+		 * @param delegate
+		 * @param layers
+		 * @param targetSchema
+		 * @param overlay
+		 */
+		public MultiIntersectionFeatureIterator(SimpleFeatureIterator delegate, List<SimpleFeatureCollection> layers, SimpleFeatureType targetSchema,
+												OverlayEngine overlay){
+			this.delegate = delegate;
+			this.layers = layers;
+			this.targetSchema = targetSchema;
+			this.fb = new SimpleFeatureBuilder(targetSchema);
+			this.gf = new GeometryFactory();
+			this.overlay = overlay;
+
+			try{
+				this.areaTransform = CRS.findMathTransform(targetSchema.getCoordinateReferenceSystem(), CRS.parseWKT(GenericIntersection.ECKERT_IV_WKT));
+			}catch(Exception e){
+				throw new ProcessException("Unable to get the area computation transform", e);
+			}
+
+			this.indexes = new ArrayList<STRtree>();
+			for(int i=1; i<layers.size(); i++){
+				this.indexes.add(this.buildIndex(layers.get(i)));
+			}
+		}
+
+
+		/** Build the spatial index of a layer
+		 *  The indexed geometries are prepared for the overlay engine once, when the layer is read.
+		 *
+		 * @param layer
+		 * @return
+		 */
+		private STRtree buildIndex(SimpleFeatureCollection layer){
+			STRtree index = new STRtree();
+			SimpleFeatureIterator it = layer.features();
+			try{
+				while(it.hasNext()){
+					SimpleFeature sf = it.next();
+					Geometry geom = (Geometry) sf.getDefaultGeometry();
+					if(geom != null && !geom.isEmpty()){
+						index.insert(geom.getEnvelopeInternal(), new IndexedFeature(sf, overlay.prepare(geom)));
+					}
+				}
+			}finally{
+				if(it != null){
+					it.close();
+				}
+			}
+			index.build();
+			return index;
+		}
+
+
+		public boolean hasNext() {
+			while(next == null){
+				if(!buffer.isEmpty()){
+					next = buffer.removeFirst();
+
+				}else if(delegate.hasNext()){
+					SimpleFeature first = delegate.next();
+					Geometry geom = overlay.prepare((Geometry) first.getDefaultGeometry());
+					if(geom != null && !geom.isEmpty()){
+						List<SimpleFeature> chain = new ArrayList<SimpleFeature>();
+						chain.add(first);
+						try{
+							this.descend(0, geom, chain);
+						}catch(Exception e){
+							throw new ProcessException("Failed to get intersections for " + first, e);
+						}
+					}
+
+				}else{
+					break;
+				}
+			}
+			return next != null;
+		}
+
+
+		/** Descend through the layers from a given level
+		 *
+		 * @param level index of the layer (in the list of indexes) to intersect with
+		 * @param geometry the current intersection geometry
+		 * @param chain the features intersected so far
+		 * @throws Exception
+		 */
+		private void descend(int level, Geometry geometry, List<SimpleFeature> chain) throws Exception{
+
+			if(level == indexes.size()){
+				buffer.add(this.buildFeature(geometry, chain));
+				return;
+			}
+
+			@SuppressWarnings("unchecked")
+			List<IndexedFeature> candidates = indexes.get(level).query(geometry.getEnvelopeInternal());
+			for(IndexedFeature candidate : candidates){
+				Geometry geom = candidate.geometry;
+				if(!geometry.getEnvelopeInternal().intersects(geom.getEnvelopeInternal())){
+					continue;
+				}
+
+				Geometry intersection = this.extractPolygons(overlay.intersection(geometry, geom));
+				if(intersection == null){
+					prunedBranches++; //empty branch
+					continue;
+				}
+
+				chain.add(candidate.feature);
+				this.descend(level + 1, intersection, chain);
+				chain.remove(chain.size() - 1);
+			}
+		}
+
+
+		/** Extract the polygonal part of an intersection geometry, as a valid MultiPolygon
+		 *
+		 * @param geometry
+		 * @return the multipolygon, null if the intersection has no polygonal part
+		 */
+		private MultiPolygon extractPolygons(Geometry geometry){
+			if(geometry == null || geometry.isEmpty()){
+				return null;
+			}
+
+			List<Polygon> polygons = new ArrayList<Polygon>();
+			for(int i=0; i < geometry.getNumGeometries(); i++){
+				Geometry extractedGeom = geometry.getGeometryN(i);
+				if(extractedGeom instanceof Polygon && !extractedGeom.isEmpty()){
+					polygons.add((Polygon) extractedGeom);
+				}
+			}
+			if(polygons.isEmpty()){
+				return null;
+			}
+
+			Geometry result = gf.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+			if(!result.isValid()){
+				result = overlay.buffer(result, 0);
+				if(result instanceof Polygon){
+					result = gf.createMultiPolygon(new Polygon[]{(Polygon) result});
+				}
+			}
+			return (result instanceof MultiPolygon && !result.isEmpty())? (MultiPolygon) result : null;
+		}
+
+
+		/** Build the output feature
+		 *
+		 * @param geometry
+		 * @param chain
+		 * @return
+		 * @throws Exception
+		 */
+		private SimpleFeature buildFeature(Geometry geometry, List<SimpleFeature> chain) throws Exception{
+
+			fb.add(geometry);
+			for(SimpleFeature feature : chain){
+				GenericIntersection.addAttributeValues(fb, feature);
+			}
+			fb.add(JTS.transform(geometry, areaTransform).getArea());
+
+			SimpleFeature result = fb.buildFeature(String.valueOf(iterationIndex));
+			fb.reset();
+			iterationIndex++;
+			return result;
+		}
+
+
+		public SimpleFeature next() throws NoSuchElementException {
+			if (!hasNext()) {
+				throw new NoSuchElementException("hasNext() returned false!");
+			}
+
+			SimpleFeature result = next;
+			next = null;
+			return result;
+		}
+
+
+		public void close() {
+			delegate.close();
+			logger.info("Multi intersection: "+iterationIndex+" features, "+prunedBranches+" pruned branches. "+overlay);
+		}
+
+	}
+
+
+
+	/** A feature of the spatial index of a layer, with its prepared geometry
+	 *
+	 */
+	static class IndexedFeature{
+
+		SimpleFeature feature;
+		Geometry geometry;
+
+		IndexedFeature(SimpleFeature feature, Geometry geometry){
+			this.feature = feature;
+			this.geometry = geometry;
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geotools.geometry.jts.JTS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Cache of the equal-area size of the source features of an intersection
+ *  Each source feature is measured once for a whole run, whatever the number of
+ *  intersections it is involved in.
+ *
+ * @author eblondel
+ *
+ */
+class SourceAreaCache {
+
+	MathTransform areaTransform;
+	Map<String, Double> areas = new HashMap<String, Double>();
+
+
+	/** Constructor
+	 *
+	 * @param areaTransform the transform to the equal-area CRS
+	 */
+	SourceAreaCache(MathTransform areaTransform){
+		this.areaTransform = areaTransform;
+	}
+
+
+	/** Get the equal-area size of a source feature
+	 *
+	 * @param feature
+	 * @return
+	 * @throws TransformException
+	 */
+	double getArea(SimpleFeature feature) throws TransformException{
+		String key = feature.getFeatureType().getTypeName() + "/" + feature.getID();
+		Double area = areas.get(key);
+		if(area == null){
+			Geometry geometry = (Geometry) feature.getDefaultGeometry();
+			area = (geometry != null)? JTS.transform(geometry, areaTransform).getArea() : 0;
+			areas.put(key, area);
+		}
+		return area;
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.fao.fi.figis.geoserver.wps.utils.overlay.DecomposedGeometry;
+import org.fao.fi.figis.geoserver.wps.utils.overlay.OverlayEngine;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Cache of the prepared geometries of source features
+ *  The features of the second collection of an intersection are read once per intersected feature of
+ *  the first collection. Their geometry is prepared for the overlay engine (e.g. snapped to the precision
+ *  grid) the first time they are read, and kept in a bounded LRU cache. The decompositions of their
+ *  complex geometries (pieces with a bounded number of vertices) are kept in a second, smaller LRU cache,
+ *  so that a geometry is decomposed once and its piece index queried by each intersected feature.
+ *
+ * @author eblondel
+ *
+ */
+class SourceGeometryCache {
+
+	static final int DEFAULT_MAX_ENTRIES = 1000;
+	static final int DEFAULT_MAX_DECOMPOSITIONS = 100;
+
+	OverlayEngine overlay;
+	Map<String, Geometry> geometries;
+	Map<String, DecomposedGeometry> decomposed;
+	int hits = 0;
+	int decompositions = 0;
+
+
+	/** Constructor
+	 *
+	 * @param overlay the overlay engine preparing the geometries
+	 * @param maxEntries the maximum number of geometries held in the cache
+	 * @param maxDecompositions the maximum number of decomposed geometries held in the cache
+	 */
+	SourceGeometryCache(OverlayEngine overlay, final int maxEntries, final int maxDecompositions){
+		this.overlay = overlay;
+		this.geometries = new LinkedHashMap<String, Geometry>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Geometry> eldest){
+				return size() > maxEntries;
+			}
+		};
+		this.decomposed = new LinkedHashMap<String, DecomposedGeometry>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DecomposedGeometry> eldest){
+				return size() > maxDecompositions;
+			}
+		};
+	}
+
+
+	/** Get the prepared geometry of a source feature
+	 *
+	 * @param feature
+	 * @return the prepared geometry, null if the feature has no geometry
+	 */
+	Geometry getGeometry(SimpleFeature feature){
+		String key = getKey(feature);
+		Geometry geometry = geometries.get(key);
+		if(geometry != null){
+			hits++;
+			return geometry;
+		}
+		geometry = overlay.prepare((Geometry) feature.getDefaultGeometry());
+		if(geometry != null){
+			geometries.put(key, geometry);
+		}
+		return geometry;
+	}
+
+
+	/** Get the decomposition of the (prepared) geometry of a source feature
+	 *
+	 * @param feature
+	 * @param geometry the prepared geometry of the feature
+	 * @param maxVertices the maximum number of vertices of a piece
+	 * @return
+	 */
+	DecomposedGeometry getDecomposition(SimpleFeature feature, Geometry geometry, int maxVertices){
+		String key = getKey(feature);
+		DecomposedGeometry pieces = decomposed.get(key);
+		if(pieces == null){
+			pieces = new DecomposedGeometry(feature.getID(), geometry, maxVertices);
+			decomposed.put(key, pieces);
+			decompositions++;
+		}
+		return pieces;
+	}
+
+
+	/** Get the cache key of a source feature
+	 *
+	 * @param feature
+	 * @return
+	 */
+	static String getKey(SimpleFeature feature){
+		return feature.getFeatureType().getTypeName() + "/" + feature.getID();
+	}
+
+
+	/** Get the number of cache hits
+	 *
+	 * @return
+	 */
+	int getHits(){
+		return hits;
+	}
+
+
+	/** Get the number of geometries decomposed by the cache
+	 *
+	 * @return
+	 */
+	int getDecompositions(){
+		return decompositions;
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.fao.fi.figis.geoserver.wps.utils.csquare.SpaceFillingCurve;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore.FeatureFileWriter;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/** A feature collection whose features are returned along a space filling curve
+ *  (Hilbert or Z-order key of their envelope centre), so that consecutive features are close in space.
+ *
+ *  The features are sorted by a single pass over the delegate collection (external merge sort): they are
+ *  sorted in memory by runs of a bounded size, and when there is more than one run, the sorted runs are
+ *  spilled to temporary feature store files, and merged when the features are iterated. The run files
+ *  are deleted when the iterator is closed.
+ *
+ * @author eblondel
+ *
+ */
+class SpatiallyOrderedFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+	static final int DEFAULT_MAX_FEATURES = 10000;
+
+	SpaceFillingCurve curve;
+	int maxFeatures;
+
+
+	/** Constructor
+	 *
+	 * @param delegate
+	 * @param curve
+	 */
+	SpatiallyOrderedFeatureCollection(SimpleFeatureCollection delegate, SpaceFillingCurve curve){
+		this(delegate, curve, DEFAULT_MAX_FEATURES);
+	}
+
+
+	/** Constructor
+	 *
+	 * @param delegate
+	 * @param curve
+	 * @param maxFeatures the maximum number of features sorted in memory (size of a run)
+	 */
+	SpatiallyOrderedFeatureCollection(SimpleFeatureCollection delegate, SpaceFillingCurve curve, int maxFeatures){
+		super(delegate);
+		if(maxFeatures < 1){
+			throw new IllegalArgumentException("The maximum number of features sorted in memory must be strictly positive");
+		}
+		this.curve = curve;
+		this.maxFeatures = maxFeatures;
+	}
+
+
+	@Override
+	public SimpleFeatureIterator features(){
+		try{
+			return new SpatiallyOrderedFeatureIterator(delegate.features(), curve, maxFeatures);
+		}catch(IOException e){
+			throw new RuntimeException("Unable to order the features along the space filling curve", e);
+		}
+	}
+
+
+
+	/** A feature with its curve key
+	 *  (features without geometry come last, ties are ordered by ID)
+	 *
+	 */
+	static class OrderedFeature implements Comparable<OrderedFeature>{
+
+		SimpleFeature feature;
+		long key;
+		int run;
+
+		OrderedFeature(SimpleFeature feature, SpaceFillingCurve curve, int run){
+			this.feature = feature;
+			this.key = getKey(feature, curve);
+			this.run = run;
+		}
+
+		public int compareTo(OrderedFeature other) {
+			if(key != other.key){
+				return key < other.key? -1 : 1;
+			}
+			return feature.getID().compareTo(other.feature.getID());
+		}
+
+		/** Get the curve key of a feature
+		 *
+		 * @param feature
+		 * @param curve
+		 * @return the key, Long.MAX_VALUE for a feature without geometry
+		 */
+		static long getKey(SimpleFeature feature, SpaceFillingCurve curve){
+			if(feature.getDefaultGeometry() == null){
+				return Long.MAX_VALUE;
+			}
+			Envelope envelope = new Envelope(feature.getBounds().getMinX(), feature.getBounds().getMaxX(),
+											 feature.getBounds().getMinY(), feature.getBounds().getMaxY());
+			return envelope.isNull()? Long.MAX_VALUE : curve.getKey(envelope);
+		}
+	}
+
+
+
+	/** Iterator over the features in the curve order
+	 *  The delegate features are sorted when the iterator is created (the delegate is closed once read).
+	 *
+	 */
+	static class SpatiallyOrderedFeatureIterator implements SimpleFeatureIterator{
+
+		SpaceFillingCurve curve;
+		List<FeatureFileStore> runs = new ArrayList<FeatureFileStore>();
+		List<SimpleFeatureIterator> runIterators = new ArrayList<SimpleFeatureIterator>();
+		PriorityQueue<OrderedFeature> heads = new PriorityQueue<OrderedFeature>();
+		Iterator<OrderedFeature> sorted;
+
+
+		/** Constructor
+		 *
+		 * @param delegate
+		 * @param curve
+		 * @param maxFeatures the maximum number of features sorted in memory
+		 * @throws IOException
+		 */
+		SpatiallyOrderedFeatureIterator(SimpleFeatureIterator delegate, SpaceFillingCurve curve, int maxFeatures) throws IOException{
+			this.curve = curve;
+
+			List<OrderedFeature> buffer = new ArrayList<OrderedFeature>();
+			try{
+				while(delegate.hasNext()){
+					buffer.add(new OrderedFeature(delegate.next(), curve, 0));
+					if(buffer.size() >= maxFeatures){
+						this.spill(buffer);
+					}
+				}
+				if(runs.isEmpty()){
+					Collections.sort(buffer);
+					this.sorted = buffer.iterator();
+					return;
+				}
+				this.spill(buffer);
+
+				//merge of the sorted runs
+				for(int i = 0; i < runs.size(); i++){
+					SimpleFeatureIterator it = runs.get(i).getFeatures().features();
+					runIterators.add(it);
+					this.advance(i);
+				}
+
+			}catch(IOException e){
+				this.close();
+				throw e;
+
+			}catch(RuntimeException e){
+				this.close();
+				throw e;
+
+			}finally{
+				delegate.close();
+			}
+		}
+
+
+		/** Sort a buffer of features, and spill it to a run store file
+		 *
+		 * @param buffer
+		 * @throws IOException
+		 */
+		private void spill(List<OrderedFeature> buffer) throws IOException{
+			if(buffer.isEmpty()){
+				return;
+			}
+			Collections.sort(buffer);
+			FeatureFileStore run = new FeatureFileStore(File.createTempFile("figis-curve-", ".store"));
+			runs.add(run);
+			FeatureFileWriter writer = run.createWriter(buffer.get(0).feature.getFeatureType());
+			try{
+				for(OrderedFeature feature : buffer){
+					writer.write(feature.feature);
+				}
+				writer.close();
+
+			}catch(IOException e){
+				writer.abort();
+				throw e;
+
+			}catch(RuntimeException e){
+				writer.abort();
+				throw e;
+			}
+			buffer.clear();
+		}
+
+
+		/** Queue the next feature of a run
+		 *
+		 * @param run
+		 */
+		private void advance(int run){
+			SimpleFeatureIterator it = runIterators.get(run);
+			if(it.hasNext()){
+				heads.add(new OrderedFeature(it.next(), curve, run));
+			}
+		}
+
+
+		public boolean hasNext() {
+			return (sorted != null)? sorted.hasNext() : !heads.isEmpty();
+		}
+
+
+		public SimpleFeature next() throws NoSuchElementException {
+			if(!hasNext()){
+				throw new NoSuchElementException("hasNext() returned false!");
+			}
+			if(sorted != null){
+				return sorted.next().feature;
+			}
+			OrderedFeature head = heads.poll();
+			this.advance(head.run);
+			return head.feature;
+		}
+
+
+		public void close() {
+			for(SimpleFeatureIterator it : runIterators){
+				it.close();
+			}
+			runIterators.clear();
+			for(FeatureFileStore run : runs){
+				run.delete();
+			}
+			runs.clear();
+			heads.clear();
+			sorted = null;
+		}
+	}
+
+}
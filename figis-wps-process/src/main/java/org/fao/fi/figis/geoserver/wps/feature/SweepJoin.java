@@ -0,0 +1,192 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Plane sweep join of two feature collections
+ *  Both collections are loaded and sorted by envelope minX. The features of the first collection are then
+ *  iterated in that order, and the candidate features of the second collection (whose envelope intersects)
+ *  are found with a single sweep: an active set holds the second features started before the current
+ *  first feature and not yet ended, and a forward scan finds the ones starting within its extent.
+ *
+ *  Used instead of per-feature index queries when both collections are large.
+ *
+ * @author eblondel
+ *
+ */
+class SweepJoin implements SimpleFeatureIterator {
+
+	SimpleFeatureType secondSchema;
+	List<SweepItem> firstItems;
+	List<SweepItem> secondItems;
+
+	int firstIndex = 0;
+	int secondIndex = 0;
+	LinkedList<SweepItem> active = new LinkedList<SweepItem>();
+	List<SimpleFeature> candidates = new ArrayList<SimpleFeature>();
+	long pairs = 0;
+
+
+	/** Constructor
+	 *
+	 * @param first the first collection
+	 * @param second the second collection
+	 */
+	SweepJoin(SimpleFeatureCollection first, SimpleFeatureCollection second){
+		this.secondSchema = second.getSchema();
+		this.firstItems = load(first);
+		this.secondItems = load(second);
+	}
+
+
+	public boolean hasNext() {
+		return firstIndex < firstItems.size();
+	}
+
+
+	/** Get the next feature of the first collection (in minX order),
+	 *  and compute its candidates in the second collection
+	 *
+	 */
+	public SimpleFeature next() throws NoSuchElementException {
+		if(!hasNext()){
+			throw new NoSuchElementException("hasNext() returned false!");
+		}
+		SweepItem current = firstItems.get(firstIndex++);
+		Envelope env = current.envelope;
+		candidates.clear();
+
+		//remove the ended items from the active set
+		Iterator<SweepItem> it = active.iterator();
+		while(it.hasNext()){
+			if(it.next().envelope.getMaxX() < env.getMinX()){
+				it.remove();
+			}
+		}
+
+		//activate the items started before the current one
+		while(secondIndex < secondItems.size() && secondItems.get(secondIndex).envelope.getMinX() < env.getMinX()){
+			SweepItem item = secondItems.get(secondIndex++);
+			if(item.envelope.getMaxX() >= env.getMinX()){
+				active.add(item);
+			}
+		}
+
+		//active items overlap in x
+		for(SweepItem item : active){
+			if(overlapsY(item.envelope, env)){
+				candidates.add(item.feature);
+			}
+		}
+
+		//forward scan of the items starting within the current extent
+		for(int i = secondIndex; i < secondItems.size(); i++){
+			SweepItem item = secondItems.get(i);
+			if(item.envelope.getMinX() > env.getMaxX()){
+				break;
+			}
+			if(overlapsY(item.envelope, env)){
+				candidates.add(item.feature);
+			}
+		}
+
+		pairs += candidates.size();
+		return current.feature;
+	}
+
+
+	/** Get the candidate features of the second collection for the current feature
+	 *
+	 * @return
+	 */
+	SimpleFeatureCollection getCandidates(){
+		return new ListFeatureCollection(secondSchema, new ArrayList<SimpleFeature>(candidates));
+	}
+
+
+	/** Get the number of candidate pairs emitted
+	 *
+	 * @return
+	 */
+	long getPairs(){
+		return pairs;
+	}
+
+
+	public void close() {
+		active.clear();
+		candidates.clear();
+	}
+
+
+	/** Indicates if two envelopes overlap in y
+	 *
+	 * @param env1
+	 * @param env2
+	 * @return
+	 */
+	private static boolean overlapsY(Envelope env1, Envelope env2){
+		return env1.getMinY() <= env2.getMaxY() && env1.getMaxY() >= env2.getMinY();
+	}
+
+
+	/** Load the features of a collection, sorted by envelope minX
+	 *  (features without geometry are skipped)
+	 *
+	 * @param collection
+	 * @return
+	 */
+	private static List<SweepItem> load(SimpleFeatureCollection collection){
+		List<SweepItem> items = new ArrayList<SweepItem>();
+		SimpleFeatureIterator it = collection.features();
+		try{
+			while(it.hasNext()){
+				SimpleFeature feature = it.next();
+				Geometry geometry = (Geometry) feature.getDefaultGeometry();
+				if(geometry != null && !geometry.isEmpty()){
+					items.add(new SweepItem(feature, geometry.getEnvelopeInternal()));
+				}
+			}
+		}finally{
+			it.close();
+		}
+
+		Collections.sort(items, new Comparator<SweepItem>(){
+			public int compare(SweepItem item1, SweepItem item2) {
+				return Double.compare(item1.envelope.getMinX(), item2.envelope.getMinX());
+			}
+		});
+		return items;
+	}
+
+
+
+	/** A feature with its envelope
+	 *
+	 */
+	static class SweepItem{
+
+		SimpleFeature feature;
+		Envelope envelope;
+
+		SweepItem(SimpleFeature feature, Envelope envelope){
+			this.feature = feature;
+			this.envelope = envelope;
+		}
+	}
+
+}
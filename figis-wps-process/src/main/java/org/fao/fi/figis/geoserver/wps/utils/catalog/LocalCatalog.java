@@ -0,0 +1,107 @@
+package org.fao.fi.figis.geoserver.wps.utils.catalog;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.Name;
+
+/** Access to the layers of the local GeoServer catalog
+ *  When the processes run inside GeoServer, the reference layers can be read directly from the catalog
+ *  feature sources, instead of a WFS loopback to the same GeoServer (no GML encoding/parsing, no HTTP).
+ *
+ * @author eblondel
+ *
+ */
+public class LocalCatalog {
+
+	private static Logger logger = Logger.getLogger(LocalCatalog.class);
+
+
+	/** Get the local GeoServer catalog
+	 *  The catalog is looked up by bean name, GeoServer declaring several beans of the Catalog type
+	 *  (e.g. the raw catalog and the secured catalog).
+	 *
+	 * @return the catalog, null if not running inside GeoServer
+	 */
+	public static Catalog getCatalog(){
+		try{
+			return (Catalog) GeoServerExtensions.bean("catalog");
+		}catch(Exception e){
+			logger.warn("Unable to get the local GeoServer catalog", e);
+			return null;
+		}
+	}
+
+
+	/** Get the feature source of a layer of the local catalog
+	 *
+	 * @param catalog
+	 * @param prefix the layer namespace prefix
+	 * @param name the layer name
+	 * @return the feature source, null if the layer is not a (simple feature) layer of the catalog
+	 * @throws IOException
+	 */
+	public static SimpleFeatureSource getFeatureSource(Catalog catalog, String prefix, String name) throws IOException{
+		if(catalog == null){
+			return null;
+		}
+		return getFeatureSource(catalog.getFeatureTypeByName(prefix, name));
+	}
+
+
+	/** Get the feature source of a layer of the local GeoServer catalog, by qualified name
+	 *
+	 * @param name the layer qualified name (namespace URI and local name)
+	 * @return the feature source, null if not running inside GeoServer or if the layer is not a (simple feature) layer of the catalog
+	 * @throws IOException
+	 */
+	public static SimpleFeatureSource getFeatureSource(Name name) throws IOException{
+		Catalog catalog = getCatalog();
+		if(catalog == null){
+			return null;
+		}
+		return getFeatureSource(catalog.getFeatureTypeByName(name));
+	}
+
+
+	/** Get the simple feature source of a catalog feature type
+	 *
+	 * @param info
+	 * @return the feature source, null if there is no feature type or if it is not a simple feature type
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private static SimpleFeatureSource getFeatureSource(FeatureTypeInfo info) throws IOException{
+		if(info == null){
+			return null;
+		}
+		FeatureSource<? extends FeatureType, ? extends Feature> source = info.getFeatureSource(null, null);
+		if(!(source.getSchema() instanceof SimpleFeatureType)){
+			return null;
+		}
+		return DataUtilities.simple((FeatureSource<SimpleFeatureType, SimpleFeature>) source);
+	}
+
+
+	/** Get the feature source of a layer of the local GeoServer catalog
+	 *
+	 * @param prefix the layer namespace prefix
+	 * @param name the layer name
+	 * @return the feature source, null if not running inside GeoServer or if the layer is not in the catalog
+	 * @throws IOException
+	 */
+	public static SimpleFeatureSource getFeatureSource(String prefix, String name) throws IOException{
+		return getFeatureSource(getCatalog(), prefix, name);
+	}
+
+}
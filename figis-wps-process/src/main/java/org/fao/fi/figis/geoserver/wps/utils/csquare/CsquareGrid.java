@@ -0,0 +1,143 @@
+package org.fao.fi.figis.geoserver.wps.utils.csquare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/** A regular grid of c-squares, used to partition a geographic extent
+ *  into squares of a given c-square resolution.
+ *
+ * @author eblondel
+ *
+ */
+public class CsquareGrid {
+
+	private static final double MIN_LON = -180;
+	private static final double MAX_LON = 180;
+	private static final double MIN_LAT = -90;
+	private static final double MAX_LAT = 90;
+
+	double resolution;
+
+
+	/** Constructor
+	 *
+	 * @param resolution the c-square resolution (in decimal degrees)
+	 */
+	public CsquareGrid(double resolution){
+		if(!CsquareUtils.isValidResolution(resolution)){
+			throw new IllegalArgumentException("The input resolution is not valid");
+		}
+		this.resolution = resolution;
+	}
+
+
+	/** Get the grid resolution
+	 *
+	 * @return
+	 */
+	public double getResolution(){
+		return this.resolution;
+	}
+
+
+	/** Get the c-squares covering a geographic extent
+	 *
+	 * @param bounds
+	 * @return an ordered map of c-square codes with their envelope
+	 */
+	public Map<String, Envelope> getSquares(Envelope bounds){
+
+		Map<String, Envelope> squares = new LinkedHashMap<String, Envelope>();
+		if(bounds == null || bounds.isNull()){
+			return squares;
+		}
+
+		double minX = Math.max(bounds.getMinX(), MIN_LON);
+		double maxX = Math.min(bounds.getMaxX(), MAX_LON);
+		double minY = Math.max(bounds.getMinY(), MIN_LAT);
+		double maxY = Math.min(bounds.getMaxY(), MAX_LAT);
+
+		int minCol = this.getIndex(minX, MIN_LON);
+		int maxCol = this.getUpperIndex(maxX, MIN_LON, minCol);
+		int minRow = this.getIndex(minY, MIN_LAT);
+		int maxRow = this.getUpperIndex(maxY, MIN_LAT, minRow);
+
+		for(int row = minRow; row <= maxRow; row++){
+			double y1 = MIN_LAT + row * resolution;
+			double y2 = Math.min(y1 + resolution, MAX_LAT);
+			if(y1 >= MAX_LAT){
+				break;
+			}
+
+			for(int col = minCol; col <= maxCol; col++){
+				double x1 = MIN_LON + col * resolution;
+				double x2 = Math.min(x1 + resolution, MAX_LON);
+				if(x1 >= MAX_LON){
+					break;
+				}
+
+				CsquarePoint center = new CsquarePoint((x1 + x2) / 2, (y1 + y2) / 2);
+				squares.put(center.getCsquareCode(resolution).getValue(), new Envelope(x1, x2, y1, y2));
+			}
+		}
+
+		return squares;
+	}
+
+
+	/** Get the c-squares covering a geographic extent, ordered along a space filling curve
+	 *
+	 * @param bounds
+	 * @param curve
+	 * @return an ordered map of c-square codes with their envelope
+	 */
+	public Map<String, Envelope> getSquares(Envelope bounds, final SpaceFillingCurve curve){
+
+		List<Entry<String, Envelope>> squares = new ArrayList<Entry<String, Envelope>>(this.getSquares(bounds).entrySet());
+		Collections.sort(squares, new Comparator<Entry<String, Envelope>>(){
+			public int compare(Entry<String, Envelope> s1, Entry<String, Envelope> s2) {
+				long k1 = curve.getKey(s1.getValue());
+				long k2 = curve.getKey(s2.getValue());
+				return k1 < k2? -1 : (k1 > k2? 1 : 0);
+			}
+		});
+
+		Map<String, Envelope> orderedSquares = new LinkedHashMap<String, Envelope>();
+		for(Entry<String, Envelope> square : squares){
+			orderedSquares.put(square.getKey(), square.getValue());
+		}
+		return orderedSquares;
+	}
+
+
+	/** Get the index of the grid cell (column or row) containing a lower bound value
+	 *
+	 * @param value
+	 * @param origin
+	 * @return
+	 */
+	private int getIndex(double value, double origin){
+		return (int) Math.floor((value - origin) / resolution);
+	}
+
+
+	/** Get the index of the last grid cell (column or row) covering an upper bound value
+	 *  A bound lying on a grid line does not add the cell that only touches it.
+	 *
+	 * @param value
+	 * @param origin
+	 * @param minIndex the index of the lower bound cell
+	 * @return
+	 */
+	private int getUpperIndex(double value, double origin, int minIndex){
+		return Math.max((int) Math.ceil((value - origin) / resolution) - 1, minIndex);
+	}
+
+}
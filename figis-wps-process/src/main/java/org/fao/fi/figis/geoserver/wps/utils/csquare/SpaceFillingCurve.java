@@ -0,0 +1,159 @@
+package org.fao.fi.figis.geoserver.wps.utils.csquare;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/** A space filling curve (Hilbert or Z-order) over a rectangular extent
+ *  The extent is divided in a grid of 2^order x 2^order cells, and each cell gets its index along
+ *  the curve. Locations close along the curve are close in space, so the curve key can be used to
+ *  order features (or c-squares) for spatial locality.
+ *
+ * @author eblondel
+ *
+ */
+public class SpaceFillingCurve {
+
+	/** Curve type
+	 *
+	 */
+	public enum Type{
+
+		HILBERT, ZORDER;
+
+		/** Get the curve type from a parameter value (e.g. "hilbert", "z-order")
+		 *
+		 * @param value
+		 * @return
+		 */
+		public static Type fromValue(String value){
+			String type = value.trim().toUpperCase().replace("-", "").replace("_", "");
+			for(Type t : Type.values()){
+				if(t.name().equals(type)){
+					return t;
+				}
+			}
+			throw new IllegalArgumentException("Unknown space filling curve "+value);
+		}
+	}
+
+	public static final int DEFAULT_ORDER = 16;
+
+	Type type;
+	Envelope extent;
+	int order;
+	int size;
+
+
+	/** Constructor
+	 *
+	 * @param type the curve type
+	 * @param extent the extent covered by the curve
+	 * @param order the curve order (number of bits per dimension, from 1 to 31)
+	 */
+	public SpaceFillingCurve(Type type, Envelope extent, int order){
+		if(order < 1 || order > 31){
+			throw new IllegalArgumentException("The curve order must be between 1 and 31");
+		}
+		if(extent == null || extent.isNull()){
+			throw new IllegalArgumentException("The curve extent must not be empty");
+		}
+		this.type = type;
+		this.extent = extent;
+		this.order = order;
+		this.size = 1 << order;
+	}
+
+
+	/** Get a curve of the default order covering the geographic extent
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static SpaceFillingCurve geographic(Type type){
+		return new SpaceFillingCurve(type, new Envelope(-180, 180, -90, 90), DEFAULT_ORDER);
+	}
+
+
+	/** Get the curve key of a location
+	 *  Locations outside of the curve extent are given the key of the nearest cell.
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public long getKey(double x, double y){
+		int col = this.getIndex(x, extent.getMinX(), extent.getWidth());
+		int row = this.getIndex(y, extent.getMinY(), extent.getHeight());
+		return (type == Type.HILBERT)? hilbertKey(col, row) : zOrderKey(col, row);
+	}
+
+
+	/** Get the curve key of an envelope centre
+	 *
+	 * @param envelope
+	 * @return
+	 */
+	public long getKey(Envelope envelope){
+		return this.getKey(envelope.centre().x, envelope.centre().y);
+	}
+
+
+	/** Get the cell index of a coordinate value
+	 *
+	 * @param value
+	 * @param min
+	 * @param length
+	 * @return
+	 */
+	private int getIndex(double value, double min, double length){
+		if(length <= 0){
+			return 0;
+		}
+		int index = (int) Math.floor((value - min) / length * size);
+		return Math.max(0, Math.min(size - 1, index));
+	}
+
+
+	/** Get the Hilbert curve index of a cell
+	 *
+	 * @param x the cell column
+	 * @param y the cell row
+	 * @return
+	 */
+	private long hilbertKey(int x, int y){
+		long key = 0;
+		for(int s = size / 2; s > 0; s /= 2){
+			int rx = (x & s) > 0? 1 : 0;
+			int ry = (y & s) > 0? 1 : 0;
+			key += (long) s * s * ((3 * rx) ^ ry);
+
+			//rotate the quadrant
+			if(ry == 0){
+				if(rx == 1){
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return key;
+	}
+
+
+	/** Get the Z-order (Morton) index of a cell
+	 *
+	 * @param x the cell column
+	 * @param y the cell row
+	 * @return
+	 */
+	private long zOrderKey(int x, int y){
+		long key = 0;
+		for(int i = 0; i < order; i++){
+			key |= ((long) (x >> i) & 1) << (2 * i);
+			key |= ((long) (y >> i) & 1) << (2 * i + 1);
+		}
+		return key;
+	}
+
+}
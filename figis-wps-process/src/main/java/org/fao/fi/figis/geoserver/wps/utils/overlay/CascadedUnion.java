@@ -0,0 +1,166 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/** Cascaded union of a set of geometries
+ *  The geometries are first grouped by spatial proximity in an envelope tree (STR packed R-tree), then
+ *  the nodes of the tree are unioned bottom-up, each node being the union of its (nearby) children.
+ *  Compared to a left fold union, the intermediate results remain small and the number of vertices
+ *  involved in each union operation is bounded by the neighbourhood, not by the total size.
+ *
+ *  The union operations are performed with an overlay engine, and counted. As the overlay operations
+ *  do not accept heterogeneous geometry collections, these are split in their components, and the
+ *  components are unioned by dimension (the result then being a collection of the unions by dimension).
+ *
+ * @author eblondel
+ *
+ */
+public class CascadedUnion {
+
+	private static final int NODE_CAPACITY = 4;
+
+	OverlayEngine overlay;
+	long unions = 0;
+
+
+	/** Constructor
+	 *
+	 * @param overlay the overlay engine performing the union operations
+	 */
+	public CascadedUnion(OverlayEngine overlay){
+		this.overlay = overlay;
+	}
+
+
+	/** Computes the union of a set of geometries (null and empty geometries are ignored)
+	 *
+	 * @param geometries
+	 * @return the union geometry, null if there is no geometry
+	 */
+	public Geometry union(Collection<Geometry> geometries){
+		List<List<Geometry>> components = new ArrayList<List<Geometry>>();
+		for(int dimension = 0; dimension <= 2; dimension++){
+			components.add(new ArrayList<Geometry>());
+		}
+		for(Geometry geometry : geometries){
+			addComponents(geometry, components);
+		}
+
+		List<Geometry> unions = new ArrayList<Geometry>();
+		for(int dimension = 2; dimension >= 0; dimension--){
+			Geometry union = this.unionComponents(components.get(dimension));
+			if(union != null){
+				unions.add(union);
+			}
+		}
+		if(unions.isEmpty()){
+			return null;
+		}
+		if(unions.size() == 1){
+			return unions.get(0);
+		}
+		return unions.get(0).getFactory().buildGeometry(unions);
+	}
+
+
+	/** Add the (non empty) components of a geometry, by dimension
+	 *  Heterogeneous geometry collections are split, homogeneous ones (multi-geometries) are kept as they are.
+	 *
+	 * @param geometry
+	 * @param components the components, by dimension
+	 */
+	private static void addComponents(Geometry geometry, List<List<Geometry>> components){
+		if(geometry == null || geometry.isEmpty()){
+			return;
+		}
+		if(geometry.getClass() == GeometryCollection.class){
+			for(int i = 0; i < geometry.getNumGeometries(); i++){
+				addComponents(geometry.getGeometryN(i), components);
+			}
+			return;
+		}
+		components.get(geometry.getDimension()).add(geometry);
+	}
+
+
+	/** Union a set of components of the same dimension
+	 *
+	 * @param geometries
+	 * @return the union geometry, null if there is no geometry
+	 */
+	private Geometry unionComponents(List<Geometry> geometries){
+		if(geometries.isEmpty()){
+			return null;
+		}
+		if(geometries.size() == 1){
+			return geometries.get(0);
+		}
+		STRtree index = new STRtree(NODE_CAPACITY);
+		for(Geometry geometry : geometries){
+			index.insert(geometry.getEnvelopeInternal(), geometry);
+		}
+		return this.unionTree(index.itemsTree());
+	}
+
+
+	/** Get the number of union operations performed
+	 *
+	 * @return
+	 */
+	public long getUnions(){
+		return this.unions;
+	}
+
+
+	/** Union the items of a tree node (geometries or child nodes)
+	 *
+	 * @param node
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	private Geometry unionTree(List node){
+		List<Geometry> geometries = new ArrayList<Geometry>(node.size());
+		for(Object item : node){
+			Geometry geometry = (item instanceof List)? this.unionTree((List) item) : (Geometry) item;
+			if(geometry != null){
+				geometries.add(geometry);
+			}
+		}
+		return this.binaryUnion(geometries, 0, geometries.size());
+	}
+
+
+	/** Union a range of geometries, by halves
+	 *
+	 * @param geometries
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private Geometry binaryUnion(List<Geometry> geometries, int start, int end){
+		if(end - start <= 0){
+			return null;
+		}
+		if(end - start == 1){
+			return geometries.get(start);
+		}
+		int mid = (start + end) / 2;
+		Geometry geom1 = this.binaryUnion(geometries, start, mid);
+		Geometry geom2 = this.binaryUnion(geometries, mid, end);
+		if(geom1 == null){
+			return geom2;
+		}
+		if(geom2 == null){
+			return geom1;
+		}
+		unions++;
+		return overlay.union(geom1, geom2);
+	}
+
+}
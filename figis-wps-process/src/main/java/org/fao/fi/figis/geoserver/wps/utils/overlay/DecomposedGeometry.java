@@ -0,0 +1,171 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.geometry.jts.GeometryClipper;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/** A complex geometry decomposed in pieces with a bounded number of vertices
+ *  The geometry is recursively split in quadrants (quadtree decomposition) until each piece has at most
+ *  the maximum number of vertices. The pieces keep the ID of their parent (as user data), and are indexed
+ *  so that an overlay operation only involves the pieces intersecting the other geometry. The results of
+ *  the pieces are then reassembled for the parent, so that the cost of each operation does not depend on
+ *  the parent complexity.
+ *
+ * @author eblondel
+ *
+ */
+public class DecomposedGeometry {
+
+	private static final int MAX_DEPTH = 16;
+
+	String parentId;
+	Geometry parent;
+	List<Geometry> pieces;
+	STRtree index;
+
+
+	/** Constructor
+	 *
+	 * @param parentId the ID of the parent (e.g. the feature ID)
+	 * @param parent the geometry to decompose
+	 * @param maxVertices the maximum number of vertices of a piece
+	 */
+	public DecomposedGeometry(String parentId, Geometry parent, int maxVertices){
+		if(maxVertices < 4){
+			throw new IllegalArgumentException("The maximum number of vertices must be at least 4");
+		}
+		this.parentId = parentId;
+		this.parent = parent;
+		this.pieces = decompose(parent, maxVertices);
+
+		this.index = new STRtree();
+		for(Geometry piece : pieces){
+			if(piece != parent){
+				piece.setUserData(parentId);
+			}
+			index.insert(piece.getEnvelopeInternal(), piece);
+		}
+		index.build();
+	}
+
+
+	/** Get the parent ID
+	 *
+	 * @return
+	 */
+	public String getParentId(){
+		return this.parentId;
+	}
+
+
+	/** Get the pieces
+	 *
+	 * @return
+	 */
+	public List<Geometry> getPieces(){
+		return this.pieces;
+	}
+
+
+	/** Get the pieces intersecting an envelope
+	 *
+	 * @param envelope
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Geometry> query(Envelope envelope){
+		return index.query(envelope);
+	}
+
+
+	/** Computes the intersection of the parent geometry with another geometry, piece by piece
+	 *  The other geometry is clipped to the extent of each piece before the overlay operation,
+	 *  and the piece results are reassembled.
+	 *
+	 * @param other
+	 * @param overlay
+	 * @return
+	 */
+	public Geometry intersection(Geometry other, OverlayEngine overlay){
+		List<Geometry> results = new ArrayList<Geometry>();
+		for(Geometry piece : this.query(other.getEnvelopeInternal())){
+			Geometry clip = new GeometryClipper(piece.getEnvelopeInternal()).clip(other, true);
+			if(clip == null || clip.isEmpty()){
+				continue;
+			}
+			Geometry result = overlay.intersection(piece, clip);
+			if(result != null && !result.isEmpty()){
+				results.add(result);
+			}
+		}
+		return reassemble(results, overlay);
+	}
+
+
+	/** Reassemble piece results, with a cascaded union performed by the overlay engine
+	 *
+	 * @param results
+	 * @param overlay
+	 * @return
+	 */
+	Geometry reassemble(List<Geometry> results, OverlayEngine overlay){
+		if(results.isEmpty()){
+			return parent.getFactory().createGeometryCollection(new Geometry[0]);
+		}
+		if(results.size() == 1){
+			return results.get(0);
+		}
+		return new CascadedUnion(overlay).union(results);
+	}
+
+
+	/** Decompose a geometry in pieces with a bounded number of vertices
+	 *
+	 * @param geometry
+	 * @param maxVertices
+	 * @return
+	 */
+	public static List<Geometry> decompose(Geometry geometry, int maxVertices){
+		List<Geometry> pieces = new ArrayList<Geometry>();
+		decompose(geometry, geometry.getEnvelopeInternal(), maxVertices, 0, pieces);
+		return pieces;
+	}
+
+
+	/** Decompose a geometry within an extent
+	 *
+	 * @param geometry
+	 * @param extent
+	 * @param maxVertices
+	 * @param depth
+	 * @param pieces
+	 */
+	private static void decompose(Geometry geometry, Envelope extent, int maxVertices, int depth, List<Geometry> pieces){
+		if(geometry == null || geometry.isEmpty()){
+			return;
+		}
+		if(geometry.getNumPoints() <= maxVertices || depth >= MAX_DEPTH){
+			pieces.add(geometry);
+			return;
+		}
+
+		double midX = (extent.getMinX() + extent.getMaxX()) / 2;
+		double midY = (extent.getMinY() + extent.getMaxY()) / 2;
+		Envelope[] quadrants = new Envelope[]{
+			new Envelope(extent.getMinX(), midX, extent.getMinY(), midY),
+			new Envelope(midX, extent.getMaxX(), extent.getMinY(), midY),
+			new Envelope(extent.getMinX(), midX, midY, extent.getMaxY()),
+			new Envelope(midX, extent.getMaxX(), midY, extent.getMaxY())
+		};
+		for(Envelope quadrant : quadrants){
+			Geometry clip = new GeometryClipper(quadrant).clip(geometry, true);
+			decompose(clip, quadrant, maxVertices, depth + 1, pieces);
+		}
+	}
+
+}
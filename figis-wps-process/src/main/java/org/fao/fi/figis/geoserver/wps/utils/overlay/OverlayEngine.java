@@ -0,0 +1,51 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Overlay engine
+ *  Performs the overlay operations (intersection, union, buffer) of the processes, so that the overlay
+ *  strategy (precision model, snapping, noding) can be selected without changing the processes.
+ *  Implementations must be safe for use by several threads.
+ *
+ * @author eblondel
+ *
+ */
+public interface OverlayEngine {
+
+	/** Prepare a source geometry for the overlay operations (e.g. snap it to a precision grid)
+	 *  Called once for each source geometry, when it is read, so that the operations receive
+	 *  prepared geometries.
+	 *
+	 * @param geometry
+	 * @return the prepared geometry
+	 */
+	Geometry prepare(Geometry geometry);
+
+
+	/** Computes the intersection of two geometries
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @return
+	 */
+	Geometry intersection(Geometry geom1, Geometry geom2);
+
+
+	/** Computes the union of two geometries
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @return
+	 */
+	Geometry union(Geometry geom1, Geometry geom2);
+
+
+	/** Computes the buffer of a geometry
+	 *
+	 * @param geometry
+	 * @param distance
+	 * @return
+	 */
+	Geometry buffer(Geometry geometry, double distance);
+
+}
@@ -0,0 +1,126 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+/** Factory of overlay engines
+ *  The engine is selected by name (process parameter). When no name is given, a precision selects the fixed engine,
+ *  otherwise the engine configured by the figis.overlay.engine system property is used (the configured fixed engine
+ *  requires the precision configured by the figis.overlay.precision system property), or else the default engine:
+ *  - default: floating precision operations, with the EnhancedPrecisionOp retry (no precision)
+ *  - fixed: operations on geometries snapped to a fixed precision grid (a precision is required)
+ *  - snap: operations retried with snapping of the input geometries to each other (no precision)
+ *
+ * @author eblondel
+ *
+ */
+public final class OverlayEngines {
+
+	public static final String ENGINE_PROPERTY = "figis.overlay.engine";
+	public static final String PRECISION_PROPERTY = "figis.overlay.precision";
+
+	public static final String DEFAULT = "default";
+	public static final String FIXED = "fixed";
+	public static final String SNAP = "snap";
+
+
+	private OverlayEngines(){
+	}
+
+
+	/** Create an overlay engine
+	 *
+	 * @param engine the engine name, null for the configured (or default) engine
+	 * @param precision the precision grid size, null for floating precision (or the configured precision of the fixed engine)
+	 * @return
+	 */
+	public static OverlayEngine create(String engine, Double precision){
+		String name = getName(engine, precision);
+		precision = getPrecision(engine, precision);
+		if(name.equals(DEFAULT)){
+			if(precision != null){
+				throw new IllegalArgumentException("The default overlay engine uses the floating precision, the fixed engine is required for a precision");
+			}
+			return new PrecisionOverlay();
+
+		}else if(name.equals(FIXED)){
+			if(precision == null){
+				throw new IllegalArgumentException("The fixed overlay engine requires a precision");
+			}
+			return new PrecisionOverlay(precision);
+
+		}else if(name.equals(SNAP)){
+			if(precision != null){
+				throw new IllegalArgumentException("The snap overlay engine does not use a precision grid");
+			}
+			return new SnapOverlay();
+		}
+		throw new IllegalArgumentException("Unknown overlay engine "+engine);
+	}
+
+
+	/** Get the engine name, for floating precision operations
+	 *
+	 * @param engine the engine name, null for the configured (or default) engine
+	 * @return
+	 */
+	public static String getName(String engine){
+		return getName(engine, null);
+	}
+
+
+	/** Get the engine name
+	 *  The configured engine is only used when it is compatible with the call, i.e. when no precision is given,
+	 *  and, for the fixed engine, when a precision is configured.
+	 *
+	 * @param engine the engine name, null for the engine matching the precision (or the configured engine)
+	 * @param precision the precision grid size, null for floating precision
+	 * @return
+	 */
+	public static String getName(String engine, Double precision){
+		if(engine != null){
+			return engine.trim().toLowerCase();
+		}
+		if(precision != null){
+			return FIXED;
+		}
+		String configured = System.getProperty(ENGINE_PROPERTY);
+		if(configured == null || configured.trim().length() == 0){
+			return DEFAULT;
+		}
+		configured = configured.trim().toLowerCase();
+		if(configured.equals(FIXED) && getConfiguredPrecision() == null){
+			return DEFAULT;
+		}
+		return configured;
+	}
+
+
+	/** Get the engine precision
+	 *
+	 * @param engine the engine name, null for the engine matching the precision (or the configured engine)
+	 * @param precision the precision grid size, null for floating precision
+	 * @return the given precision, or the configured precision if the fixed engine is used without precision
+	 */
+	public static Double getPrecision(String engine, Double precision){
+		if(precision == null && getName(engine, null).equals(FIXED)){
+			return getConfiguredPrecision();
+		}
+		return precision;
+	}
+
+
+	/** Get the precision configured by the figis.overlay.precision system property
+	 *
+	 * @return the precision, null if not configured
+	 */
+	static Double getConfiguredPrecision(){
+		String value = System.getProperty(PRECISION_PROPERTY);
+		if(value == null || value.trim().length() == 0){
+			return null;
+		}
+		try{
+			return Double.valueOf(value.trim());
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("Invalid overlay precision "+value+" ("+PRECISION_PROPERTY+")");
+		}
+	}
+
+}
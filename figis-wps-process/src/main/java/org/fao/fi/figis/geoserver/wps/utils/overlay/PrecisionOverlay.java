@@ -0,0 +1,250 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.operation.overlay.OverlayOp;
+import com.vividsolutions.jts.precision.CommonBitsOp;
+import com.vividsolutions.jts.precision.GeometryPrecisionReducer;
+
+/** Overlay operations (intersection, union, buffer) with an optional fixed precision model.
+ *
+ *  When a precision is set, the source geometries are snapped to a fixed grid once, when they are read
+ *  (see prepare), and take the fixed precision model: the operations on prepared geometries, and the
+ *  operations chained on their results (e.g. unions of intersections), are then computed on the grid.
+ *
+ *  The operations follow the same retry cascade as the JTS EnhancedPrecisionOp:
+ *  - fast path: the plain JTS operation
+ *  - retry: the operation performed with the CommonBitsOp (removing the common bits of the coordinates)
+ *  In fixed precision, a last fallback snaps the inputs again (repairing them with a zero-width buffer),
+ *  for geometries which were not prepared.
+ *
+ *  The number of operations, retries and fallbacks is recorded, so the effect of the precision model can
+ *  be reported. The counters are thread-safe.
+ *
+ * @author eblondel
+ *
+ */
+public class PrecisionOverlay implements OverlayEngine {
+
+	PrecisionModel precisionModel;
+
+	AtomicLong operations = new AtomicLong();
+	AtomicLong retries = new AtomicLong();
+	AtomicLong fallbacks = new AtomicLong();
+
+
+	/** Constructor for floating precision overlay operations
+	 *  (same behaviour as the JTS EnhancedPrecisionOp)
+	 *
+	 */
+	public PrecisionOverlay(){
+	}
+
+
+	/** Constructor for fixed precision overlay operations
+	 *
+	 * @param precision the grid size to which geometries are snapped (e.g. 1e-7 for decimal degrees),
+	 * 		  null for floating precision
+	 */
+	public PrecisionOverlay(Double precision){
+		if(precision != null){
+			if(precision <= 0){
+				throw new IllegalArgumentException("The precision must be a positive grid size");
+			}
+			this.precisionModel = new PrecisionModel(1 / precision);
+		}
+	}
+
+
+	/** Indicates if the overlay operations use a fixed precision model
+	 *
+	 * @return
+	 */
+	public boolean isFixedPrecision(){
+		return precisionModel != null;
+	}
+
+
+	/** Snap a source geometry to the fixed precision grid
+	 *  The snapped geometry takes the fixed precision model, so that the operations are computed on the grid.
+	 *  If no fixed precision is set, the geometry is returned as it is.
+	 *
+	 * @param geometry
+	 * @return the snapped geometry
+	 */
+	public Geometry prepare(Geometry geometry){
+		if(precisionModel == null || geometry == null){
+			return geometry;
+		}
+		GeometryPrecisionReducer reducer = new GeometryPrecisionReducer(precisionModel);
+		reducer.setChangePrecisionModel(true);
+		return reducer.reduce(geometry);
+	}
+
+
+	/** Computes the intersection of two geometries
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @return
+	 */
+	public Geometry intersection(Geometry geom1, Geometry geom2){
+		return this.overlay(geom1, geom2, OverlayOp.INTERSECTION);
+	}
+
+
+	/** Computes the union of two geometries
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @return
+	 */
+	public Geometry union(Geometry geom1, Geometry geom2){
+		return this.overlay(geom1, geom2, OverlayOp.UNION);
+	}
+
+
+	/** Computes the buffer of a geometry
+	 *
+	 * @param geometry
+	 * @param distance
+	 * @return
+	 */
+	public Geometry buffer(Geometry geometry, double distance){
+		operations.incrementAndGet();
+
+		RuntimeException originalEx = null;
+		try{
+			return geometry.buffer(distance);
+		}catch(RuntimeException e){
+			originalEx = e;
+		}
+
+		retries.incrementAndGet();
+		try{
+			CommonBitsOp cbo = new CommonBitsOp(true);
+			Geometry result = cbo.buffer(geometry, distance);
+			if(result.isValid()){
+				return result;
+			}
+		}catch(RuntimeException e){
+			//next fallback
+		}
+
+		//fixed precision: snap the input again
+		if(precisionModel != null){
+			fallbacks.incrementAndGet();
+			try{
+				return this.prepare(geometry).buffer(distance);
+			}catch(RuntimeException e){
+				//the original exception is thrown
+			}
+		}
+		throw originalEx;
+	}
+
+
+	/** Perform an overlay operation
+	 *  (geometries are expected to be prepared, i.e. snapped in fixed precision)
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @param opCode the overlay operation code (see OverlayOp)
+	 * @return
+	 */
+	private Geometry overlay(Geometry geom1, Geometry geom2, int opCode){
+		operations.incrementAndGet();
+
+		//fast path
+		RuntimeException originalEx = null;
+		try{
+			return this.plainOverlay(geom1, geom2, opCode);
+		}catch(RuntimeException e){
+			originalEx = e;
+		}
+
+		//retry with common bits removed
+		retries.incrementAndGet();
+		try{
+			CommonBitsOp cbo = new CommonBitsOp(true);
+			Geometry result = (opCode == OverlayOp.UNION)? cbo.union(geom1, geom2) : cbo.intersection(geom1, geom2);
+			if(result.isValid()){
+				return result;
+			}
+		}catch(RuntimeException e){
+			//next fallback
+		}
+
+		//fixed precision: snap the inputs again, repaired with a zero-width buffer
+		if(precisionModel != null){
+			fallbacks.incrementAndGet();
+			try{
+				return this.plainOverlay(this.repair(geom1), this.repair(geom2), opCode);
+			}catch(RuntimeException e){
+				//the original exception is thrown
+			}
+		}
+		throw originalEx;
+	}
+
+
+	/** Snap a geometry to the fixed precision grid, and repair it with a zero-width buffer if it is polygonal
+	 *
+	 * @param geometry
+	 * @return
+	 */
+	private Geometry repair(Geometry geometry){
+		Geometry snapped = this.prepare(geometry);
+		return (snapped.getDimension() == 2)? snapped.buffer(0) : snapped;
+	}
+
+
+	/** Perform a plain overlay operation
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @param opCode
+	 * @return
+	 */
+	private Geometry plainOverlay(Geometry geom1, Geometry geom2, int opCode){
+		return (opCode == OverlayOp.UNION)? geom1.union(geom2) : geom1.intersection(geom2);
+	}
+
+
+	/** Get the number of overlay operations performed
+	 *
+	 * @return
+	 */
+	public long getOperations(){
+		return operations.get();
+	}
+
+
+	/** Get the number of operations that failed at first attempt, and were retried
+	 *
+	 * @return
+	 */
+	public long getRetries(){
+		return retries.get();
+	}
+
+
+	/** Get the number of operations that failed after the retry, and were performed on snapped inputs (fixed precision)
+	 *
+	 * @return
+	 */
+	public long getFallbacks(){
+		return fallbacks.get();
+	}
+
+
+	@Override
+	public String toString(){
+		String precision = (precisionModel == null)? "floating" : "fixed (scale " + precisionModel.getScale() + ")";
+		return "Overlay [precision: " + precision + ", operations: " + getOperations() + ", retries: " + getRetries()
+				+ ", fallbacks: " + getFallbacks() + "]";
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.operation.overlay.OverlayOp;
+import com.vividsolutions.jts.operation.overlay.snap.SnapOverlayOp;
+import com.vividsolutions.jts.precision.CommonBitsOp;
+
+/** Overlay operations with snapping
+ *  The plain JTS operation is performed first. When it fails (robustness failure), the input geometries
+ *  are snapped to each other within a tolerance derived from their extent and precision, and the operation
+ *  is performed again (same strategy as the JTS SnapIfNeededOverlayOp).
+ *
+ *  The number of operations and snapped operations is recorded. The counters are thread-safe.
+ *
+ * @author eblondel
+ *
+ */
+public class SnapOverlay implements OverlayEngine {
+
+	AtomicLong operations = new AtomicLong();
+	AtomicLong snaps = new AtomicLong();
+
+
+	public Geometry prepare(Geometry geometry) {
+		return geometry;
+	}
+
+
+	public Geometry intersection(Geometry geom1, Geometry geom2) {
+		return this.overlay(geom1, geom2, OverlayOp.INTERSECTION);
+	}
+
+
+	public Geometry union(Geometry geom1, Geometry geom2) {
+		return this.overlay(geom1, geom2, OverlayOp.UNION);
+	}
+
+
+	public Geometry buffer(Geometry geometry, double distance) {
+		operations.incrementAndGet();
+		try{
+			return geometry.buffer(distance);
+		}catch(RuntimeException e){
+			snaps.incrementAndGet();
+			return new CommonBitsOp(true).buffer(geometry, distance);
+		}
+	}
+
+
+	/** Perform an overlay operation, with snapping if needed
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @param opCode the overlay operation code (see OverlayOp)
+	 * @return
+	 */
+	private Geometry overlay(Geometry geom1, Geometry geom2, int opCode){
+		operations.incrementAndGet();
+		RuntimeException originalEx = null;
+		try{
+			return OverlayOp.overlayOp(geom1, geom2, opCode);
+		}catch(RuntimeException e){
+			originalEx = e;
+		}
+
+		snaps.incrementAndGet();
+		try{
+			return SnapOverlayOp.overlayOp(geom1, geom2, opCode);
+		}catch(RuntimeException e){
+			throw originalEx;
+		}
+	}
+
+
+	/** Get the number of overlay operations performed
+	 *
+	 * @return
+	 */
+	public long getOperations(){
+		return operations.get();
+	}
+
+
+	/** Get the number of operations performed with snapping
+	 *
+	 * @return
+	 */
+	public long getSnaps(){
+		return snaps.get();
+	}
+
+
+	@Override
+	public String toString(){
+		return "Overlay [engine: snap, operations: " + getOperations() + ", snapped: " + getSnaps() + "]";
+	}
+
+}
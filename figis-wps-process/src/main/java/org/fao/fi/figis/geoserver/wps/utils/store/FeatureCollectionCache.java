@@ -0,0 +1,168 @@
+package org.fao.fi.figis.geoserver.wps.utils.store;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.simple.SimpleFeatureCollection;
+
+/** A local on-disk cache of feature collections
+ *  Each cached collection is stored in a feature store file named after its key. Cached entries are evicted
+ *  with a least recently used policy, when the number of entries exceeds the maximum number of entries, or
+ *  when they have not been used for longer than the maximum age.
+ *
+ * @author eblondel
+ *
+ */
+public class FeatureCollectionCache {
+
+	private static Logger logger = Logger.getLogger(FeatureCollectionCache.class);
+
+	private static final String EXTENSION = ".features";
+
+	File directory;
+	int maxEntries;
+	long maxAge;
+
+
+	/** Constructor
+	 *
+	 * @param directory the cache directory
+	 * @param maxEntries the maximum number of cached collections
+	 * @param maxAge the maximum age of a cached collection since its last use (in milliseconds), 0 for no limit
+	 */
+	public FeatureCollectionCache(File directory, int maxEntries, long maxAge){
+		if(maxEntries < 1){
+			throw new IllegalArgumentException("The cache must accept at least one entry");
+		}
+		this.directory = directory;
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		if(!directory.exists()){
+			directory.mkdirs();
+		}
+	}
+
+
+	/** Get a cached feature collection
+	 *
+	 * @param key
+	 * @return the cached collection (streamed from disk), null if there is no valid cache entry
+	 * @throws IOException
+	 */
+	public SimpleFeatureCollection get(String key) throws IOException{
+		FeatureFileStore store = this.getStore(key);
+		if(!store.exists()){
+			return null;
+		}
+		if(this.isExpired(store.getFile())){
+			store.delete();
+			return null;
+		}
+
+		store.getFile().setLastModified(System.currentTimeMillis()); //mark as recently used
+		logger.info("Cache hit for "+key);
+		return store.getFeatures();
+	}
+
+
+	/** Cache a feature collection
+	 *  The collection is fully read and written to disk, then returned as a collection streamed from disk
+	 *
+	 * @param key
+	 * @param collection
+	 * @return the cached collection
+	 * @throws IOException
+	 */
+	public SimpleFeatureCollection put(String key, SimpleFeatureCollection collection) throws IOException{
+		FeatureFileStore store = this.getStore(key);
+		store.write(collection);
+		this.evict();
+		return store.getFeatures();
+	}
+
+
+	/** Evict the expired entries, and the least recently used ones above the maximum number of entries
+	 *
+	 */
+	public void evict(){
+		File[] files = directory.listFiles(new FileFilter(){
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(EXTENSION);
+			}
+		});
+		if(files == null){
+			return;
+		}
+
+		//most recently used first
+		Arrays.sort(files, new Comparator<File>(){
+			public int compare(File f1, File f2) {
+				long diff = f2.lastModified() - f1.lastModified();
+				return diff > 0? 1 : (diff < 0? -1 : 0);
+			}
+		});
+
+		for(int i=0; i<files.length; i++){
+			if(i >= maxEntries || this.isExpired(files[i])){
+				if(files[i].delete()){
+					logger.info("Evicted cache entry "+files[i].getName());
+				}
+			}
+		}
+	}
+
+
+	/** Get the store of a cache entry
+	 *
+	 * @param key
+	 * @return
+	 */
+	private FeatureFileStore getStore(String key){
+		return new FeatureFileStore(new File(directory, key + EXTENSION));
+	}
+
+
+	/** Indicates if a cache entry is expired
+	 *
+	 * @param file
+	 * @return
+	 */
+	private boolean isExpired(File file){
+		return maxAge > 0 && System.currentTimeMillis() - file.lastModified() > maxAge;
+	}
+
+
+	/** Compute a cache key (SHA-1 hexadecimal digest) from a list of fingerprint parts
+	 *
+	 * @param parts
+	 * @return
+	 */
+	public static String getKey(String... parts){
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for(String part : parts){
+				digest.update(String.valueOf(part).getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+
+			StringBuilder key = new StringBuilder();
+			for(byte b : digest.digest()){
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}catch(UnsupportedEncodingException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,658 @@
+package org.fao.fi.figis.geoserver.wps.utils.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/** A local file store of simple features
+ *  The features are written sequentially (schema header, then features with WKB geometries and
+ *  typed attribute values), and read back in streaming fashion. Only the attribute bindings
+ *  with a typed encoding (strings, numbers, booleans, dates and geometries) can be stored.
+ *
+ * @author eblondel
+ *
+ */
+public class FeatureFileStore {
+
+	private static final int MAGIC = 0x46494753; //FIGS
+	private static final int VERSION = 2;
+
+	private static final List<Class<?>> BINDINGS = Arrays.<Class<?>>asList(
+			String.class, Boolean.class, Byte.class, Short.class, Integer.class, Long.class,
+			Float.class, Double.class, BigInteger.class, BigDecimal.class,
+			Date.class, java.sql.Date.class, Time.class, Timestamp.class);
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte INTEGER = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte BIG_INTEGER = 9;
+	private static final byte BIG_DECIMAL = 10;
+	private static final byte DATE = 11;
+	private static final byte SQL_DATE = 12;
+	private static final byte TIME = 13;
+	private static final byte TIMESTAMP = 14;
+	private static final byte GEOMETRY = 15;
+
+	File file;
+
+
+	/** Constructor
+	 *
+	 * @param file
+	 */
+	public FeatureFileStore(File file){
+		this.file = file;
+	}
+
+
+	/** Get the store file
+	 *
+	 * @return
+	 */
+	public File getFile(){
+		return this.file;
+	}
+
+
+	/** Indicates if the store exists
+	 *
+	 * @return
+	 */
+	public boolean exists(){
+		return file.exists();
+	}
+
+
+	/** Delete the store
+	 *
+	 * @return
+	 */
+	public boolean delete(){
+		return file.delete();
+	}
+
+
+	/** Write a feature collection to the store
+	 *  The features are written to a temporary file, which replaces the store once complete.
+	 *
+	 * @param collection
+	 * @throws IOException
+	 */
+	public void write(SimpleFeatureCollection collection) throws IOException{
+		FeatureFileWriter writer = this.createWriter(collection.getSchema());
+		SimpleFeatureIterator it = collection.features();
+		try{
+			while(it.hasNext()){
+				writer.write(it.next());
+			}
+			writer.close();
+
+		}catch(RuntimeException e){
+			writer.abort();
+			throw e;
+
+		}catch(IOException e){
+			writer.abort();
+			throw e;
+
+		}finally{
+			if(it != null){
+				it.close();
+			}
+		}
+	}
+
+
+	/** Create a writer to the store
+	 *
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
+	public FeatureFileWriter createWriter(SimpleFeatureType schema) throws IOException{
+		return new FeatureFileWriter(file, schema);
+	}
+
+
+	/** Get the schema of the stored features
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public SimpleFeatureType getSchema() throws IOException{
+		FeatureFileIterator it = new FeatureFileIterator(file);
+		try{
+			return it.schema;
+		}finally{
+			it.close();
+		}
+	}
+
+
+	/** Get the stored features, as a collection read in streaming fashion
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public SimpleFeatureCollection getFeatures() throws IOException{
+		return new FeatureFileCollection(file, this.getSchema());
+	}
+
+
+
+	/** Write the schema header
+	 *
+	 * @param out
+	 * @param schema
+	 * @throws IOException
+	 */
+	static void writeSchema(DataOutputStream out, SimpleFeatureType schema) throws IOException{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, schema.getTypeName());
+
+		CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
+		writeString(out, crs != null? crs.toWKT() : null);
+
+		GeometryDescriptor defaultGeom = schema.getGeometryDescriptor();
+		writeString(out, defaultGeom != null? defaultGeom.getLocalName() : null);
+
+		List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+		out.writeInt(descriptors.size());
+		for(AttributeDescriptor descriptor : descriptors){
+			Class<?> binding = descriptor.getType().getBinding();
+			if(!isSupported(binding)){
+				throw new IOException("Unsupported binding "+binding.getName()+" of attribute "+descriptor.getLocalName());
+			}
+			writeString(out, descriptor.getLocalName());
+			writeString(out, binding.getName());
+		}
+	}
+
+
+	/** Read the schema header
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static SimpleFeatureType readSchema(DataInputStream in) throws IOException{
+		if(in.readInt() != MAGIC || in.readInt() != VERSION){
+			throw new IOException("Not a valid feature store");
+		}
+
+		try{
+			SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+			tb.setName(readString(in));
+
+			String wkt = readString(in);
+			if(wkt != null){
+				tb.setCRS(CRS.parseWKT(wkt));
+			}
+
+			String defaultGeom = readString(in);
+			int size = in.readInt();
+			for(int i=0; i<size; i++){
+				String name = readString(in);
+				String bindingName = readString(in);
+				Class<?> binding = Class.forName(bindingName, false, FeatureFileStore.class.getClassLoader());
+				if(!isSupported(binding)){
+					throw new IOException("Unsupported binding "+bindingName+" of attribute "+name);
+				}
+				tb.add(name, binding);
+			}
+			if(defaultGeom != null){
+				tb.setDefaultGeometry(defaultGeom);
+			}
+			return tb.buildFeatureType();
+
+		}catch(IOException e){
+			throw e;
+		}catch(Exception e){
+			throw new IOException("Unable to read the feature store schema", e);
+		}
+	}
+
+
+	/** Indicates if an attribute binding can be stored
+	 *
+	 * @param binding
+	 * @return
+	 */
+	static boolean isSupported(Class<?> binding){
+		return BINDINGS.contains(binding) || Geometry.class.isAssignableFrom(binding);
+	}
+
+
+	/** Write a string (possibly null, and not limited in length)
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	static void writeString(DataOutputStream out, String value) throws IOException{
+		if(value == null){
+			out.writeInt(-1);
+		}else{
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+
+	/** Read a string
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static String readString(DataInputStream in) throws IOException{
+		byte[] bytes = readBytes(in);
+		return bytes != null? new String(bytes, "UTF-8") : null;
+	}
+
+
+	/** Write a byte array (possibly null)
+	 *
+	 * @param out
+	 * @param bytes
+	 * @throws IOException
+	 */
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException{
+		if(bytes == null){
+			out.writeInt(-1);
+		}else{
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+
+	/** Read a byte array
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] readBytes(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		if(length < 0){
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+
+	/** Write an attribute value, preceded by its type tag
+	 *
+	 * @param out
+	 * @param value
+	 * @param wkbWriter
+	 * @throws IOException
+	 */
+	static void writeValue(DataOutputStream out, Object value, WKBWriter wkbWriter) throws IOException{
+		if(value == null){
+			out.writeByte(NULL);
+		}else if(value instanceof String){
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		}else if(value instanceof Boolean){
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		}else if(value instanceof Byte){
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		}else if(value instanceof Short){
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		}else if(value instanceof Integer){
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		}else if(value instanceof Long){
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}else if(value instanceof Float){
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		}else if(value instanceof Double){
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}else if(value instanceof BigInteger){
+			out.writeByte(BIG_INTEGER);
+			writeBytes(out, ((BigInteger) value).toByteArray());
+		}else if(value instanceof BigDecimal){
+			out.writeByte(BIG_DECIMAL);
+			writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+			out.writeInt(((BigDecimal) value).scale());
+		}else if(value instanceof Timestamp){
+			out.writeByte(TIMESTAMP);
+			out.writeLong(((Timestamp) value).getTime());
+			out.writeInt(((Timestamp) value).getNanos());
+		}else if(value instanceof Time){
+			out.writeByte(TIME);
+			out.writeLong(((Time) value).getTime());
+		}else if(value instanceof java.sql.Date){
+			out.writeByte(SQL_DATE);
+			out.writeLong(((java.sql.Date) value).getTime());
+		}else if(value instanceof Date){
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		}else if(value instanceof Geometry){
+			out.writeByte(GEOMETRY);
+			writeBytes(out, wkbWriter.write((Geometry) value));
+		}else{
+			throw new IOException("Unsupported attribute value type "+value.getClass().getName());
+		}
+	}
+
+
+	/** Read an attribute value
+	 *
+	 * @param in
+	 * @param wkbReader
+	 * @return
+	 * @throws IOException
+	 */
+	static Object readValue(DataInputStream in, WKBReader wkbReader) throws IOException{
+		byte type = in.readByte();
+		switch(type){
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case BOOLEAN:
+				return in.readBoolean();
+			case BYTE:
+				return in.readByte();
+			case SHORT:
+				return in.readShort();
+			case INTEGER:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case BIG_INTEGER:
+				return new BigInteger(readBytes(in));
+			case BIG_DECIMAL:
+				BigInteger unscaled = new BigInteger(readBytes(in));
+				return new BigDecimal(unscaled, in.readInt());
+			case DATE:
+				return new Date(in.readLong());
+			case SQL_DATE:
+				return new java.sql.Date(in.readLong());
+			case TIME:
+				return new Time(in.readLong());
+			case TIMESTAMP:
+				Timestamp timestamp = new Timestamp(in.readLong());
+				timestamp.setNanos(in.readInt());
+				return timestamp;
+			case GEOMETRY:
+				try{
+					return wkbReader.read(readBytes(in));
+				}catch(ParseException e){
+					throw new IOException("Unable to read a stored geometry", e);
+				}
+			default:
+				throw new IOException("Unknown attribute value type "+type);
+		}
+	}
+
+
+
+	/** Sequential writer of features to a store file
+	 *
+	 * @author eblondel
+	 *
+	 */
+	public static class FeatureFileWriter {
+
+		File file;
+		File tmpFile;
+		SimpleFeatureType schema;
+		DataOutputStream out;
+		WKBWriter wkbWriter = new WKBWriter();
+		int count = 0;
+
+
+		/** Constructor
+		 *
+		 * @param file
+		 * @param schema
+		 * @throws IOException
+		 */
+		FeatureFileWriter(File file, SimpleFeatureType schema) throws IOException{
+			this.file = file;
+			this.schema = schema;
+
+			File dir = file.getAbsoluteFile().getParentFile();
+			if(dir != null && !dir.exists()){
+				dir.mkdirs();
+			}
+			this.tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			try{
+				writeSchema(out, schema);
+			}catch(IOException e){
+				this.abort();
+				throw e;
+			}
+		}
+
+
+		/** Write a feature
+		 *
+		 * @param feature
+		 * @throws IOException
+		 */
+		public void write(SimpleFeature feature) throws IOException{
+			out.writeBoolean(true);
+			writeString(out, feature.getID());
+			for(AttributeDescriptor descriptor : schema.getAttributeDescriptors()){
+				writeValue(out, feature.getAttribute(descriptor.getLocalName()), wkbWriter);
+			}
+			count++;
+		}
+
+
+		/** Get the number of features written
+		 *
+		 * @return
+		 */
+		public int getCount(){
+			return count;
+		}
+
+
+		/** Complete the store
+		 *  The temporary file is renamed over the store. Where the platform does not rename over
+		 *  an existing file, the previous store is moved aside and only deleted once replaced.
+		 *
+		 * @throws IOException
+		 */
+		public void close() throws IOException{
+			try{
+				out.writeBoolean(false);
+				out.close();
+			}catch(IOException e){
+				this.abort();
+				throw e;
+			}
+			if(tmpFile.renameTo(file)){
+				return;
+			}
+
+			File backup = null;
+			if(file.exists()){
+				backup = new File(tmpFile.getPath() + ".bak");
+				if(!file.renameTo(backup)){
+					tmpFile.delete();
+					throw new IOException("Unable to replace the feature store "+file);
+				}
+			}
+			if(!tmpFile.renameTo(file)){
+				if(backup != null){
+					backup.renameTo(file);
+				}
+				tmpFile.delete();
+				throw new IOException("Unable to complete the feature store "+file);
+			}
+			if(backup != null){
+				backup.delete();
+			}
+		}
+
+
+		/** Abort the store writing
+		 *
+		 */
+		public void abort(){
+			try{
+				out.close();
+			}catch(IOException e){
+				//nothing to do
+			}
+			tmpFile.delete();
+		}
+	}
+
+
+
+	/** Feature collection read from a store file
+	 *
+	 * @author eblondel
+	 *
+	 */
+	static class FeatureFileCollection extends BaseSimpleFeatureCollection{
+
+		File file;
+
+		protected FeatureFileCollection(File file, SimpleFeatureType schema) {
+			super(schema);
+			this.file = file;
+		}
+
+		@Override
+		public SimpleFeatureIterator features() {
+			try{
+				return new FeatureFileIterator(file);
+			}catch(IOException e){
+				throw new RuntimeException("Unable to read the feature store "+file, e);
+			}
+		}
+	}
+
+
+
+	/** Streaming iterator over the features of a store file
+	 *
+	 * @author eblondel
+	 *
+	 */
+	static class FeatureFileIterator implements SimpleFeatureIterator{
+
+		DataInputStream in;
+		SimpleFeatureType schema;
+		WKBReader wkbReader = new WKBReader();
+		SimpleFeature next;
+		boolean complete = false;
+
+
+		/** Constructor
+		 *
+		 * @param file
+		 * @throws IOException
+		 */
+		FeatureFileIterator(File file) throws IOException{
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try{
+				this.schema = readSchema(in);
+			}catch(IOException e){
+				in.close();
+				throw e;
+			}
+		}
+
+
+		public boolean hasNext() {
+			if(next == null && !complete){
+				try{
+					if(in.readBoolean()){
+						String id = readString(in);
+						Object[] values = new Object[schema.getAttributeCount()];
+						for(int i=0; i<values.length; i++){
+							values[i] = readValue(in, wkbReader);
+						}
+						next = SimpleFeatureBuilder.build(schema, values, id);
+					}else{
+						complete = true;
+					}
+				}catch(Exception e){
+					throw new RuntimeException("Unable to read the next stored feature", e);
+				}
+			}
+			return next != null;
+		}
+
+
+		public SimpleFeature next() throws NoSuchElementException {
+			if (!hasNext()) {
+				throw new NoSuchElementException("hasNext() returned false!");
+			}
+			SimpleFeature result = next;
+			next = null;
+			return result;
+		}
+
+
+		public void close() {
+			try{
+				in.close();
+			}catch(IOException e){
+				//nothing to do
+			}
+		}
+	}
+
+}
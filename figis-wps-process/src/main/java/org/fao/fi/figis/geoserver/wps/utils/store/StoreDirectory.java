@@ -0,0 +1,86 @@
+package org.fao.fi.figis.geoserver.wps.utils.store;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+
+/** Server-side directories of the local stores (caches, pages, memos, incremental coverages)
+ *  The base directory is part of the server configuration, never of the process inputs:
+ *  - the figis.store.directory system property, if set
+ *  - otherwise the figis-wps subdirectory of the GeoServer data directory
+ *  - otherwise (outside GeoServer) the figis-wps subdirectory of the temporary directory
+ *  Clients can only select a named store within an area of the base directory, the name being restricted
+ *  to letters, digits, '_' and '-'.
+ *
+ * @author eblondel
+ *
+ */
+public class StoreDirectory {
+
+	private static Logger logger = Logger.getLogger(StoreDirectory.class);
+
+	public static final String DIRECTORY_PROPERTY = "figis.store.directory";
+	public static final String DATA_SUBDIRECTORY = "figis-wps";
+
+	static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+
+	/** Get the base directory of the local stores
+	 *
+	 * @return
+	 */
+	public static File getBaseDirectory(){
+		String directory = System.getProperty(DIRECTORY_PROPERTY);
+		if(directory != null && directory.trim().length() > 0){
+			return new File(directory.trim());
+		}
+
+		try{
+			GeoServerResourceLoader loader = (GeoServerResourceLoader) GeoServerExtensions.bean("resourceLoader");
+			if(loader != null && loader.getBaseDirectory() != null){
+				return new File(loader.getBaseDirectory(), DATA_SUBDIRECTORY);
+			}
+		}catch(Exception e){
+			logger.warn("Unable to get the GeoServer data directory", e);
+		}
+		return new File(System.getProperty("java.io.tmpdir"), DATA_SUBDIRECTORY);
+	}
+
+
+	/** Get the directory of a store area (e.g. cache, pages)
+	 *
+	 * @param area
+	 * @return
+	 */
+	public static File getDirectory(String area){
+		return new File(getBaseDirectory(), checkName(area));
+	}
+
+
+	/** Get the directory of a named store within an area
+	 *
+	 * @param area
+	 * @param name the store name, as given by the client
+	 * @return
+	 */
+	public static File getDirectory(String area, String name){
+		return new File(getDirectory(area), checkName(name));
+	}
+
+
+	/** Check a store name (letters, digits, '_' and '-' only)
+	 *
+	 * @param name
+	 * @return the name
+	 */
+	public static String checkName(String name){
+		if(name == null || !NAME_PATTERN.matcher(name).matches()){
+			throw new IllegalArgumentException("Invalid store name "+name+" (only letters, digits, '_' and '-' are allowed)");
+		}
+		return name;
+	}
+
+}
@@ -0,0 +1,420 @@
+package org.fao.fi.figis.geoserver.wps.utils.wfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
+
+/** Process-wide in-memory cache of reference layers
+ *  Each reference layer is loaded once (by pages, when the source supports paging), and indexed by the
+ *  values of its code attributes (geo-columns), so that the reference features of a code combination are
+ *  resolved from memory instead of a filtered WFS request.
+ *
+ *  The cache is bounded by a total number of features, cached layers being evicted with a least recently
+ *  used policy, and each layer expires after a time to live. Layers larger than the bound are not cached:
+ *  they are marked as uncacheable for the same time to live, after which they are loaded again.
+ *
+ *  A layer is loaded once, outside the cache lock: concurrent requests of the same layer wait for its
+ *  loading task, while the other layers remain available. The lock is only held to look up, publish
+ *  and evict the cached layers.
+ *
+ *  The cache is configured with system properties:
+ *  - figis.reference.cache.maxFeatures: the maximum number of cached features (default is 200000)
+ *  - figis.reference.cache.ttl: the time to live of a cached layer, in milliseconds (default is 3600000)
+ *  - figis.reference.cache.pageSize: the number of features loaded by page (default is 1000)
+ *
+ * @author eblondel
+ *
+ */
+public class ReferenceLayerCache {
+
+	private static Logger logger = Logger.getLogger(ReferenceLayerCache.class);
+
+	public static final String MAX_FEATURES_PROPERTY = "figis.reference.cache.maxFeatures";
+	public static final String TTL_PROPERTY = "figis.reference.cache.ttl";
+	public static final String PAGE_SIZE_PROPERTY = "figis.reference.cache.pageSize";
+
+	private static ReferenceLayerCache instance;
+
+	WFSDataStoreRegistry registry;
+	int maxFeatures;
+	long ttl;
+	int pageSize;
+
+	LinkedHashMap<String, ReferenceLayer> layers = new LinkedHashMap<String, ReferenceLayer>(16, 0.75f, true); //access order
+	Map<String, Long> uncacheable = new HashMap<String, Long>(); //time at which the layers were found too large
+	ConcurrentMap<String, FutureTask<ReferenceLayer>> loading = new ConcurrentHashMap<String, FutureTask<ReferenceLayer>>();
+	int size = 0;
+
+
+	/** Constructor
+	 *
+	 * @param registry the WFS DataStore registry
+	 * @param maxFeatures the maximum number of cached features
+	 * @param ttl the time to live of a cached layer (in milliseconds), 0 for no expiry
+	 * @param pageSize the number of features loaded by page
+	 */
+	public ReferenceLayerCache(WFSDataStoreRegistry registry, int maxFeatures, long ttl, int pageSize){
+		if(maxFeatures < 1 || pageSize < 1){
+			throw new IllegalArgumentException("The cache size and page size must be strictly positive");
+		}
+		this.registry = registry;
+		this.maxFeatures = maxFeatures;
+		this.ttl = ttl;
+		this.pageSize = pageSize;
+	}
+
+
+	/** Get the process-wide cache
+	 *
+	 * @return
+	 */
+	public static synchronized ReferenceLayerCache getInstance(){
+		if(instance == null){
+			instance = new ReferenceLayerCache(WFSDataStoreRegistry.getInstance(),
+					Integer.getInteger(MAX_FEATURES_PROPERTY, 200000),
+					Long.getLong(TTL_PROPERTY, 3600000L),
+					Integer.getInteger(PAGE_SIZE_PROPERTY, 1000));
+		}
+		return instance;
+	}
+
+
+	/** Get a cached reference layer, loading it if needed
+	 *
+	 * @param geoserverUrl
+	 * @param typeName the layer name (prefixed by the namespace)
+	 * @param codeAttributes the code attributes to index
+	 * @return the cached layer, null if the layer cannot be cached (too large)
+	 * @throws IOException
+	 */
+	public ReferenceLayer getLayer(String geoserverUrl, String typeName, Collection<String> codeAttributes) throws IOException{
+		return this.getLayer(WFSDataStoreRegistry.getKey(geoserverUrl) + "|" + typeName, registry.getFeatureSource(geoserverUrl, typeName), codeAttributes);
+	}
+
+
+	/** Get a cached reference layer, loading it from a feature source if needed
+	 *
+	 * @param key the cache key of the layer
+	 * @param source the layer feature source
+	 * @param codeAttributes the code attributes to index
+	 * @return the cached layer, null if the layer cannot be cached (too large)
+	 * @throws IOException
+	 */
+	public ReferenceLayer getLayer(String key, final SimpleFeatureSource source, final Collection<String> codeAttributes) throws IOException{
+		while(true){
+			synchronized(this){
+				Long uncacheableTime = uncacheable.get(key);
+				if(uncacheableTime != null){
+					if(!this.isExpired(uncacheableTime)){
+						return null;
+					}
+					uncacheable.remove(key);
+				}
+				ReferenceLayer layer = layers.get(key);
+				if(layer != null){
+					if(!this.isExpired(layer) && layer.indexes.keySet().containsAll(codeAttributes)){
+						return layer;
+					}
+					this.remove(key);
+				}
+			}
+
+			//load the layer outside the lock, once for concurrent requests
+			FutureTask<ReferenceLayer> task = new FutureTask<ReferenceLayer>(new Callable<ReferenceLayer>(){
+				public ReferenceLayer call() throws IOException{
+					return load(source, codeAttributes);
+				}
+			});
+			FutureTask<ReferenceLayer> loader = loading.putIfAbsent(key, task);
+			if(loader == null){
+				loader = task;
+				try{
+					task.run();
+					this.publish(key, source.getSchema().getTypeName(), this.getLoadedLayer(task));
+				}finally{
+					loading.remove(key, task);
+				}
+			}
+
+			ReferenceLayer layer = this.getLoadedLayer(loader);
+			if(layer == null || layer.indexes.keySet().containsAll(codeAttributes)){
+				return layer;
+			}
+			//loaded by a concurrent request with other code attributes: reload
+		}
+	}
+
+
+	/** Get the layer of a loading task, once loaded
+	 *
+	 * @param task
+	 * @return the loaded layer, null if the layer has more features than the cache bound
+	 * @throws IOException
+	 */
+	private ReferenceLayer getLoadedLayer(FutureTask<ReferenceLayer> task) throws IOException{
+		try{
+			return task.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading a reference layer", e);
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Unable to load a reference layer", e.getCause());
+		}
+	}
+
+
+	/** Publish a loaded layer in the cache, and evict the least recently used layers above the bound
+	 *
+	 * @param key
+	 * @param typeName
+	 * @param layer the loaded layer, null if the layer is too large to be cached
+	 */
+	private synchronized void publish(String key, String typeName, ReferenceLayer layer){
+		if(layer == null){
+			uncacheable.put(key, System.currentTimeMillis());
+			logger.info("Reference layer "+typeName+" is too large to be cached");
+			return;
+		}
+		this.remove(key);
+		layers.put(key, layer);
+		size += layer.features.size();
+		this.evict();
+		logger.info("Cached reference layer "+typeName+" ("+layer.features.size()+" features)");
+	}
+
+
+	/** Load a reference layer, by pages when the source supports paging
+	 *
+	 * @param source
+	 * @param codeAttributes
+	 * @return the loaded layer, null if the layer has more features than the cache bound
+	 * @throws IOException
+	 */
+	private ReferenceLayer load(SimpleFeatureSource source, Collection<String> codeAttributes) throws IOException{
+		ReferenceLayer layer = new ReferenceLayer(source.getSchema(), codeAttributes);
+		boolean paging = source.getQueryCapabilities().isOffsetSupported();
+
+		int start = 0;
+		while(true){
+			Query query = new Query(source.getSchema().getTypeName(), Filter.INCLUDE);
+			if(paging){
+				query.setStartIndex(start);
+				query.setMaxFeatures(pageSize);
+				query.setSortBy(new SortBy[]{ SortBy.NATURAL_ORDER });
+			}
+
+			int count = 0;
+			SimpleFeatureIterator it = source.getFeatures(query).features();
+			try{
+				while(it.hasNext()){
+					layer.add(it.next());
+					count++;
+					if(layer.features.size() > maxFeatures){
+						return null;
+					}
+				}
+			}finally{
+				it.close();
+			}
+
+			if(!paging || count < pageSize){
+				break;
+			}
+			start += count;
+		}
+		return layer;
+	}
+
+
+	/** Evict the least recently used layers above the cache bound
+	 *
+	 */
+	private void evict(){
+		Iterator<Entry<String, ReferenceLayer>> it = layers.entrySet().iterator();
+		while(size > maxFeatures && it.hasNext()){
+			Entry<String, ReferenceLayer> entry = it.next();
+			size -= entry.getValue().features.size();
+			it.remove();
+			logger.info("Evicted reference layer "+entry.getKey());
+		}
+	}
+
+
+	/** Remove a cached layer
+	 *
+	 * @param key
+	 */
+	private void remove(String key){
+		ReferenceLayer layer = layers.remove(key);
+		if(layer != null){
+			size -= layer.features.size();
+		}
+	}
+
+
+	/** Indicates if a cached layer is expired
+	 *
+	 * @param layer
+	 * @return
+	 */
+	private boolean isExpired(ReferenceLayer layer){
+		return this.isExpired(layer.loadTime);
+	}
+
+
+	/** Indicates if a cache entry created at a given time is expired
+	 *
+	 * @param time
+	 * @return
+	 */
+	private boolean isExpired(long time){
+		return ttl > 0 && System.currentTimeMillis() - time > ttl;
+	}
+
+
+	/** Clear the cache
+	 *
+	 */
+	public synchronized void clear(){
+		layers.clear();
+		uncacheable.clear();
+		size = 0;
+	}
+
+
+
+	/** A reference layer (or a subset of its features), indexed by code attribute values
+	 *
+	 */
+	public static class ReferenceLayer{
+
+		SimpleFeatureType schema;
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		Map<String, Map<String, List<SimpleFeature>>> indexes = new HashMap<String, Map<String, List<SimpleFeature>>>();
+		long loadTime = System.currentTimeMillis();
+
+
+		/** Constructor
+		 *
+		 * @param schema
+		 * @param codeAttributes
+		 */
+		public ReferenceLayer(SimpleFeatureType schema, Collection<String> codeAttributes){
+			this.schema = schema;
+			for(String codeAttribute : codeAttributes){
+				indexes.put(codeAttribute, new HashMap<String, List<SimpleFeature>>());
+			}
+		}
+
+
+		/** Add and index a feature
+		 *
+		 * @param feature
+		 */
+		public void add(SimpleFeature feature){
+			features.add(feature);
+			for(Entry<String, Map<String, List<SimpleFeature>>> index : indexes.entrySet()){
+				Object value = feature.getAttribute(index.getKey());
+				if(value != null){
+					String code = String.valueOf(value);
+					List<SimpleFeature> list = index.getValue().get(code);
+					if(list == null){
+						list = new ArrayList<SimpleFeature>(1);
+						index.getValue().put(code, list);
+					}
+					list.add(feature);
+				}
+			}
+		}
+
+
+		/** Get the layer schema
+		 *
+		 * @return
+		 */
+		public SimpleFeatureType getSchema(){
+			return schema;
+		}
+
+
+		/** Get the features matching code conditions
+		 *  i.e. for each code attribute, the feature value is one of the condition values
+		 *
+		 * @param conditions the accepted values, by code attribute
+		 * @return
+		 */
+		public List<SimpleFeature> getFeatures(Map<String, ? extends Collection<String>> conditions){
+			if(conditions.isEmpty()){
+				return Collections.unmodifiableList(features);
+			}
+
+			//candidates from the first condition index
+			Iterator<? extends Entry<String, ? extends Collection<String>>> it = conditions.entrySet().iterator();
+			Entry<String, ? extends Collection<String>> first = it.next();
+			Map<String, List<SimpleFeature>> index = indexes.get(first.getKey());
+			Set<SimpleFeature> candidates = new LinkedHashSet<SimpleFeature>();
+			for(String value : first.getValue()){
+				List<SimpleFeature> list = index.get(value);
+				if(list != null){
+					candidates.addAll(list);
+				}
+			}
+
+			//check the other conditions
+			List<SimpleFeature> result = new ArrayList<SimpleFeature>();
+			for(SimpleFeature feature : candidates){
+				if(matches(feature, conditions)){
+					result.add(feature);
+				}
+			}
+			return result;
+		}
+
+
+		/** Indicates if a feature matches code conditions
+		 *
+		 * @param feature
+		 * @param conditions
+		 * @return
+		 */
+		private static boolean matches(SimpleFeature feature, Map<String, ? extends Collection<String>> conditions){
+			for(Entry<String, ? extends Collection<String>> condition : conditions.entrySet()){
+				Object value = feature.getAttribute(condition.getKey());
+				if(value == null || !condition.getValue().contains(String.valueOf(value))){
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
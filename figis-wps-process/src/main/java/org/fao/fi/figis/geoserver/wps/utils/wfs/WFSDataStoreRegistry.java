@@ -0,0 +1,338 @@
+package org.fao.fi.figis.geoserver.wps.utils.wfs;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.wfs.WFSDataStoreFactory;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/** Process-wide registry of WFS DataStores, keyed by GeoServer URL
+ *  Each DataStore is created once (single GetCapabilities round-trip) and reused by all the processes,
+ *  together with its feature sources and schemas. The users of a DataStore hold a lease on it (acquire /
+ *  release): DataStores without lease that have not been used for longer than the idle timeout are disposed.
+ *
+ *  The DataStores (GetCapabilities), feature sources and schemas (DescribeFeatureType) are loaded outside the
+ *  registry lock, once for concurrent requests of the same key: requests to other GeoServers are not blocked.
+ *  The registry lock is only held to update the leases and to dispose the idle DataStores.
+ *
+ *  The registry is configured with system properties:
+ *  - figis.wfs.timeout: the WFS request timeout, in milliseconds (default is 60000)
+ *  - figis.wfs.bufferSize: the number of features buffered by the WFS reader (default is 10)
+ *  - figis.wfs.idleTimeout: the idle time after which a DataStore is disposed, in milliseconds (default is 600000)
+ *  The GeoTools WFS DataStore does not pool its HTTP connections: the number of kept-alive connections
+ *  per GeoServer is the one of the JVM (http.maxConnections system property, default is 5).
+ *
+ * @author eblondel
+ *
+ */
+public class WFSDataStoreRegistry {
+
+	private static Logger logger = Logger.getLogger(WFSDataStoreRegistry.class);
+
+	public static final String TIMEOUT_PROPERTY = "figis.wfs.timeout";
+	public static final String BUFFER_SIZE_PROPERTY = "figis.wfs.bufferSize";
+	public static final String IDLE_TIMEOUT_PROPERTY = "figis.wfs.idleTimeout";
+
+	private static WFSDataStoreRegistry instance;
+
+	int timeout;
+	int bufferSize;
+	long idleTimeout;
+	ConcurrentMap<String, FutureTask<RegisteredStore>> stores = new ConcurrentHashMap<String, FutureTask<RegisteredStore>>();
+
+
+	/** Constructor
+	 *
+	 * @param timeout the WFS request timeout (in milliseconds)
+	 * @param bufferSize the number of features buffered by the WFS reader
+	 * @param idleTimeout the idle time after which a DataStore is disposed (in milliseconds), 0 for no eviction
+	 */
+	public WFSDataStoreRegistry(int timeout, int bufferSize, long idleTimeout){
+		this.timeout = timeout;
+		this.bufferSize = bufferSize;
+		this.idleTimeout = idleTimeout;
+	}
+
+
+	/** Get the process-wide registry
+	 *
+	 * @return
+	 */
+	public static synchronized WFSDataStoreRegistry getInstance(){
+		if(instance == null){
+			instance = new WFSDataStoreRegistry(
+					Integer.getInteger(TIMEOUT_PROPERTY, 60000),
+					Integer.getInteger(BUFFER_SIZE_PROPERTY, 10),
+					Long.getLong(IDLE_TIMEOUT_PROPERTY, 600000L));
+		}
+		return instance;
+	}
+
+
+	/** Acquire a lease on the DataStore of a GeoServer
+	 *  The DataStore is not disposed as idle until all its leases are released.
+	 *
+	 * @param geoserverUrl
+	 * @throws IOException
+	 */
+	public void acquire(String geoserverUrl) throws IOException{
+		this.getRegisteredStore(geoserverUrl, true);
+	}
+
+
+	/** Release a lease on the DataStore of a GeoServer
+	 *
+	 * @param geoserverUrl
+	 */
+	public synchronized void release(String geoserverUrl){
+		RegisteredStore registered = getLoaded(stores.get(getKey(geoserverUrl)));
+		if(registered != null && registered.leases > 0){
+			registered.leases--;
+			registered.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+
+	/** Get the DataStore of a GeoServer
+	 *
+	 * @param geoserverUrl
+	 * @return
+	 * @throws IOException
+	 */
+	public DataStore getDataStore(String geoserverUrl) throws IOException{
+		return this.getRegisteredStore(geoserverUrl, false).store;
+	}
+
+
+	/** Get a feature source of a GeoServer
+	 *
+	 * @param geoserverUrl
+	 * @param typeName the layer name (prefixed by the namespace)
+	 * @return
+	 * @throws IOException
+	 */
+	public SimpleFeatureSource getFeatureSource(String geoserverUrl, final String typeName) throws IOException{
+		final RegisteredStore registered = this.getRegisteredStore(geoserverUrl, false);
+		return load(registered.sources, typeName, new Callable<SimpleFeatureSource>(){
+			public SimpleFeatureSource call() throws IOException{
+				return registered.store.getFeatureSource(typeName);
+			}
+		});
+	}
+
+
+	/** Get the schema of a layer of a GeoServer
+	 *
+	 * @param geoserverUrl
+	 * @param typeName the layer name (prefixed by the namespace)
+	 * @return
+	 * @throws IOException
+	 */
+	public SimpleFeatureType getSchema(final String geoserverUrl, final String typeName) throws IOException{
+		RegisteredStore registered = this.getRegisteredStore(geoserverUrl, false);
+		return load(registered.schemas, typeName, new Callable<SimpleFeatureType>(){
+			public SimpleFeatureType call() throws IOException{
+				return getFeatureSource(geoserverUrl, typeName).getSchema();
+			}
+		});
+	}
+
+
+	/** Get (or create) the registered store of a GeoServer, and mark it as used
+	 *
+	 * @param geoserverUrl
+	 * @param lease true to acquire a lease on the store
+	 * @return
+	 * @throws IOException
+	 */
+	private RegisteredStore getRegisteredStore(String geoserverUrl, boolean lease) throws IOException{
+		this.evictIdle();
+
+		final String key = getKey(geoserverUrl);
+		while(true){
+			RegisteredStore registered = load(stores, key, new Callable<RegisteredStore>(){
+				public RegisteredStore call() throws IOException{
+					RegisteredStore created = new RegisteredStore(createDataStore(key));
+					logger.info("Registered WFS DataStore for "+key);
+					return created;
+				}
+			});
+			synchronized(this){
+				if(!registered.disposed){
+					registered.lastUsed = System.currentTimeMillis();
+					if(lease){
+						registered.leases++;
+					}
+					return registered;
+				}
+			}
+			//disposed as idle by a concurrent request: register it again
+		}
+	}
+
+
+	/** Get a value from its loading task, loading it if needed
+	 *  The value is loaded once for concurrent requests of the same key. A failed loading is not kept,
+	 *  so that the next request loads the value again.
+	 *
+	 * @param tasks the loading tasks, by key
+	 * @param key
+	 * @param loader
+	 * @return
+	 * @throws IOException
+	 */
+	static <T> T load(ConcurrentMap<String, FutureTask<T>> tasks, String key, Callable<T> loader) throws IOException{
+		FutureTask<T> task = new FutureTask<T>(loader);
+		FutureTask<T> existing = tasks.putIfAbsent(key, task);
+		if(existing == null){
+			existing = task;
+			task.run();
+		}
+
+		try{
+			return existing.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading "+key, e);
+		}catch(ExecutionException e){
+			tasks.remove(key, existing);
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Unable to load "+key, e.getCause());
+		}
+	}
+
+
+	/** Get the value of a completed loading task
+	 *
+	 * @param task
+	 * @return the value, null if there is no task, or if it is not complete or has failed
+	 */
+	static <T> T getLoaded(FutureTask<T> task){
+		if(task == null || !task.isDone()){
+			return null;
+		}
+		try{
+			return task.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return null;
+		}catch(ExecutionException e){
+			return null;
+		}
+	}
+
+
+	/** Create a WFS DataStore
+	 *
+	 * @param geoserverUrl
+	 * @return
+	 * @throws IOException
+	 */
+	private DataStore createDataStore(String geoserverUrl) throws IOException{
+		String wfsGetCap = geoserverUrl +"/ows?service=WFS&version=1.0.0&request=GetCapabilities";
+
+		Map<String, Serializable> params = new HashMap<String, Serializable>();
+		params.put(WFSDataStoreFactory.URL.key, wfsGetCap);
+		params.put(WFSDataStoreFactory.TIMEOUT.key, new Integer(timeout));
+		params.put(WFSDataStoreFactory.BUFFER_SIZE.key, new Integer(bufferSize));
+		params.put(WFSDataStoreFactory.FILTER_COMPLIANCE.key, new Integer(0));
+
+		DataStore store = DataStoreFinder.getDataStore(params);
+		if(store == null){
+			throw new IOException("Unable to connect to the WFS "+wfsGetCap);
+		}
+		return store;
+	}
+
+
+	/** Dispose the DataStores without lease that have not been used for longer than the idle timeout
+	 *
+	 */
+	public synchronized void evictIdle(){
+		if(idleTimeout <= 0){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Iterator<Entry<String, FutureTask<RegisteredStore>>> it = stores.entrySet().iterator();
+		while(it.hasNext()){
+			Entry<String, FutureTask<RegisteredStore>> entry = it.next();
+			RegisteredStore registered = getLoaded(entry.getValue());
+			if(registered != null && registered.leases == 0 && now - registered.lastUsed > idleTimeout){
+				registered.dispose();
+				it.remove();
+				logger.info("Disposed idle WFS DataStore for "+entry.getKey());
+			}
+		}
+	}
+
+
+	/** Dispose all the DataStores
+	 *
+	 */
+	public synchronized void dispose(){
+		for(FutureTask<RegisteredStore> task : stores.values()){
+			RegisteredStore registered = getLoaded(task);
+			if(registered != null){
+				registered.dispose();
+			}
+		}
+		stores.clear();
+	}
+
+
+	/** Get the registry key of a GeoServer URL
+	 *
+	 * @param geoserverUrl
+	 * @return
+	 */
+	static String getKey(String geoserverUrl){
+		String key = geoserverUrl.trim();
+		while(key.endsWith("/")){
+			key = key.substring(0, key.length() - 1);
+		}
+		return key;
+	}
+
+
+
+	/** A registered DataStore, with its cached feature sources and schemas
+	 *
+	 */
+	static class RegisteredStore{
+
+		DataStore store;
+		ConcurrentMap<String, FutureTask<SimpleFeatureSource>> sources = new ConcurrentHashMap<String, FutureTask<SimpleFeatureSource>>();
+		ConcurrentMap<String, FutureTask<SimpleFeatureType>> schemas = new ConcurrentHashMap<String, FutureTask<SimpleFeatureType>>();
+		long lastUsed = System.currentTimeMillis();
+		int leases = 0;
+		boolean disposed = false;
+
+		RegisteredStore(DataStore store){
+			this.store = store;
+		}
+
+		void dispose(){
+			store.dispose();
+			disposed = true;
+		}
+	}
+
+}
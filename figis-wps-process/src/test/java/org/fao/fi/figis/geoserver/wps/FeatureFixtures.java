@@ -0,0 +1,127 @@
+package org.fao.fi.figis.geoserver.wps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+
+/** Feature fixtures of the unit tests
+ *  Polygon layers (WGS84) with a CODE attribute, held in memory.
+ *
+ * @author eblondel
+ *
+ */
+public class FeatureFixtures {
+
+	public static final GeometryFactory GF = new GeometryFactory();
+
+
+	/** Get the schema of a polygon layer
+	 *
+	 * @param name the layer name
+	 * @return
+	 */
+	public static SimpleFeatureType getSchema(String name){
+		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+		tb.setName(name);
+		tb.setCRS(DefaultGeographicCRS.WGS84);
+		tb.add("the_geom", MultiPolygon.class);
+		tb.add("CODE", String.class);
+		return tb.buildFeatureType();
+	}
+
+
+	/** Get a rectangle polygon
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @return
+	 */
+	public static Polygon rectangle(double minX, double minY, double maxX, double maxY){
+		return GF.createPolygon(GF.createLinearRing(new Coordinate[]{
+				new Coordinate(minX, minY), new Coordinate(maxX, minY), new Coordinate(maxX, maxY),
+				new Coordinate(minX, maxY), new Coordinate(minX, minY)}), null);
+	}
+
+
+	/** Get a circle polygon (32 vertices)
+	 *
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @return
+	 */
+	public static Polygon circle(double x, double y, double radius){
+		return (Polygon) GF.createPoint(new Coordinate(x, y)).buffer(radius, 8);
+	}
+
+
+	/** Get a feature of a polygon layer
+	 *
+	 * @param schema
+	 * @param id
+	 * @param geometry a polygon or multipolygon, null for no geometry
+	 * @param code
+	 * @return
+	 */
+	public static SimpleFeature getFeature(SimpleFeatureType schema, String id, Geometry geometry, String code){
+		SimpleFeatureBuilder fb = new SimpleFeatureBuilder(schema);
+		if(geometry instanceof Polygon){
+			geometry = GF.createMultiPolygon(new Polygon[]{ (Polygon) geometry });
+		}
+		fb.set("the_geom", geometry);
+		fb.set("CODE", code);
+		return fb.buildFeature(id);
+	}
+
+
+	/** Get a polygon layer
+	 *
+	 * @param name the layer name
+	 * @param geometries the polygons
+	 * @return the layer, the feature IDs and codes being the polygon indexes
+	 */
+	public static SimpleFeatureCollection getLayer(String name, Geometry... geometries){
+		SimpleFeatureType schema = getSchema(name);
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		for(int i = 0; i < geometries.length; i++){
+			features.add(getFeature(schema, name + "." + i, geometries[i], String.valueOf(i)));
+		}
+		return new ListFeatureCollection(schema, features);
+	}
+
+
+	/** Read the features of a collection
+	 *
+	 * @param collection
+	 * @return the features, in the iteration order
+	 */
+	public static List<SimpleFeature> getFeatures(SimpleFeatureCollection collection){
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		SimpleFeatureIterator it = collection.features();
+		try{
+			while(it.hasNext()){
+				features.add(it.next());
+			}
+		}finally{
+			it.close();
+		}
+		return features;
+	}
+
+}
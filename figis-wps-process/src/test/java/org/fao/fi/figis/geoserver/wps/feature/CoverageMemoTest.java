@@ -0,0 +1,147 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Test of the FIRMS coverage memo
+ * 
+ * @author eblondel
+ *
+ */
+public class CoverageMemoTest extends TestCase {
+
+	File file;
+
+	protected void setUp() throws Exception {
+		file = File.createTempFile("figis-memo-", ".store");
+		file.delete();
+	}
+
+	protected void tearDown(){
+		file.delete();
+	}
+
+	/** Get a computation counting its calls
+	 * 
+	 * @param geometry the computed geometry
+	 * @param calls
+	 * @return
+	 */
+	private Callable<Geometry> compute(final Geometry geometry, final int[] calls){
+		return new Callable<Geometry>(){
+			public Geometry call(){
+				calls[0]++;
+				return geometry;
+			}
+		};
+	}
+
+	public void testKeyDoesNotDependOnOrder(){
+		Map<String, Collection<String>> conditions1 = new LinkedHashMap<String, Collection<String>>();
+		conditions1.put("F_AREA", Arrays.asList("27", "21"));
+		conditions1.put("EEZ", Arrays.asList(" FRA"));
+
+		Map<String, Collection<String>> conditions2 = new LinkedHashMap<String, Collection<String>>();
+		conditions2.put("EEZ", Arrays.asList("FRA"));
+		conditions2.put("F_AREA", Arrays.asList("21", "27"));
+
+		String key = CoverageMemo.getKey("FAO_AREAS", conditions1);
+		assertEquals(key, CoverageMemo.getKey("FAO_AREAS", conditions2));
+		assertFalse(key.equals(CoverageMemo.getKey("EEZ", conditions2)));
+		assertFalse(key.equals(CoverageMemo.getSimplifiedKey(key, 0.1)));
+		assertFalse(CoverageMemo.getSimplifiedKey(key, 0.1).equals(CoverageMemo.getSimplifiedKey(key, 0.01)));
+	}
+
+	public void testComputedOnce(){
+		Geometry geometry = FeatureFixtures.rectangle(0, 0, 10, 10);
+		int[] calls = new int[1];
+		CoverageMemo memo = new CoverageMemo();
+		assertFalse(memo.contains("key"));
+		assertSame(geometry, memo.get("key", compute(geometry, calls)));
+		assertEquals(0, memo.getHits());
+		assertTrue(memo.contains("key"));
+		assertSame(geometry, memo.get("key", compute(geometry, calls)));
+		assertEquals(1, calls[0]);
+		assertEquals(1, memo.getHits());
+		assertEquals(1, memo.size());
+	}
+
+	public void testMemoizedEmptyGeometry(){
+		int[] calls = new int[1];
+		CoverageMemo memo = new CoverageMemo();
+		assertNull(memo.get("key", compute(null, calls)));
+		assertNull(memo.get("key", compute(null, calls)));
+		assertEquals(1, calls[0]);
+		assertEquals(1, memo.getHits());
+	}
+
+	public void testFailedComputationIsNotMemoized(){
+		CoverageMemo memo = new CoverageMemo();
+		try{
+			memo.get("key", new Callable<Geometry>(){
+				public Geometry call(){
+					throw new IllegalStateException("failure");
+				}
+			});
+			fail("The computation failure should be thrown");
+		}catch(IllegalStateException e){
+			//expected
+		}
+		assertFalse(memo.contains("key"));
+		assertEquals(0, memo.getHits());
+		assertEquals(0, memo.size());
+	}
+
+	public void testPersistentMemo() throws Exception{
+		Geometry geometry = FeatureFixtures.rectangle(0, 0, 10, 10);
+		int[] calls = new int[1];
+		CoverageMemo memo = new CoverageMemo(file, 60000);
+		assertEquals(0, memo.size());
+		memo.get("21", compute(geometry, calls));
+		memo.get("27", compute(null, calls));
+		memo.save();
+		assertTrue(file.exists());
+
+		CoverageMemo loaded = new CoverageMemo(file, 60000);
+		assertEquals(2, loaded.size());
+		assertTrue(geometry.equalsExact(loaded.get("21", compute(null, calls))));
+		assertNull(loaded.get("27", compute(geometry, calls)));
+		assertEquals(2, calls[0]);
+		assertEquals(2, loaded.getHits());
+
+		//unmodified memo is not rewritten
+		file.setLastModified(0);
+		loaded.save();
+		assertEquals(0, file.lastModified());
+	}
+
+	public void testExpiredEntriesAreNotLoaded() throws Exception{
+		int[] calls = new int[1];
+		CoverageMemo memo = new CoverageMemo(file, 60000);
+		memo.get("21", compute(FeatureFixtures.rectangle(0, 0, 10, 10), calls));
+		memo.times.put("21", System.currentTimeMillis() - 120000);
+		memo.get("27", compute(null, calls));
+		memo.save();
+
+		CoverageMemo loaded = new CoverageMemo(file, 60000);
+		assertEquals(1, loaded.size());
+		assertFalse(loaded.contains("21"));
+		assertTrue(loaded.contains("27"));
+		assertEquals(2, new CoverageMemo(file, 0).size()); //no expiry
+
+		//the expired entries are dropped from the file
+		loaded.save();
+		assertEquals(1, new CoverageMemo(file, 0).size());
+	}
+
+}
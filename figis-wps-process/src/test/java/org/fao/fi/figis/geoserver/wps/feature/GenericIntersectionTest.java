@@ -0,0 +1,431 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+
+/** Test of the generic intersection process
+ *  The results of the process options are compared with the baseline output (no option).
+ *
+ * @author eblondel
+ *
+ */
+public class GenericIntersectionTest extends TestCase {
+
+	SimpleFeatureCollection first;
+	SimpleFeatureCollection second;
+
+	protected void setUp(){
+		first = FeatureFixtures.getLayer("A", FeatureFixtures.circle(5, 5, 6), FeatureFixtures.circle(22, 8, 7),
+										 FeatureFixtures.rectangle(30, -5, 45, 5));
+		second = FeatureFixtures.getLayer("B", FeatureFixtures.circle(12, 5, 8), FeatureFixtures.circle(35, 0, 6),
+										  FeatureFixtures.rectangle(-5, -5, 4, 4), FeatureFixtures.circle(80, 80, 1));
+	}
+
+	/** Get the process parameters
+	 *
+	 * @param values the parameter names and values
+	 * @return
+	 */
+	private Map<String, Object> params(Object... values){
+		Map<String, Object> params = new HashMap<String, Object>();
+		for(int i = 0; i < values.length; i += 2){
+			params.put((String) values[i], values[i + 1]);
+		}
+		return params;
+	}
+
+	/** Run the intersection process
+	 *
+	 * @param features1
+	 * @param features2
+	 * @param params the process parameters by name (the missing ones are not specified)
+	 * @return
+	 */
+	private SimpleFeatureCollection intersect(SimpleFeatureCollection features1, SimpleFeatureCollection features2, Map<String, Object> params){
+		return new GenericIntersection().execute(features1, features2,
+				(Double) params.get("tileSize"), (Boolean) params.get("mergeTiles"), (Integer) params.get("tileThreads"),
+				(Double) params.get("precision"), (String) params.get("cacheName"), (String) params.get("cacheVersionAttribute"),
+				(Integer) params.get("cacheMaxEntries"), (Boolean) params.get("areaMatrix"), (String) params.get("key1"),
+				(String) params.get("key2"), (String) params.get("validation"), (String) params.get("filter1"),
+				(String) params.get("filter2"), (Integer) params.get("startIndex"), (Integer) params.get("maxFeatures"),
+				(String) params.get("pageStore"), (String) params.get("order"), (String) params.get("join"),
+				(Double) params.get("minArea"), (Double) params.get("minFraction"), (Boolean) params.get("percentages"),
+				(Integer) params.get("maxVertices"), (String) params.get("engine"));
+	}
+
+	/** Get the intersection areas of a result, by pair of source feature codes
+	 *  (the areas of the features of a pair are summed)
+	 *
+	 * @param result
+	 * @return
+	 */
+	private Map<String, Double> getAreas(SimpleFeatureCollection result){
+		return getAreas(result, "L1_CODE", "L2_CODE");
+	}
+
+	/** Get the intersection areas of a result, by pair of source keys
+	 *
+	 * @param result
+	 * @param key1 the result attribute holding the first source key
+	 * @param key2 the result attribute holding the second source key
+	 * @return
+	 */
+	private Map<String, Double> getAreas(SimpleFeatureCollection result, String key1, String key2){
+		Map<String, Double> areas = new TreeMap<String, Double>();
+		for(SimpleFeature feature : FeatureFixtures.getFeatures(result)){
+			String pair = feature.getAttribute(key1) + "|" + feature.getAttribute(key2);
+			Double area = areas.get(pair);
+			areas.put(pair, (area != null? area : 0) + (Double) feature.getAttribute(GenericIntersection.AREA_ATT_NAME));
+		}
+		return areas;
+	}
+
+	/** Check that intersection areas are the baseline ones
+	 *
+	 * @param expected
+	 * @param actual
+	 */
+	private void assertAreas(Map<String, Double> expected, Map<String, Double> actual){
+		assertEquals(expected.keySet(), actual.keySet());
+		for(String pair : expected.keySet()){
+			assertEquals(pair, expected.get(pair), actual.get(pair), expected.get(pair) * 1e-6);
+		}
+	}
+
+	public void testBaseline(){
+		Map<String, Double> areas = getAreas(intersect(first, second, params()));
+		assertEquals(new HashSet<String>(Arrays.asList("0|0", "0|2", "1|0", "2|1")), areas.keySet());
+		for(Double area : areas.values()){
+			assertTrue(area > 0);
+		}
+	}
+
+	public void testTiledMergeMatchesBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		assertAreas(baseline, getAreas(intersect(first, second, params("tileSize", 10.0))));
+		assertAreas(baseline, getAreas(intersect(first, second, params("tileSize", 10.0, "tileThreads", 2))));
+		assertAreas(baseline, getAreas(intersect(first, second, params("tileSize", 5.0, "mergeTiles", true))));
+	}
+
+	public void testTiledWithoutMerge(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		SimpleFeatureCollection result = intersect(first, second, params("tileSize", 10.0, "mergeTiles", false));
+		assertNotNull(result.getSchema().getDescriptor(GenericIntersection.TILE_ATT_NAME));
+
+		Set<String> fragments = new HashSet<String>();
+		for(SimpleFeature feature : FeatureFixtures.getFeatures(result)){
+			String fragment = feature.getAttribute("L1_CODE") + "|" + feature.getAttribute("L2_CODE") + "|" + feature.getAttribute(GenericIntersection.TILE_ATT_NAME);
+			assertTrue(fragment, fragments.add(fragment));
+			assertTrue(fragment, (Double) feature.getAttribute(GenericIntersection.AREA_ATT_NAME) > 0);
+		}
+		assertTrue(fragments.size() > baseline.size());
+		assertAreas(baseline, getAreas(result));
+	}
+
+	public void testTiledModeRequiresValidTileSize(){
+		try{
+			intersect(first, second, params("tileSize", 3.0));
+			fail("3 is not a c-square resolution");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testAreaMatrixMatchesBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		SimpleFeatureCollection matrix = intersect(first, second, params("areaMatrix", true, "key1", "CODE", "key2", "CODE"));
+		assertNull(matrix.getSchema().getGeometryDescriptor());
+		assertAreas(baseline, getAreas(matrix, "L1_KEY", "L2_KEY"));
+
+		for(SimpleFeature feature : FeatureFixtures.getFeatures(matrix)){
+			for(String pct : new String[]{"L1_PCT", "L2_PCT"}){
+				double value = (Double) feature.getAttribute(pct);
+				assertTrue(pct + "=" + value, value > 0 && value <= 100);
+			}
+		}
+	}
+
+	public void testAreaMatrixDefaultKeys(){
+		Map<String, Double> areas = getAreas(intersect(first, second, params("areaMatrix", true)), "L1_KEY", "L2_KEY");
+		assertEquals(new HashSet<String>(Arrays.asList("A.0|B.0", "A.0|B.2", "A.1|B.0", "A.2|B.1")), areas.keySet());
+	}
+
+	public void testAreaMatrixUnknownKey(){
+		try{
+			intersect(first, second, params("areaMatrix", true, "key1", "UNKNOWN"));
+			fail("UNKNOWN is not an attribute of the first collection");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testValidationPoliciesMatchBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		for(String validation : new String[]{"always", "fast", "never", "repair-on-write"}){
+			assertAreas(baseline, getAreas(intersect(first, second, params("validation", validation))));
+			assertAreas(baseline, getAreas(intersect(first, second, params("validation", validation, "tileSize", 10.0))));
+		}
+	}
+
+	public void testValidationKeepsGeometries(){
+		SimpleFeatureCollection result = intersect(first, second, params("validation", "always"));
+		for(SimpleFeature feature : FeatureFixtures.getFeatures(result)){
+			Geometry geometry = (Geometry) feature.getDefaultGeometry();
+			assertNotNull(geometry);
+			assertTrue(geometry.isValid());
+		}
+		assertEquals(FeatureFixtures.getFeatures(intersect(first, second, params())).size(), result.size());
+	}
+
+	public void testUnknownValidationPolicy(){
+		try{
+			intersect(first, second, params("validation", "sometimes"));
+			fail("sometimes is not a validation policy");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	/** Get the baseline areas of the pairs of selected source feature codes
+	 *
+	 * @param baseline
+	 * @param codes1 the selected codes of the first layer
+	 * @param codes2 the selected codes of the second layer
+	 * @return
+	 */
+	private Map<String, Double> select(Map<String, Double> baseline, List<String> codes1, List<String> codes2){
+		Map<String, Double> areas = new TreeMap<String, Double>();
+		for(Map.Entry<String, Double> pair : baseline.entrySet()){
+			String[] codes = pair.getKey().split("\\|");
+			if(codes1.contains(codes[0]) && codes2.contains(codes[1])){
+				areas.put(pair.getKey(), pair.getValue());
+			}
+		}
+		return areas;
+	}
+
+	public void testFiltersMatchFilteredBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		List<String> all = Arrays.asList("0", "1", "2", "3");
+
+		Map<String, Double> expected = select(baseline, Arrays.asList("0", "2"), all);
+		assertEquals(3, expected.size());
+		assertAreas(expected, getAreas(intersect(first, second, params("filter1", "CODE IN ('0', '2')"))));
+
+		expected = select(baseline, all, Arrays.asList("0"));
+		assertEquals(2, expected.size());
+		assertAreas(expected, getAreas(intersect(first, second, params("filter2", "CODE = '0'"))));
+		assertAreas(expected, getAreas(intersect(first, second, params("filter2", "CODE = '0'", "tileSize", 10.0))));
+
+		expected = select(baseline, Arrays.asList("0"), Arrays.asList("0"));
+		assertEquals(1, expected.size());
+		assertAreas(expected, getAreas(intersect(first, second, params("filter1", "CODE = '0'", "filter2", "CODE = '0'"))));
+	}
+
+	public void testInvalidFilter(){
+		try{
+			intersect(first, second, params("filter1", "CODE = "));
+			fail("the filter is not a valid CQL expression");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testPagesMatchBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		for(int pageSize = 1; pageSize <= 3; pageSize++){
+			Map<String, Double> areas = new TreeMap<String, Double>();
+			for(int startIndex = 0; startIndex < first.size(); startIndex += pageSize){
+				Map<String, Double> page = getAreas(intersect(first, second, params("startIndex", startIndex, "maxFeatures", pageSize)));
+				for(String pair : page.keySet()){
+					assertFalse(pair, areas.containsKey(pair));
+				}
+				areas.putAll(page);
+			}
+			assertAreas(baseline, areas);
+		}
+	}
+
+	public void testFilteredPages(){
+		Map<String, Double> expected = getAreas(intersect(first, second, params("filter1", "CODE <> '1'")));
+		Map<String, Double> areas = new TreeMap<String, Double>();
+		areas.putAll(getAreas(intersect(first, second, params("filter1", "CODE <> '1'", "startIndex", 0, "maxFeatures", 1))));
+		areas.putAll(getAreas(intersect(first, second, params("filter1", "CODE <> '1'", "startIndex", 1, "maxFeatures", 1))));
+		assertAreas(expected, areas);
+		assertEquals(0, intersect(first, second, params("filter1", "CODE <> '1'", "startIndex", 2)).size());
+	}
+
+	public void testInvalidPage(){
+		try{
+			intersect(first, second, params("startIndex", -1));
+			fail("the start index must be positive");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testOrderedMatchesBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		for(String order : new String[]{"hilbert", "zorder"}){
+			assertAreas(baseline, getAreas(intersect(first, second, params("order", order))));
+
+			Map<String, Double> areas = new TreeMap<String, Double>();
+			for(int startIndex = 0; startIndex < first.size(); startIndex += 2){
+				areas.putAll(getAreas(intersect(first, second, params("order", order, "startIndex", startIndex, "maxFeatures", 2))));
+			}
+			assertAreas(baseline, areas);
+		}
+	}
+
+	public void testJoinStrategiesMatchBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params("join", "index")));
+		assertAreas(baseline, getAreas(intersect(first, second, params())));
+		assertAreas(baseline, getAreas(intersect(first, second, params("join", "sweep"))));
+		assertAreas(baseline, getAreas(intersect(first, second, params("join", "sweep", "tileSize", 10.0))));
+		assertAreas(baseline, getAreas(intersect(first, second, params("join", "auto"))));
+	}
+
+	public void testSweepPreferredSizes(){
+		Geometry[] small = new Geometry[GenericIntersection.SWEEP_MIN_SIZE - 1];
+		Geometry[] large = new Geometry[GenericIntersection.SWEEP_MIN_SIZE];
+		for(int i = 0; i < large.length; i++){
+			large[i] = FeatureFixtures.rectangle(i, 0, i + 1, 1);
+			if(i < small.length){
+				small[i] = large[i];
+			}
+		}
+		SimpleFeatureCollection smallLayer = FeatureFixtures.getLayer("S", small);
+		SimpleFeatureCollection largeLayer = FeatureFixtures.getLayer("L", large);
+		assertTrue(GenericIntersection.isSweepPreferred(largeLayer, largeLayer));
+		assertFalse(GenericIntersection.isSweepPreferred(smallLayer, largeLayer));
+		assertFalse(GenericIntersection.isSweepPreferred(largeLayer, first));
+	}
+
+	public void testSweepWithPageIsRejected(){
+		try{
+			intersect(first, second, params("join", "sweep", "startIndex", 0, "maxFeatures", 1));
+			fail("the sweep join cannot be paged");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testRectangleClipMatchesOverlay(){
+		Geometry rectangle = FeatureFixtures.rectangle(0, 0, 8, 20);
+		for(Geometry geometry : new Geometry[]{ FeatureFixtures.circle(5, 5, 6), FeatureFixtures.circle(12, 5, 3), FeatureFixtures.rectangle(-5, -5, 4, 4) }){
+			Geometry clip = GenericIntersection.clipToRectangle(geometry, rectangle.getEnvelopeInternal()).geometry;
+			Geometry expected = geometry.intersection(rectangle);
+			if(expected.isEmpty()){
+				assertTrue(clip == null || clip.isEmpty());
+			}else{
+				assertEquals(expected.getArea(), clip.getArea(), expected.getArea() * 1e-9);
+				assertTrue(clip.isValid());
+			}
+		}
+
+		Geometry inside = FeatureFixtures.circle(4, 10, 2);
+		GenericIntersection.IntersectionFragment fragment = GenericIntersection.clipToRectangle(inside, rectangle.getEnvelopeInternal());
+		assertSame(inside, fragment.geometry);
+		assertTrue(fragment.trusted);
+	}
+
+	public void testRectangleLayersMatchOverlay(){
+		SimpleFeatureCollection rectangles = FeatureFixtures.getLayer("R", FeatureFixtures.rectangle(0, 0, 20, 20), FeatureFixtures.rectangle(20, 0, 40, 20));
+		SimpleFeatureCollection circles = FeatureFixtures.getLayer("C", FeatureFixtures.circle(10, 10, 3), FeatureFixtures.circle(20, 10, 5));
+
+		Map<String, Double> areas = getAreas(intersect(rectangles, circles, params()));
+		assertEquals(new HashSet<String>(Arrays.asList("0|0", "0|1", "1|1")), areas.keySet());
+		assertEquals(areas.get("0|1"), areas.get("1|1"), areas.get("0|1") * 1e-6);
+		Map<String, Double> reversed = getAreas(intersect(circles, rectangles, params()));
+		assertEquals(areas.size(), reversed.size());
+		for(String pair : reversed.keySet()){
+			String[] codes = pair.split("\\|");
+			assertEquals(pair, areas.get(codes[1] + "|" + codes[0]), reversed.get(pair), reversed.get(pair) * 1e-6);
+		}
+
+		//contained pass-through
+		Geometry circle = FeatureFixtures.GF.createMultiPolygon(new Polygon[]{ FeatureFixtures.circle(10, 10, 3) });
+		List<SimpleFeature> features = FeatureFixtures.getFeatures(intersect(rectangles, circles, params("filter2", "CODE = '0'")));
+		assertEquals(1, features.size());
+		assertTrue(circle.equalsExact((Geometry) features.get(0).getDefaultGeometry()));
+	}
+
+	public void testSliversAreDropped(){
+		SimpleFeatureCollection squares = FeatureFixtures.getLayer("S", FeatureFixtures.rectangle(0, 0, 10, 10));
+		SimpleFeatureCollection overlaps = FeatureFixtures.getLayer("O", FeatureFixtures.rectangle(9.999, 0, 20, 10),
+				FeatureFixtures.circle(5, 5, 3), FeatureFixtures.circle(10, 5, 3));
+		Map<String, Double> baseline = getAreas(intersect(squares, overlaps, params()));
+		assertEquals(3, baseline.size());
+		baseline.remove("0|0");
+
+		assertAreas(baseline, getAreas(intersect(squares, overlaps, params("minArea", 1e9))));
+		assertAreas(baseline, getAreas(intersect(squares, overlaps, params("minFraction", 0.01))));
+		assertAreas(baseline, getAreas(intersect(squares, overlaps, params("minFraction", 0.01, "tileSize", 5.0))));
+		assertEquals(3, getAreas(intersect(squares, overlaps, params("minArea", 0.0, "minFraction", 0.0))).size());
+	}
+
+	public void testInvalidSliverThresholds(){
+		for(Map<String, Object> params : Arrays.asList(params("minArea", -1.0), params("minFraction", 1.5))){
+			try{
+				intersect(first, second, params);
+				fail("invalid threshold " + params);
+			}catch(IllegalArgumentException e){
+				//expected
+			}
+		}
+	}
+
+	public void testPercentages(){
+		SimpleFeatureCollection squares = FeatureFixtures.getLayer("S", FeatureFixtures.rectangle(0, 0, 10, 10));
+		SimpleFeatureCollection overlaps = FeatureFixtures.getLayer("O", FeatureFixtures.rectangle(0, 0, 10, 10),
+				FeatureFixtures.rectangle(5, 0, 25, 10));
+
+		SimpleFeatureCollection result = intersect(squares, overlaps, params("percentages", true));
+		assertAreas(getAreas(intersect(squares, overlaps, params())), getAreas(result));
+		Map<String, double[]> percentages = new TreeMap<String, double[]>();
+		for(SimpleFeature feature : FeatureFixtures.getFeatures(result)){
+			percentages.put(feature.getAttribute("L1_CODE") + "|" + feature.getAttribute("L2_CODE"),
+					new double[]{ (Double) feature.getAttribute("L1_PCT"), (Double) feature.getAttribute("L2_PCT") });
+		}
+		assertEquals(2, percentages.size());
+		assertEquals(100, percentages.get("0|0")[0], 1e-6);
+		assertEquals(100, percentages.get("0|0")[1], 1e-6);
+		assertEquals(50, percentages.get("0|1")[0], 1e-6);
+		assertEquals(25, percentages.get("0|1")[1], 1e-6);
+
+		assertNull(intersect(squares, overlaps, params()).getSchema().getDescriptor("L1_PCT"));
+	}
+
+	public void testPercentagesMatchAreaMatrix(){
+		Map<String, Double> pct1 = new TreeMap<String, Double>();
+		for(SimpleFeature feature : FeatureFixtures.getFeatures(intersect(first, second, params("percentages", true)))){
+			pct1.put(feature.getAttribute("L1_CODE") + "|" + feature.getAttribute("L2_CODE"), (Double) feature.getAttribute("L1_PCT"));
+		}
+		Map<String, Double> matrix = new TreeMap<String, Double>();
+		for(SimpleFeature feature : FeatureFixtures.getFeatures(intersect(first, second, params("areaMatrix", true, "key1", "CODE", "key2", "CODE")))){
+			matrix.put(feature.getAttribute("L1_KEY") + "|" + feature.getAttribute("L2_KEY"), (Double) feature.getAttribute("L1_PCT"));
+		}
+		assertAreas(matrix, pct1);
+	}
+
+	public void testDecomposedMatchesBaseline(){
+		Map<String, Double> baseline = getAreas(intersect(first, second, params()));
+		assertAreas(baseline, getAreas(intersect(first, second, params("maxVertices", 8))));
+		assertAreas(baseline, getAreas(intersect(first, second, params("maxVertices", 8, "tileSize", 10.0))));
+	}
+
+}
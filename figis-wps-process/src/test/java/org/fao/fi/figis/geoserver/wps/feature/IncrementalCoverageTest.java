@@ -0,0 +1,128 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/** Test of the incremental regeneration of the FIRMS coverage
+ * 
+ * @author eblondel
+ *
+ */
+public class IncrementalCoverageTest extends TestCase {
+
+	File file;
+	SimpleFeatureType rowSchema;
+	SimpleFeatureType targetSchema;
+
+	protected void setUp() throws Exception {
+		file = File.createTempFile("figis-coverage-", ".store");
+		file.delete();
+
+		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+		tb.setName("FIRMS_ROWS");
+		tb.add(IncrementalCoverage.ROW_ID_ATT_NAME, Integer.class);
+		tb.add("CODE", String.class);
+		rowSchema = tb.buildFeatureType();
+		targetSchema = FeatureFixtures.getSchema("FIRMS_COVERAGE");
+	}
+
+	protected void tearDown(){
+		file.delete();
+	}
+
+	private SimpleFeature row(int id, String code){
+		SimpleFeatureBuilder fb = new SimpleFeatureBuilder(rowSchema);
+		fb.set(IncrementalCoverage.ROW_ID_ATT_NAME, id);
+		fb.set("CODE", code);
+		return fb.buildFeature("FIRMS_ROWS." + id);
+	}
+
+	private SimpleFeature result(SimpleFeature row){
+		double x = ((Integer) row.getAttribute(IncrementalCoverage.ROW_ID_ATT_NAME)).doubleValue();
+		return FeatureFixtures.getFeature(targetSchema, row.getID(), FeatureFixtures.rectangle(x, 0, x + 1, 1),
+										  (String) row.getAttribute("CODE"));
+	}
+
+	/** Run the coverage of rows, computing the changed rows only
+	 * 
+	 * @param rows the input rows
+	 * @param reused the list of the reused coverage features
+	 * @return the computed rows
+	 * @throws Exception
+	 */
+	private List<SimpleFeature> run(List<SimpleFeature> rows, List<SimpleFeature> reused) throws Exception{
+		List<SimpleFeature> computed = new ArrayList<SimpleFeature>();
+		IncrementalCoverage coverage = new IncrementalCoverage(file, targetSchema);
+		try{
+			for(SimpleFeature row : rows){
+				if(coverage.isUnchanged(row)){
+					continue;
+				}
+				computed.add(row);
+				coverage.write(row, "none".equals(row.getAttribute("CODE"))? null : result(row));
+			}
+			SimpleFeature feature;
+			while((feature = coverage.nextUnchanged()) != null){
+				reused.add(feature);
+			}
+			assertEquals(reused.size(), coverage.getReused());
+		}finally{
+			coverage.close();
+		}
+		return computed;
+	}
+
+	public void testChangedRowsAreRecomputed() throws Exception{
+		List<SimpleFeature> rows = new ArrayList<SimpleFeature>();
+		rows.add(row(1, "21"));
+		rows.add(row(2, "27"));
+		rows.add(row(3, "none"));
+		List<SimpleFeature> reused = new ArrayList<SimpleFeature>();
+		assertEquals(3, run(rows, reused).size());
+		assertEquals(0, reused.size());
+		assertTrue(file.exists());
+
+		rows.set(1, row(2, "34"));
+		rows.add(row(4, "37"));
+		List<SimpleFeature> computed = run(rows, reused);
+		assertEquals(2, computed.size());
+		assertEquals(2, computed.get(0).getAttribute(IncrementalCoverage.ROW_ID_ATT_NAME));
+		assertEquals(4, computed.get(1).getAttribute(IncrementalCoverage.ROW_ID_ATT_NAME));
+
+		//the unchanged row without coverage is not returned
+		assertEquals(1, reused.size());
+		assertEquals("1", reused.get(0).getID());
+		assertEquals("21", reused.get(0).getAttribute("CODE"));
+		assertNotNull(reused.get(0).getDefaultGeometry());
+
+		//unchanged rows are kept in the new store
+		reused.clear();
+		rows.remove(3);
+		assertEquals(0, run(rows, reused).size());
+		assertEquals(2, reused.size());
+	}
+
+	public void testIncompleteCoverageKeepsPreviousStore() throws Exception{
+		List<SimpleFeature> rows = new ArrayList<SimpleFeature>();
+		rows.add(row(1, "21"));
+		run(rows, new ArrayList<SimpleFeature>());
+
+		IncrementalCoverage coverage = new IncrementalCoverage(file, targetSchema);
+		coverage.write(row(1, "27"), result(row(1, "27")));
+		coverage.close();
+
+		List<SimpleFeature> reused = new ArrayList<SimpleFeature>();
+		assertEquals(0, run(rows, reused).size());
+		assertEquals(1, reused.size());
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+import org.fao.fi.figis.geoserver.wps.utils.store.FeatureFileStore;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/** Test of the grouping of features by reference layer
+ * 
+ * @author eblondel
+ *
+ */
+public class LayerGroupingIteratorTest extends TestCase {
+
+	static final String[] LAYERS = {"FAO_AREAS", "EEZ", "FAO_AREAS", "LME", "EEZ", "FAO_AREAS", "LME", "EEZ", "FAO_AREAS"};
+
+	ListFeatureCollection rows;
+
+	protected void setUp(){
+		SimpleFeatureType schema = FeatureFixtures.getSchema("FIRMS_ROWS");
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		for(int i = 0; i < LAYERS.length; i++){
+			features.add(FeatureFixtures.getFeature(schema, "FIRMS_ROWS." + i, FeatureFixtures.rectangle(i, 0, i + 1, 1), LAYERS[i]));
+		}
+		rows = new ListFeatureCollection(schema, features);
+	}
+
+	/** Read the IDs of the grouped features, checking the layer grouping
+	 * 
+	 * @param it
+	 * @return the feature IDs
+	 */
+	private List<String> read(LayerGroupingIterator it){
+		LinkedList<String> layers = it.getLayers();
+		assertEquals(Arrays.asList("FAO_AREAS", "EEZ", "LME"), layers);
+
+		List<String> ids = new ArrayList<String>();
+		String layer = null;
+		while(it.hasNext()){
+			SimpleFeature feature = it.next();
+			String code = (String) feature.getAttribute("CODE");
+			if(!code.equals(layer)){
+				layer = code;
+				assertEquals(layers.removeFirst(), layer);
+			}
+			ids.add(feature.getID());
+		}
+		assertTrue(layers.isEmpty());
+		return ids;
+	}
+
+	public void testGroupingInMemory() throws Exception{
+		LayerGroupingIterator it = new LayerGroupingIterator(rows.features(), "CODE", 100);
+		try{
+			assertEquals(Arrays.asList("FIRMS_ROWS.0", "FIRMS_ROWS.2", "FIRMS_ROWS.5", "FIRMS_ROWS.8",
+									   "FIRMS_ROWS.1", "FIRMS_ROWS.4", "FIRMS_ROWS.7",
+									   "FIRMS_ROWS.3", "FIRMS_ROWS.6"), read(it));
+			assertEquals(0, it.getSpills());
+		}finally{
+			it.close();
+		}
+	}
+
+	public void testGroupingWithSpills() throws Exception{
+		LayerGroupingIterator it = new LayerGroupingIterator(rows.features(), "CODE", 2);
+		List<File> files = new ArrayList<File>();
+		try{
+			assertTrue(it.getSpills() > 0);
+			for(FeatureFileStore store : it.stores.values()){
+				files.add(store.getFile());
+				assertTrue(store.exists());
+			}
+			assertEquals(Arrays.asList("FIRMS_ROWS.0", "FIRMS_ROWS.2", "FIRMS_ROWS.5", "FIRMS_ROWS.8",
+									   "FIRMS_ROWS.1", "FIRMS_ROWS.4", "FIRMS_ROWS.7",
+									   "FIRMS_ROWS.3", "FIRMS_ROWS.6"), read(it));
+		}finally{
+			it.close();
+		}
+		assertFalse(files.isEmpty());
+		for(File file : files){
+			assertFalse(file.exists());
+		}
+	}
+
+	public void testSpillsAreDiscardedOnFailure() throws Exception{
+		final SimpleFeatureIterator delegate = rows.features();
+		final boolean[] closed = {false};
+		SimpleFeatureIterator failing = new SimpleFeatureIterator(){
+			int count = 0;
+			public boolean hasNext() {
+				return delegate.hasNext();
+			}
+			public SimpleFeature next() throws NoSuchElementException {
+				if(++count > 6){
+					throw new IllegalStateException("Read failure");
+				}
+				return delegate.next();
+			}
+			public void close() {
+				closed[0] = true;
+				delegate.close();
+			}
+		};
+
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		List<String> before = Arrays.asList(dir.list());
+		try{
+			new LayerGroupingIterator(failing, "CODE", 2);
+			fail("The read failure should be thrown");
+		}catch(IllegalStateException e){
+			//expected
+		}
+		assertTrue(closed[0]);
+
+		List<File> files = new ArrayList<File>();
+		for(String name : dir.list()){
+			if(name.startsWith("firms-group-") && !before.contains(name)){
+				files.add(new File(dir, name));
+			}
+		}
+		assertTrue("Spill files left: "+files, files.isEmpty());
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+
+/** Test of the multi-way intersection process
+ * 
+ * @author eblondel
+ *
+ */
+public class MultiIntersectionTest extends TestCase {
+
+	SimpleFeatureCollection layerA = FeatureFixtures.getLayer("A", FeatureFixtures.rectangle(0, 0, 10, 10), FeatureFixtures.rectangle(10, 0, 20, 10));
+	SimpleFeatureCollection layerB = FeatureFixtures.getLayer("B", FeatureFixtures.rectangle(5, 0, 15, 10));
+	SimpleFeatureCollection layerC = FeatureFixtures.getLayer("C", FeatureFixtures.rectangle(0, 0, 20, 5), FeatureFixtures.rectangle(50, 50, 60, 60));
+
+	public void testThreeWayIntersection(){
+		SimpleFeatureCollection result = new MultiIntersection().execute(Arrays.asList(layerA, layerB, layerC), null, null);
+
+		SimpleFeatureType schema = result.getSchema();
+		assertEquals("A_x_B_x_C", schema.getTypeName());
+		assertEquals(MultiPolygon.class, schema.getGeometryDescriptor().getType().getBinding());
+		for(String attribute : new String[]{"L1_REF", "L1_CODE", "L2_REF", "L2_CODE", "L3_REF", "L3_CODE", "INT_AREA"}){
+			assertNotNull(attribute, schema.getDescriptor(attribute));
+		}
+
+		List<SimpleFeature> features = FeatureFixtures.getFeatures(result);
+		assertEquals(2, features.size());
+		String[] firstCodes = {"0", "1"};
+		for(int i = 0; i < features.size(); i++){
+			SimpleFeature feature = features.get(i);
+			assertEquals("A", feature.getAttribute("L1_REF"));
+			assertEquals(firstCodes[i], feature.getAttribute("L1_CODE"));
+			assertEquals("B", feature.getAttribute("L2_REF"));
+			assertEquals("0", feature.getAttribute("L2_CODE"));
+			assertEquals("C", feature.getAttribute("L3_REF"));
+			assertEquals("0", feature.getAttribute("L3_CODE"));
+
+			Geometry geometry = (Geometry) feature.getDefaultGeometry();
+			assertEquals(25.0, geometry.getArea(), 1e-9);
+			assertTrue(((Double) feature.getAttribute("INT_AREA")) > 0);
+		}
+		assertTrue(FeatureFixtures.rectangle(5, 0, 10, 5).equalsNorm(((Geometry) features.get(0).getDefaultGeometry()).getGeometryN(0)));
+	}
+
+	public void testTouchingFeaturesAreNotIntersected(){
+		SimpleFeatureCollection touching = FeatureFixtures.getLayer("D", FeatureFixtures.rectangle(20, 0, 30, 10), FeatureFixtures.rectangle(-10, 10, 0, 20));
+		assertTrue(FeatureFixtures.getFeatures(new MultiIntersection().execute(Arrays.asList(layerA, touching), null, null)).isEmpty());
+	}
+
+	public void testSnapEngine(){
+		List<SimpleFeature> features = FeatureFixtures.getFeatures(new MultiIntersection().execute(Arrays.asList(layerA, layerB), null, "snap"));
+		assertEquals(2, features.size());
+		double area = 0;
+		for(SimpleFeature feature : features){
+			area += ((Geometry) feature.getDefaultGeometry()).getArea();
+		}
+		assertEquals(100.0, area, 1e-6);
+	}
+
+	public void testFixedPrecisionSnapsInputs(){
+		SimpleFeatureCollection offGrid = FeatureFixtures.getLayer("E", FeatureFixtures.rectangle(4.6, 0.2, 14.7, 9.8));
+		List<SimpleFeature> features = FeatureFixtures.getFeatures(new MultiIntersection().execute(Arrays.asList(layerA, offGrid), 1.0, null));
+		assertEquals(2, features.size());
+		for(SimpleFeature feature : features){
+			assertEquals(50.0, ((Geometry) feature.getDefaultGeometry()).getArea(), 0);
+		}
+	}
+
+	public void testInvalidInputs(){
+		try{
+			new MultiIntersection().execute(Arrays.asList(layerA), null, null);
+			fail("At least 2 layers are required");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+		try{
+			new MultiIntersection().execute(Arrays.asList(layerA, layerB), null, "unknown");
+			fail("The overlay engine is unknown");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+		try{
+			new MultiIntersection().execute(Arrays.asList(layerA, layerB), 1e-7, "snap");
+			fail("The snap engine does not use a precision grid");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+}
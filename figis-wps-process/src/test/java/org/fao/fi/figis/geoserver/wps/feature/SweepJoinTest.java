@@ -0,0 +1,106 @@
+package org.fao.fi.figis.geoserver.wps.feature;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Test of the plane sweep join, against a brute force join of the envelopes
+ * 
+ * @author eblondel
+ *
+ */
+public class SweepJoinTest extends TestCase {
+
+	/** Get a layer of random rectangles
+	 * 
+	 * @param name
+	 * @param size
+	 * @param random
+	 * @return
+	 */
+	private SimpleFeatureCollection getRandomLayer(String name, int size, Random random){
+		Geometry[] rectangles = new Geometry[size];
+		for(int i = 0; i < size; i++){
+			double x = random.nextInt(100);
+			double y = random.nextInt(100);
+			rectangles[i] = FeatureFixtures.rectangle(x, y, x + 1 + random.nextInt(10), y + 1 + random.nextInt(10));
+		}
+		return FeatureFixtures.getLayer(name, rectangles);
+	}
+
+	private Envelope getEnvelope(SimpleFeature feature){
+		return ((Geometry) feature.getDefaultGeometry()).getEnvelopeInternal();
+	}
+
+	public void testSameCandidatesAsBruteForce(){
+		Random random = new Random(26);
+		SimpleFeatureCollection first = getRandomLayer("FIRST", 200, random);
+		SimpleFeatureCollection second = getRandomLayer("SECOND", 300, random);
+		List<SimpleFeature> secondFeatures = FeatureFixtures.getFeatures(second);
+
+		long pairs = 0;
+		Set<String> visited = new HashSet<String>();
+		SweepJoin join = new SweepJoin(first, second);
+		try{
+			double minX = Double.NEGATIVE_INFINITY;
+			while(join.hasNext()){
+				SimpleFeature feature = join.next();
+				assertTrue(visited.add(feature.getID()));
+				Envelope envelope = getEnvelope(feature);
+				assertTrue(envelope.getMinX() >= minX);
+				minX = envelope.getMinX();
+
+				Set<String> expected = new HashSet<String>();
+				for(SimpleFeature candidate : secondFeatures){
+					if(getEnvelope(candidate).intersects(envelope)){
+						expected.add(candidate.getID());
+					}
+				}
+				Set<String> candidates = new HashSet<String>();
+				for(SimpleFeature candidate : FeatureFixtures.getFeatures(join.getCandidates())){
+					assertTrue(candidates.add(candidate.getID()));
+				}
+				assertEquals(expected, candidates);
+				pairs += expected.size();
+			}
+		}finally{
+			join.close();
+		}
+		assertEquals(200, visited.size());
+		assertEquals(pairs, join.getPairs());
+	}
+
+	public void testFeaturesWithoutGeometryAreSkipped(){
+		SimpleFeatureType schema = FeatureFixtures.getSchema("FIRST");
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		features.add(FeatureFixtures.getFeature(schema, "FIRST.0", null, "0"));
+		features.add(FeatureFixtures.getFeature(schema, "FIRST.1", FeatureFixtures.rectangle(0, 0, 1, 1), "1"));
+		SimpleFeatureCollection second = FeatureFixtures.getLayer("SECOND", FeatureFixtures.rectangle(1, 1, 2, 2), FeatureFixtures.rectangle(3, 3, 4, 4));
+
+		SweepJoin join = new SweepJoin(new ListFeatureCollection(schema, features), second);
+		try{
+			assertTrue(join.hasNext());
+			assertEquals("FIRST.1", join.next().getID());
+			List<SimpleFeature> candidates = FeatureFixtures.getFeatures(join.getCandidates());
+			assertEquals(1, candidates.size());
+			assertEquals("SECOND.0", candidates.get(0).getID());
+			assertFalse(join.hasNext());
+		}finally{
+			join.close();
+		}
+	}
+
+}
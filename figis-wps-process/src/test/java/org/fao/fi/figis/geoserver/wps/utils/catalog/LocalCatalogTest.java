@@ -0,0 +1,133 @@
+package org.fao.fi.figis.geoserver.wps.utils.catalog;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.DataStoreInfoImpl;
+import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.geoserver.catalog.impl.NamespaceInfoImpl;
+import org.geoserver.catalog.impl.WorkspaceInfoImpl;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.Hints;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.util.ProgressListener;
+import org.springframework.context.support.StaticApplicationContext;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+
+/** Test of the local catalog access, with an in-memory catalog and data store
+ * 
+ * @author eblondel
+ *
+ */
+public class LocalCatalogTest extends TestCase {
+
+	static final String PREFIX = "fifao";
+	static final String URI = "http://www.fao.org/fi";
+	static final String LAYER = "FAO_AREAS";
+
+	Catalog catalog;
+	MemoryDataStore store;
+
+	protected void setUp() throws Exception {
+		GeometryFactory gf = new GeometryFactory();
+		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+		tb.setName(LAYER);
+		tb.setNamespaceURI(URI);
+		tb.add("the_geom", MultiPolygon.class);
+		tb.add("F_CODE", String.class);
+		SimpleFeatureType type = tb.buildFeatureType();
+
+		store = new MemoryDataStore(type);
+		SimpleFeatureBuilder fb = new SimpleFeatureBuilder(type);
+		for(int i = 0; i < 2; i++){
+			Polygon square = gf.createPolygon(gf.createLinearRing(new Coordinate[]{
+					new Coordinate(i, 0), new Coordinate(i + 1, 0), new Coordinate(i + 1, 1),
+					new Coordinate(i, 1), new Coordinate(i, 0)}), null);
+			fb.set("the_geom", gf.createMultiPolygon(new Polygon[]{square}));
+			fb.set("F_CODE", String.valueOf(i + 21));
+			store.addFeature(fb.buildFeature(LAYER + "." + i));
+		}
+
+		//in-memory catalog
+		catalog = new CatalogImpl();
+		WorkspaceInfoImpl ws = new WorkspaceInfoImpl();
+		ws.setName(PREFIX);
+		catalog.add(ws);
+		NamespaceInfoImpl ns = new NamespaceInfoImpl();
+		ns.setPrefix(PREFIX);
+		ns.setURI(URI);
+		catalog.add(ns);
+
+		DataStoreInfoImpl ds = new DataStoreInfoImpl(catalog);
+		ds.setName("memory");
+		ds.setWorkspace(ws);
+		ds.setEnabled(true);
+		catalog.add(ds);
+
+		FeatureTypeInfoImpl ft = new FeatureTypeInfoImpl(catalog){
+			private static final long serialVersionUID = 1L;
+
+			public FeatureSource<? extends FeatureType, ? extends Feature> getFeatureSource(
+					ProgressListener listener, Hints hints) throws IOException {
+				return store.getFeatureSource(LAYER);
+			}
+		};
+		ft.setName(LAYER);
+		ft.setNativeName(LAYER);
+		ft.setNamespace(ns);
+		ft.setStore(ds);
+		ft.setEnabled(true);
+		catalog.add(ft);
+
+		//GeoServer declares several Catalog beans
+		StaticApplicationContext context = new StaticApplicationContext();
+		context.getBeanFactory().registerSingleton("catalog", catalog);
+		context.getBeanFactory().registerSingleton("rawCatalog", new CatalogImpl());
+		context.refresh();
+		new GeoServerExtensions().setApplicationContext(context);
+	}
+
+	protected void tearDown() throws Exception {
+		new GeoServerExtensions().setApplicationContext(null);
+		store.dispose();
+	}
+
+	public void testGetCatalog(){
+		assertSame(catalog, LocalCatalog.getCatalog());
+	}
+
+	public void testGetFeatureSource() throws IOException{
+		SimpleFeatureSource source = LocalCatalog.getFeatureSource(PREFIX, LAYER);
+		assertNotNull(source);
+		assertEquals(LAYER, source.getSchema().getTypeName());
+		assertEquals(2, source.getFeatures().size());
+	}
+
+	public void testGetFeatureSourceByName() throws IOException{
+		SimpleFeatureSource source = LocalCatalog.getFeatureSource(new NameImpl(URI, LAYER));
+		assertNotNull(source);
+		assertEquals(2, source.getCount(Query.ALL));
+	}
+
+	public void testUnknownLayer() throws IOException{
+		assertNull(LocalCatalog.getFeatureSource(PREFIX, "UNKNOWN"));
+		assertNull(LocalCatalog.getFeatureSource(null, PREFIX, LAYER));
+	}
+
+}
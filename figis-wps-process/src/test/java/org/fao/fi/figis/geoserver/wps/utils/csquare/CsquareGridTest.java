@@ -0,0 +1,55 @@
+package org.fao.fi.figis.geoserver.wps.utils.csquare;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/** Test of the c-square grid partition
+ * 
+ * @author eblondel
+ *
+ */
+public class CsquareGridTest extends TestCase {
+
+	public void testSquareCodes(){
+		Map<String, Envelope> squares = new CsquareGrid(10).getSquares(new Envelope(2, 3, 2, 3));
+		assertEquals(1, squares.size());
+		assertEquals(new Envelope(0, 10, 0, 10), squares.get("1000"));
+	}
+
+	public void testGridAlignedBounds(){
+		CsquareGrid grid = new CsquareGrid(10);
+		assertEquals(1, grid.getSquares(new Envelope(0, 10, 0, 10)).size());
+		assertEquals(2, grid.getSquares(new Envelope(0, 20, 0, 10)).size());
+		assertEquals(6, grid.getSquares(new Envelope(-10, 20, -10, 10)).size());
+		assertEquals(4, new CsquareGrid(0.5).getSquares(new Envelope(0, 1, 0, 1)).size());
+		assertEquals(1, grid.getSquares(new Envelope(10, 10, 10, 10)).size()); //point on the grid lines
+	}
+
+	public void testCrossingBounds(){
+		Map<String, Envelope> squares = new CsquareGrid(10).getSquares(new Envelope(5, 15, 5, 15));
+		assertEquals(4, squares.size());
+		Envelope union = new Envelope();
+		for(Envelope square : squares.values()){
+			union.expandToInclude(square);
+		}
+		assertEquals(new Envelope(0, 20, 0, 20), union);
+	}
+
+	public void testWorldBounds(){
+		assertEquals(36 * 18, new CsquareGrid(10).getSquares(new Envelope(-180, 180, -90, 90)).size());
+		assertTrue(new CsquareGrid(10).getSquares(new Envelope()).isEmpty());
+	}
+
+	public void testInvalidResolution(){
+		try{
+			new CsquareGrid(3);
+			fail("3 is not a c-square resolution");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.fao.fi.figis.geoserver.wps.utils.csquare;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/** Test of the space filling curves
+ * 
+ * @author eblondel
+ *
+ */
+public class SpaceFillingCurveTest extends TestCase {
+
+	public void testHilbertCellsAreAdjacent(){
+		int order = 4;
+		int size = 1 << order;
+		SpaceFillingCurve curve = new SpaceFillingCurve(SpaceFillingCurve.Type.HILBERT, new Envelope(0, size, 0, size), order);
+
+		int[][] cells = new int[size * size][];
+		for(int x = 0; x < size; x++){
+			for(int y = 0; y < size; y++){
+				long key = curve.getKey(x + 0.5, y + 0.5);
+				assertTrue(key >= 0 && key < size * size);
+				assertNull("duplicate key " + key, cells[(int) key]);
+				cells[(int) key] = new int[]{x, y};
+			}
+		}
+
+		//consecutive keys are neighbour cells
+		for(int key = 1; key < cells.length; key++){
+			int distance = Math.abs(cells[key][0] - cells[key - 1][0]) + Math.abs(cells[key][1] - cells[key - 1][1]);
+			assertEquals(1, distance);
+		}
+	}
+
+	public void testZOrderInterleavesBits(){
+		SpaceFillingCurve curve = new SpaceFillingCurve(SpaceFillingCurve.Type.ZORDER, new Envelope(0, 4, 0, 4), 2);
+		assertEquals(0, curve.getKey(0.5, 0.5));
+		assertEquals(1, curve.getKey(1.5, 0.5));
+		assertEquals(2, curve.getKey(0.5, 1.5));
+		assertEquals(3, curve.getKey(1.5, 1.5));
+		assertEquals(15, curve.getKey(3.5, 3.5));
+
+		Set<Long> keys = new HashSet<Long>();
+		for(int x = 0; x < 4; x++){
+			for(int y = 0; y < 4; y++){
+				keys.add(curve.getKey(x + 0.5, y + 0.5));
+			}
+		}
+		assertEquals(16, keys.size());
+	}
+
+	public void testEnvelopeKeyIsCentreKey(){
+		SpaceFillingCurve curve = SpaceFillingCurve.geographic(SpaceFillingCurve.Type.HILBERT);
+		assertEquals(curve.getKey(15, 5), curve.getKey(new Envelope(10, 20, 0, 10)));
+	}
+
+	public void testOutsideLocationsAreClamped(){
+		SpaceFillingCurve curve = SpaceFillingCurve.geographic(SpaceFillingCurve.Type.ZORDER);
+		assertEquals(curve.getKey(179.999, 89.999), curve.getKey(500, 500));
+		assertEquals(curve.getKey(-180, -90), curve.getKey(-500, -500));
+	}
+
+	public void testFromValue(){
+		assertEquals(SpaceFillingCurve.Type.HILBERT, SpaceFillingCurve.Type.fromValue(" hilbert "));
+		assertEquals(SpaceFillingCurve.Type.ZORDER, SpaceFillingCurve.Type.fromValue("z-order"));
+		try{
+			SpaceFillingCurve.Type.fromValue("peano");
+			fail("unknown curve accepted");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testInvalidOrder(){
+		try{
+			new SpaceFillingCurve(SpaceFillingCurve.Type.HILBERT, new Envelope(0, 1, 0, 1), 32);
+			fail("invalid order accepted");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+}
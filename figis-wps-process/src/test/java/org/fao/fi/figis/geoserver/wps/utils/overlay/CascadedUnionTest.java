@@ -0,0 +1,72 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+/** Test of the cascaded union
+ * 
+ * @author eblondel
+ *
+ */
+public class CascadedUnionTest extends TestCase {
+
+	GeometryFactory gf = new GeometryFactory();
+
+	private Polygon square(double x, double y){
+		return FeatureFixtures.rectangle(x, y, x + 1, y + 1);
+	}
+
+	public void testUnionOfAdjacentSquares(){
+		List<Geometry> squares = new ArrayList<Geometry>();
+		for(int x = 0; x < 10; x++){
+			for(int y = 0; y < 10; y++){
+				squares.add(square(x, y));
+			}
+		}
+
+		CascadedUnion union = new CascadedUnion(new PrecisionOverlay());
+		Geometry result = union.union(squares);
+		assertTrue(result instanceof Polygon);
+		assertEquals(100, result.getArea(), 1e-9);
+		assertTrue(result.isValid());
+		assertEquals(squares.size() - 1, union.getUnions()); //binary unions
+	}
+
+	public void testNullAndEmptyGeometriesAreIgnored(){
+		CascadedUnion union = new CascadedUnion(new PrecisionOverlay());
+		assertNull(union.union(new ArrayList<Geometry>()));
+		assertNull(union.union(Arrays.asList(null, gf.createPolygon(null, null))));
+
+		Polygon single = square(0, 0);
+		assertSame(single, union.union(Arrays.asList(null, single)));
+		assertEquals(0, union.getUnions());
+	}
+
+	public void testHeterogeneousCollectionsAreUnionedByDimension(){
+		Geometry mixed = gf.createGeometryCollection(new Geometry[]{
+				square(0, 0), gf.createLineString(new Coordinate[]{ new Coordinate(5, 5), new Coordinate(6, 6) })});
+
+		Geometry result = new CascadedUnion(new PrecisionOverlay()).union(Arrays.asList(mixed, square(1, 0)));
+		assertTrue(result instanceof GeometryCollection);
+		assertEquals(2, result.getNumGeometries());
+		assertEquals(2, result.getGeometryN(0).getArea(), 1e-9);
+		assertEquals(1, result.getGeometryN(1).getDimension());
+	}
+
+	public void testUnionWithSnapEngine(){
+		Geometry result = new CascadedUnion(new SnapOverlay()).union(Arrays.asList((Geometry) square(0, 0), square(0.5, 0)));
+		assertEquals(1.5, result.getArea(), 1e-9);
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/** Test of the decomposition of complex geometries
+ * 
+ * @author eblondel
+ *
+ */
+public class DecomposedGeometryTest extends TestCase {
+
+	static final int MAX_VERTICES = 64;
+
+	GeometryFactory gf = new GeometryFactory();
+	Geometry circle;
+
+	protected void setUp(){
+		circle = gf.createPoint(new Coordinate(0, 0)).buffer(10, 256); //1025 vertices
+	}
+
+	public void testPiecesHaveBoundedVertices(){
+		DecomposedGeometry decomposed = new DecomposedGeometry("circle.1", circle, MAX_VERTICES);
+		assertTrue(decomposed.getPieces().size() > 1);
+
+		double area = 0;
+		for(Geometry piece : decomposed.getPieces()){
+			assertTrue(piece.getNumPoints() <= MAX_VERTICES);
+			assertEquals("circle.1", piece.getUserData());
+			area += piece.getArea();
+		}
+		assertEquals(circle.getArea(), area, 1e-6);
+	}
+
+	public void testQueryReturnsIntersectingPieces(){
+		DecomposedGeometry decomposed = new DecomposedGeometry("circle.1", circle, MAX_VERTICES);
+		Envelope corner = new Envelope(9, 10, -1, 1);
+		for(Geometry piece : decomposed.query(corner)){
+			assertTrue(piece.getEnvelopeInternal().intersects(corner));
+		}
+		assertTrue(decomposed.query(corner).size() < decomposed.getPieces().size());
+	}
+
+	public void testIntersectionMatchesPlainIntersection(){
+		Geometry other = gf.createPoint(new Coordinate(5, 3)).buffer(7, 64);
+		OverlayEngine overlay = new PrecisionOverlay();
+
+		Geometry expected = circle.intersection(other);
+		Geometry result = new DecomposedGeometry("circle.1", circle, MAX_VERTICES).intersection(other, overlay);
+		assertEquals(expected.getArea(), result.getArea(), 1e-6);
+		assertTrue(result.isValid());
+		assertTrue(result.symDifference(expected).getArea() < 1e-6);
+	}
+
+	public void testDisjointIntersectionIsEmpty(){
+		Geometry other = gf.createPoint(new Coordinate(50, 50)).buffer(1);
+		Geometry result = new DecomposedGeometry("circle.1", circle, MAX_VERTICES).intersection(other, new PrecisionOverlay());
+		assertTrue(result.isEmpty());
+	}
+
+	public void testSimpleGeometryIsNotDecomposed(){
+		Geometry square = new GeometryFactory().toGeometry(new Envelope(0, 1, 0, 1));
+		DecomposedGeometry decomposed = new DecomposedGeometry("square.1", square, MAX_VERTICES);
+		assertEquals(1, decomposed.getPieces().size());
+		assertSame(square, decomposed.getPieces().get(0));
+	}
+
+	public void testInvalidMaxVertices(){
+		try{
+			new DecomposedGeometry("circle.1", circle, 3);
+			fail("invalid maximum number of vertices accepted");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/** Comparison of the overlay engines on synthetic polygons
+ *  Perturbed circles are intersected with a grid of cells, whose neighbours share nearly coincident edges,
+ *  and unioned. The areas computed by each engine are compared, and the engine timings are logged.
+ * 
+ * @author eblondel
+ *
+ */
+public class OverlayEngineComparisonTest extends TestCase {
+
+	private static Logger logger = Logger.getLogger(OverlayEngineComparisonTest.class);
+
+	static final int CIRCLES = 150;
+	static final int VERTICES = 64;
+	static final double CELL_SIZE = 10;
+
+	GeometryFactory gf = new GeometryFactory();
+	List<Geometry> circles = new ArrayList<Geometry>();
+	List<Geometry> cells = new ArrayList<Geometry>();
+	double circlesArea = 0;
+
+	protected void setUp(){
+		Random random = new Random(40);
+		for(int i = 0; i < CIRCLES; i++){
+			double x = 10 + random.nextDouble() * 80;
+			double y = 10 + random.nextDouble() * 80;
+			Geometry circle = this.circle(x, y, 2 + random.nextDouble() * 6, random);
+			circles.add(circle);
+			circlesArea += circle.getArea();
+		}
+
+		//grid cells, with an offset below the floating precision tolerance of the overlay between neighbours
+		for(int i = 0; i < 10; i++){
+			for(int j = 0; j < 10; j++){
+				double offset = ((i + j) % 2 == 0)? 0 : 1e-11;
+				cells.add(FeatureFixtures.rectangle(i * CELL_SIZE + offset, j * CELL_SIZE + offset, (i + 1) * CELL_SIZE, (j + 1) * CELL_SIZE));
+			}
+		}
+	}
+
+	/** Get a circle with a random radial perturbation (star-shaped, hence simple)
+	 * 
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @param random
+	 * @return
+	 */
+	private Geometry circle(double x, double y, double radius, Random random){
+		Coordinate[] coordinates = new Coordinate[VERTICES + 1];
+		for(int i = 0; i < VERTICES; i++){
+			double angle = 2 * Math.PI * i / VERTICES;
+			double r = radius * (0.9 + 0.2 * random.nextDouble());
+			coordinates[i] = new Coordinate(x + r * Math.cos(angle), y + r * Math.sin(angle));
+		}
+		coordinates[VERTICES] = new Coordinate(coordinates[0]);
+		return gf.createPolygon(gf.createLinearRing(coordinates), null);
+	}
+
+	/** Intersect the circles with the grid cells
+	 * 
+	 * @param engine
+	 * @return the total area of the intersections
+	 */
+	private double intersect(OverlayEngine engine){
+		double area = 0;
+		for(Geometry circle : circles){
+			Geometry geom1 = engine.prepare(circle);
+			for(Geometry cell : cells){
+				if(!cell.getEnvelopeInternal().intersects(geom1.getEnvelopeInternal())){
+					continue;
+				}
+				Geometry intersection = engine.intersection(geom1, engine.prepare(cell));
+				if(intersection != null){
+					area += intersection.getArea();
+				}
+			}
+		}
+		return area;
+	}
+
+	/** Union the circles, and the pieces of the circles cut by the grid cells
+	 * 
+	 * @param engine
+	 * @return the union area, and the area of the union of the pieces
+	 */
+	private double[] union(OverlayEngine engine){
+		List<Geometry> prepared = new ArrayList<Geometry>();
+		List<Geometry> pieces = new ArrayList<Geometry>();
+		for(Geometry circle : circles){
+			Geometry geom1 = engine.prepare(circle);
+			prepared.add(geom1);
+			for(Geometry cell : cells){
+				if(cell.getEnvelopeInternal().intersects(geom1.getEnvelopeInternal())){
+					pieces.add(engine.intersection(geom1, engine.prepare(cell)));
+				}
+			}
+		}
+		CascadedUnion union = new CascadedUnion(engine);
+		return new double[]{union.union(prepared).getArea(), union.union(pieces).getArea()};
+	}
+
+	public void testEnginesAgreeOnSyntheticPolygons(){
+		OverlayEngine[] engines = new OverlayEngine[]{
+			OverlayEngines.create(OverlayEngines.DEFAULT, null),
+			OverlayEngines.create(OverlayEngines.FIXED, 1e-9),
+			OverlayEngines.create(OverlayEngines.SNAP, null)
+		};
+
+		double[] reference = null;
+		for(OverlayEngine engine : engines){
+			long start = System.currentTimeMillis();
+			double intersection = this.intersect(engine);
+			long intersectionTime = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			double[] union = this.union(engine);
+			long unionTime = System.currentTimeMillis() - start;
+
+			logger.info(engine + ": intersections in " + intersectionTime + " ms, unions in " + unionTime + " ms");
+
+			//the grid covers the circles
+			assertEquals(engine.toString(), circlesArea, intersection, circlesArea * 1e-6);
+			assertTrue(engine.toString(), union[0] <= circlesArea);
+			assertEquals(engine.toString(), union[0], union[1], union[0] * 1e-6);
+			if(reference == null){
+				reference = union;
+			}else{
+				assertEquals(engine.toString(), reference[0], union[0], reference[0] * 1e-6);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/** Test of the overlay engine selection, and of the engine operations
+ * 
+ * @author eblondel
+ *
+ */
+public class OverlayEnginesTest extends TestCase {
+
+	GeometryFactory gf = new GeometryFactory();
+
+	protected void setUp(){
+		System.clearProperty(OverlayEngines.ENGINE_PROPERTY);
+		System.clearProperty(OverlayEngines.PRECISION_PROPERTY);
+	}
+
+	protected void tearDown(){
+		System.clearProperty(OverlayEngines.ENGINE_PROPERTY);
+		System.clearProperty(OverlayEngines.PRECISION_PROPERTY);
+	}
+
+	public void testEngineSelection(){
+		OverlayEngine engine = OverlayEngines.create(null, null);
+		assertTrue(engine instanceof PrecisionOverlay);
+		assertFalse(((PrecisionOverlay) engine).isFixedPrecision());
+
+		engine = OverlayEngines.create(null, 1e-7);
+		assertTrue(engine instanceof PrecisionOverlay);
+		assertTrue(((PrecisionOverlay) engine).isFixedPrecision());
+		assertEquals(OverlayEngines.FIXED, OverlayEngines.getName(null, 1e-7));
+
+		assertTrue(OverlayEngines.create(" SNAP ", null) instanceof SnapOverlay);
+	}
+
+	public void testConfiguredEngine(){
+		System.setProperty(OverlayEngines.ENGINE_PROPERTY, OverlayEngines.SNAP);
+		assertTrue(OverlayEngines.create(null, null) instanceof SnapOverlay);
+		assertTrue(OverlayEngines.create(OverlayEngines.DEFAULT, null) instanceof PrecisionOverlay);
+
+		//a call precision selects the fixed engine
+		assertEquals(OverlayEngines.FIXED, OverlayEngines.getName(null, 1e-7));
+		assertTrue(((PrecisionOverlay) OverlayEngines.create(null, 1e-7)).isFixedPrecision());
+	}
+
+	public void testConfiguredFixedEngine(){
+		System.setProperty(OverlayEngines.ENGINE_PROPERTY, OverlayEngines.FIXED);
+
+		//no configured precision: the configured engine cannot be used
+		assertEquals(OverlayEngines.DEFAULT, OverlayEngines.getName(null, null));
+		assertNull(OverlayEngines.getPrecision(null, null));
+		assertFalse(((PrecisionOverlay) OverlayEngines.create(null, null)).isFixedPrecision());
+
+		System.setProperty(OverlayEngines.PRECISION_PROPERTY, "1e-7");
+		assertEquals(OverlayEngines.FIXED, OverlayEngines.getName(null, null));
+		assertEquals(1e-7, OverlayEngines.getPrecision(null, null));
+		assertEquals(1e-3, OverlayEngines.getPrecision(null, 1e-3));
+		assertEquals(1e-7, OverlayEngines.getPrecision(OverlayEngines.FIXED, null));
+		assertNull(OverlayEngines.getPrecision(OverlayEngines.SNAP, null));
+		assertTrue(((PrecisionOverlay) OverlayEngines.create(null, null)).isFixedPrecision());
+		assertTrue(OverlayEngines.create(OverlayEngines.SNAP, null) instanceof SnapOverlay);
+
+		System.setProperty(OverlayEngines.PRECISION_PROPERTY, "fine");
+		assertInvalid(null, null);
+	}
+
+	public void testInvalidEngines(){
+		assertInvalid(OverlayEngines.DEFAULT, 1e-7); //floating precision only
+		assertInvalid(OverlayEngines.FIXED, null); //precision required
+		assertInvalid(OverlayEngines.SNAP, 1e-7);
+		assertInvalid("unknown", null);
+		assertInvalid(OverlayEngines.FIXED, -1.0);
+	}
+
+	private void assertInvalid(String engine, Double precision){
+		try{
+			OverlayEngines.create(engine, precision);
+			fail("invalid engine accepted: " + engine + " (precision " + precision + ")");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testEnginesAgreeOnSimpleOverlays(){
+		Geometry geom1 = gf.createPoint(new Coordinate(0, 0)).buffer(1, 32);
+		Geometry geom2 = gf.createPoint(new Coordinate(1, 0)).buffer(1, 32);
+		double intersection = geom1.intersection(geom2).getArea();
+		double union = geom1.union(geom2).getArea();
+
+		OverlayEngine[] engines = new OverlayEngine[]{
+			OverlayEngines.create(OverlayEngines.DEFAULT, null),
+			OverlayEngines.create(OverlayEngines.FIXED, 1e-9),
+			OverlayEngines.create(OverlayEngines.SNAP, null)
+		};
+		for(OverlayEngine engine : engines){
+			Geometry g1 = engine.prepare(geom1);
+			Geometry g2 = engine.prepare(geom2);
+			assertEquals(engine.toString(), intersection, engine.intersection(g1, g2).getArea(), 1e-6);
+			assertEquals(engine.toString(), union, engine.union(g1, g2).getArea(), 1e-6);
+			assertEquals(engine.toString(), geom1.getArea(), engine.buffer(g1, 0).getArea(), 1e-6);
+		}
+	}
+
+}
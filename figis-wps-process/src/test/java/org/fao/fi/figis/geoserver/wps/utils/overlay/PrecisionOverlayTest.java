@@ -0,0 +1,76 @@
+package org.fao.fi.figis.geoserver.wps.utils.overlay;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/** Test of the fixed and floating precision overlay operations
+ * 
+ * @author eblondel
+ *
+ */
+public class PrecisionOverlayTest extends TestCase {
+
+	/** Check that the coordinates of a geometry are on a precision grid
+	 * 
+	 * @param geometry
+	 * @param precision
+	 */
+	private void assertOnGrid(Geometry geometry, double precision){
+		assertFalse(geometry.getPrecisionModel().isFloating());
+		for(Coordinate coordinate : geometry.getCoordinates()){
+			assertEquals(Math.rint(coordinate.x / precision), coordinate.x / precision, 1e-9);
+			assertEquals(Math.rint(coordinate.y / precision), coordinate.y / precision, 1e-9);
+		}
+	}
+
+	public void testPrepareSnapsToFixedPrecisionModel(){
+		PrecisionOverlay overlay = new PrecisionOverlay(0.5);
+		assertTrue(overlay.isFixedPrecision());
+		Geometry point = overlay.prepare(FeatureFixtures.GF.createPoint(new Coordinate(0.26, 0.74)));
+		assertEquals(0.5, point.getCoordinate().x, 0);
+		assertEquals(0.5, point.getCoordinate().y, 0);
+		assertEquals(2.0, point.getPrecisionModel().getScale(), 0);
+		assertNull(overlay.prepare(null));
+	}
+
+	public void testFloatingPrecisionKeepsGeometries(){
+		PrecisionOverlay overlay = new PrecisionOverlay();
+		assertFalse(overlay.isFixedPrecision());
+		Geometry geometry = FeatureFixtures.circle(0, 0, 1);
+		assertSame(geometry, overlay.prepare(geometry));
+		assertFalse(new PrecisionOverlay(null).isFixedPrecision());
+	}
+
+	public void testChainedOperationsStayOnGrid(){
+		PrecisionOverlay overlay = new PrecisionOverlay(0.01);
+		Geometry geom1 = overlay.prepare(FeatureFixtures.circle(0, 0, 1));
+		Geometry geom2 = overlay.prepare(FeatureFixtures.circle(1, 0, 1));
+		Geometry geom3 = overlay.prepare(FeatureFixtures.circle(0.5, 1, 1));
+
+		Geometry intersection = overlay.intersection(geom1, geom2);
+		assertOnGrid(intersection, 0.01);
+		Geometry union = overlay.union(intersection, overlay.intersection(geom2, geom3));
+		assertOnGrid(union, 0.01);
+		assertOnGrid(overlay.buffer(union, 0.1), 0.01);
+
+		assertEquals(geom1.intersection(geom2).getArea(), intersection.getArea(), 1e-2);
+		assertEquals(4, overlay.getOperations());
+		assertEquals(0, overlay.getRetries());
+		assertEquals(0, overlay.getFallbacks());
+		assertTrue(overlay.toString().contains("fallbacks: 0"));
+	}
+
+	public void testInvalidPrecision(){
+		try{
+			new PrecisionOverlay(-1.0);
+			fail("The precision must be positive");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+package org.fao.fi.figis.geoserver.wps.utils.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.fao.fi.figis.geoserver.wps.FeatureFixtures;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/** Test of the feature file store, and of the feature collection cache
+ * 
+ * @author eblondel
+ *
+ */
+public class FeatureFileStoreTest extends TestCase {
+
+	File directory;
+	SimpleFeatureCollection features;
+
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("figis-test-", "");
+		directory.delete();
+		directory.mkdirs();
+
+		SimpleFeatureType schema = FeatureFixtures.getSchema("FAO_AREAS");
+		List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+		list.add(FeatureFixtures.getFeature(schema, "FAO_AREAS.1", FeatureFixtures.rectangle(0, 0, 10, 10), "21"));
+		list.add(FeatureFixtures.getFeature(schema, "FAO_AREAS.2", FeatureFixtures.rectangle(10, 0, 20, 10), null));
+		list.add(FeatureFixtures.getFeature(schema, "FAO_AREAS.3", null, "27"));
+		features = new ListFeatureCollection(schema, list);
+	}
+
+	protected void tearDown(){
+		File[] files = directory.listFiles();
+		if(files != null){
+			for(File file : files){
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	public void testWriteAndRead() throws IOException{
+		FeatureFileStore store = new FeatureFileStore(new File(directory, "areas.store"));
+		assertFalse(store.exists());
+		store.write(features);
+		assertTrue(store.exists());
+
+		SimpleFeatureType schema = store.getSchema();
+		assertEquals("FAO_AREAS", schema.getTypeName());
+		assertEquals("the_geom", schema.getGeometryDescriptor().getLocalName());
+		assertEquals(2, schema.getAttributeCount());
+
+		List<SimpleFeature> expected = FeatureFixtures.getFeatures(features);
+		List<SimpleFeature> stored = FeatureFixtures.getFeatures(store.getFeatures());
+		assertEquals(expected.size(), stored.size());
+		for(int i = 0; i < expected.size(); i++){
+			SimpleFeature original = expected.get(i);
+			SimpleFeature feature = stored.get(i);
+			assertEquals(original.getID(), feature.getID());
+			assertEquals(original.getAttribute("CODE"), feature.getAttribute("CODE"));
+			Geometry geometry = (Geometry) original.getDefaultGeometry();
+			if(geometry == null){
+				assertNull(feature.getDefaultGeometry());
+			}else{
+				assertTrue(geometry.equalsExact((Geometry) feature.getDefaultGeometry()));
+			}
+		}
+
+		assertTrue(store.delete());
+		assertFalse(store.exists());
+	}
+
+	public void testTypedValues() throws IOException{
+		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+		tb.setName("TYPED");
+		tb.add("the_geom", Point.class);
+		tb.add("NAME", String.class);
+		tb.add("FLAG", Boolean.class);
+		tb.add("COUNT", Integer.class);
+		tb.add("TOTAL", Long.class);
+		tb.add("AREA", Double.class);
+		tb.add("AMOUNT", BigDecimal.class);
+		tb.add("BIG", BigInteger.class);
+		tb.add("DAY", Date.class);
+		tb.add("UPDATED", Timestamp.class);
+		SimpleFeatureType schema = tb.buildFeatureType();
+
+		Timestamp updated = new Timestamp(1400000000000L);
+		updated.setNanos(123456789);
+		Object[] values = new Object[]{ FeatureFixtures.GF.createPoint(new Coordinate(1.5, -2.5)),
+				"\u00e9l\u00e9ment", Boolean.TRUE, 42, 1L << 40, 0.1, new BigDecimal("-12345.678900"),
+				new BigInteger("123456789012345678901234567890"), new Date(1300000000000L), updated };
+		List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+		list.add(SimpleFeatureBuilder.build(schema, values, "TYPED.1"));
+		list.add(SimpleFeatureBuilder.build(schema, new Object[values.length], "TYPED.2"));
+
+		FeatureFileStore store = new FeatureFileStore(new File(directory, "typed.store"));
+		store.write(new ListFeatureCollection(schema, list));
+		assertEquals(BigDecimal.class, store.getSchema().getDescriptor("AMOUNT").getType().getBinding());
+
+		List<SimpleFeature> stored = FeatureFixtures.getFeatures(store.getFeatures());
+		assertEquals(2, stored.size());
+		for(int i = 1; i < values.length; i++){
+			assertEquals(values[i], stored.get(0).getAttribute(i));
+			assertNull(stored.get(1).getAttribute(i));
+		}
+		assertTrue(((Geometry) values[0]).equalsExact((Geometry) stored.get(0).getDefaultGeometry()));
+		assertEquals(123456789, ((Timestamp) stored.get(0).getAttribute("UPDATED")).getNanos());
+	}
+
+	public void testUnsupportedBinding() throws IOException{
+		SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+		tb.setName("UNSUPPORTED");
+		tb.add("VALUES", List.class);
+
+		FeatureFileStore store = new FeatureFileStore(new File(directory, "unsupported.store"));
+		try{
+			store.createWriter(tb.buildFeatureType());
+			fail("List attributes have no typed encoding");
+		}catch(IOException e){
+			//expected
+		}
+		assertFalse(store.exists());
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	public void testRewriteReplacesStore() throws IOException{
+		FeatureFileStore store = new FeatureFileStore(new File(directory, "areas.store"));
+		store.write(features);
+		store.write(FeatureFixtures.getLayer("FAO_AREAS", FeatureFixtures.rectangle(0, 0, 1, 1)));
+		assertEquals(1, store.getFeatures().size());
+		assertEquals(1, directory.listFiles().length);
+	}
+
+	public void testAbortedWriterKeepsPreviousStore() throws IOException{
+		FeatureFileStore store = new FeatureFileStore(new File(directory, "areas.store"));
+		store.write(features);
+
+		FeatureFileStore.FeatureFileWriter writer = store.createWriter(features.getSchema());
+		writer.abort();
+		assertTrue(store.exists());
+		assertEquals(3, store.getFeatures().size());
+	}
+
+	public void testCachePutAndGet() throws IOException{
+		FeatureCollectionCache cache = new FeatureCollectionCache(directory, 10, 0);
+		String key = FeatureCollectionCache.getKey("FAO_AREAS", "EEZ", "options");
+		assertEquals(key, FeatureCollectionCache.getKey("FAO_AREAS", "EEZ", "options"));
+		assertFalse(key.equals(FeatureCollectionCache.getKey("FAO_AREAS", "EEZ", "other options")));
+
+		assertNull(cache.get(key));
+		SimpleFeatureCollection cached = cache.put(key, features);
+		assertEquals(3, cached.size());
+		assertNotNull(cache.get(key));
+		assertEquals(3, cache.get(key).size());
+	}
+
+	public void testCacheEvictsLeastRecentlyUsed() throws IOException{
+		FeatureCollectionCache cache = new FeatureCollectionCache(directory, 1, 0);
+		cache.put("first", features);
+		File[] files = directory.listFiles();
+		assertEquals(1, files.length);
+		files[0].setLastModified(System.currentTimeMillis() - 60000);
+
+		cache.put("second", features);
+		assertNull(cache.get("first"));
+		assertNotNull(cache.get("second"));
+	}
+
+	public void testCacheExpiry() throws IOException{
+		FeatureCollectionCache cache = new FeatureCollectionCache(directory, 10, 1000);
+		cache.put("expired", features);
+		directory.listFiles()[0].setLastModified(System.currentTimeMillis() - 60000);
+		assertNull(cache.get("expired"));
+	}
+
+}